@@ -0,0 +1,142 @@
+package com.github.qindachang.library.scanner;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Synthetic but realistic advertisement corpora. Every corpus is generated from a fixed seed, so runs
+ * are comparable.
+ */
+public final class AdvertisementCorpus {
+
+	public enum Kind {
+		/** Apple iBeacon, flags and one manufacturer specific data structure. */
+		IBEACON,
+		/** Eddystone UID and URL frames, 16 bit service UUID list and service data. */
+		EDDYSTONE,
+		/** Several manufacturer data structures, a 128 bit service UUID, a name and a TX power level. */
+		MANUFACTURER,
+		/** All of the above in equal parts. */
+		MIXED
+	}
+
+	/* package */ static final int COMPANY_APPLE = 0x004C;
+	/* package */ static final int COMPANY_NORDIC = 0x0059;
+	/* package */ static final int COMPANY_MICROSOFT = 0x0006;
+	/* package */ static final int EDDYSTONE_UUID = 0xFEAA;
+	/* package */ static final String SERVICE_128 = "6E400001-B5A3-F393-E0A9-E50E24DCCA9E";
+
+	public final String[] addresses;
+	public final byte[][] records;
+	public final ScanResult[] results;
+
+	/**
+	 * @param kind    what the advertisements look like.
+	 * @param size    number of advertisements.
+	 * @param devices number of distinct devices sending them.
+	 */
+	public AdvertisementCorpus(final Kind kind, final int size, final int devices) {
+		final Random random = new Random(42);
+		final String[] deviceAddresses = new String[devices];
+		final BluetoothDevice[] deviceObjects = new BluetoothDevice[devices];
+		for (int i = 0; i < devices; i++) {
+			deviceAddresses[i] = address(random);
+			deviceObjects[i] = new BluetoothDevice(deviceAddresses[i]);
+		}
+
+		addresses = new String[size];
+		records = new byte[size][];
+		results = new ScanResult[size];
+		for (int i = 0; i < size; i++) {
+			final int device = random.nextInt(devices);
+			final Kind recordKind = kind == Kind.MIXED ? Kind.values()[i % 3] : kind;
+			addresses[i] = deviceAddresses[device];
+			records[i] = record(recordKind, device, random);
+			results[i] = new ScanResult(deviceObjects[device], ScanRecord.parseFromBytes(records[i]),
+					-40 - random.nextInt(60), i * 10000000L);
+		}
+	}
+
+	private static String address(final Random random) {
+		final StringBuilder builder = new StringBuilder(17);
+		for (int i = 0; i < 6; i++) {
+			if (i > 0)
+				builder.append(':');
+			final int b = random.nextInt(256);
+			builder.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)));
+			builder.append(Character.toUpperCase(Character.forDigit(b & 0x0F, 16)));
+		}
+		return builder.toString();
+	}
+
+	private static byte[] record(final Kind kind, final int device, final Random random) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(62);
+		switch (kind) {
+			case IBEACON: {
+				structure(out, 0x01, (byte) 0x06);
+				final byte[] beacon = new byte[25];
+				beacon[0] = (byte) COMPANY_APPLE;
+				beacon[1] = (byte) (COMPANY_APPLE >> 8);
+				beacon[2] = 0x02;
+				beacon[3] = 0x15;
+				// Proximity UUID shared by the deployment, major and minor per device
+				for (int i = 0; i < 16; i++)
+					beacon[4 + i] = (byte) (0xE2 + i);
+				beacon[20] = (byte) (device >> 8);
+				beacon[21] = (byte) device;
+				beacon[22] = 0;
+				beacon[23] = (byte) random.nextInt(256);
+				beacon[24] = (byte) 0xC5;
+				structure(out, 0xFF, beacon);
+				break;
+			}
+			case EDDYSTONE: {
+				structure(out, 0x01, (byte) 0x06);
+				structure(out, 0x03, (byte) EDDYSTONE_UUID, (byte) (EDDYSTONE_UUID >> 8));
+				if ((device & 1) == 0) {
+					// UID frame
+					final byte[] uid = new byte[22];
+					uid[0] = (byte) EDDYSTONE_UUID;
+					uid[1] = (byte) (EDDYSTONE_UUID >> 8);
+					uid[2] = 0x00;
+					uid[3] = (byte) 0xEE;
+					for (int i = 4; i < 20; i++)
+						uid[i] = (byte) (i < 14 ? 0x10 + i : device + i);
+					structure(out, 0x16, uid);
+				} else {
+					// URL frame, "https://www.example.com/"
+					structure(out, 0x16, (byte) EDDYSTONE_UUID, (byte) (EDDYSTONE_UUID >> 8), (byte) 0x10, (byte) 0xEE,
+							(byte) 0x01, (byte) 'e', (byte) 'x', (byte) 'a', (byte) 'm', (byte) 'p', (byte) 'l', (byte) 'e',
+							(byte) 0x00);
+				}
+				break;
+			}
+			default: {
+				structure(out, 0x01, (byte) 0x06);
+				structure(out, 0xFF, (byte) COMPANY_NORDIC, (byte) (COMPANY_NORDIC >> 8), (byte) device, (byte) (device >> 8));
+				structure(out, 0xFF, (byte) COMPANY_MICROSOFT, (byte) (COMPANY_MICROSOFT >> 8), (byte) 0x01, (byte) 0x09,
+						(byte) random.nextInt(256), (byte) random.nextInt(256));
+				final byte[] uuid = new byte[16];
+				final java.util.UUID service = java.util.UUID.fromString(SERVICE_128);
+				for (int i = 0; i < 8; i++) {
+					uuid[i] = (byte) (service.getLeastSignificantBits() >> (i * 8));
+					uuid[8 + i] = (byte) (service.getMostSignificantBits() >> (i * 8));
+				}
+				structure(out, 0x07, uuid);
+				structure(out, 0x0A, (byte) 0xF4);
+				final byte[] name = ("Sensor " + device).getBytes();
+				structure(out, 0x09, name.length > 8 ? java.util.Arrays.copyOf(name, 8) : name);
+				break;
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static void structure(final ByteArrayOutputStream out, final int type, final byte... data) {
+		out.write(data.length + 1);
+		out.write(type);
+		out.write(data, 0, data.length);
+	}
+}
@@ -0,0 +1,84 @@
+package com.github.qindachang.library.scanner;
+
+import android.os.Handler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+
+/**
+ * Cost of emulated batching in {@link BluetoothLeScannerCompat.ScanCallbackWrapper}: one report period of
+ * advertisements from a crowd of devices, then the flush that hands the batch to the callback.
+ */
+@State(Scope.Thread)
+public class BatchingBenchmark {
+	private static final int BATCH = 1024;
+
+	@Param({"0", "1", "2"}) // ScanSettings.BATCH_KEEP_FIRST, BATCH_KEEP_LATEST, BATCH_KEEP_STRONGEST
+	public int keepMode;
+
+	@Param({"16", "256"})
+	public int devices;
+
+	private ScanResult[] mResults;
+	private BluetoothLeScannerCompat.ScanCallbackWrapper mWrapper;
+	private Blackhole mBlackhole;
+
+	@Setup
+	public void setup(final Blackhole blackhole) {
+		mBlackhole = blackhole;
+		mResults = new AdvertisementCorpus(AdvertisementCorpus.Kind.MIXED, BATCH, devices).results;
+
+		final ScanSettings settings = new ScanSettings.Builder()
+				.setReportDelay(5000)
+				.setBatchKeepMode(keepMode)
+				.build();
+		final ScanCallback callback = new ScanCallback() {
+			@Override
+			public void onBatchScanResults(final List<ScanResult> results) {
+				mBlackhole.consume(results);
+			}
+		};
+		mWrapper = new BenchmarkScanner().newWrapper(settings, callback);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void batchAndFlush() {
+		for (final ScanResult result : mResults)
+			mWrapper.handleScanResult(result);
+		mWrapper.flushPendingScanResults();
+	}
+
+	/**
+	 * Gives access to the wrapper the platform scanners use, without a platform scan.
+	 */
+	private static class BenchmarkScanner extends BluetoothLeScannerCompat {
+
+		/* package */ ScanCallbackWrapper newWrapper(final ScanSettings settings, final ScanCallback callback) {
+			return new ScanCallbackWrapper(null, settings, callback, new Handler());
+		}
+
+		@Override
+		/* package */ void startScanInternal(final List<ScanFilter> filters, final ScanSettings settings,
+											  final ScanCallback callback, final Handler handler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void stopScan(final ScanCallback callback) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void flushPendingScanResults(final ScanCallback callback) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
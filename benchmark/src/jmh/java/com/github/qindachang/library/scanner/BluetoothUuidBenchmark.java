@@ -0,0 +1,37 @@
+package com.github.qindachang.library.scanner;
+
+import android.os.ParcelUuid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of turning the UUIDs found in advertisements into {@link ParcelUuid}s.
+ */
+@State(Scope.Thread)
+public class BluetoothUuidBenchmark {
+
+	// 0xFEAA, the Eddystone service
+	private final byte[] mUuid16 = { (byte) 0xAA, (byte) 0xFE };
+	private final byte[] mUuid32 = { (byte) 0xAA, (byte) 0xFE, 0x01, 0x00 };
+	// 6E400001-B5A3-F393-E0A9-E50E24DCCA9E, little endian
+	private final byte[] mUuid128 = {
+			(byte) 0x9E, (byte) 0xCA, (byte) 0xDC, 0x24, 0x0E, (byte) 0xE5, (byte) 0xA9, (byte) 0xE0,
+			(byte) 0x93, (byte) 0xF3, (byte) 0xA3, (byte) 0xB5, 0x01, 0x00, 0x40, 0x6E };
+
+	@Benchmark
+	public ParcelUuid parse16() {
+		return BluetoothUuid.parseUuidFrom(mUuid16);
+	}
+
+	@Benchmark
+	public ParcelUuid parse32() {
+		return BluetoothUuid.parseUuidFrom(mUuid32);
+	}
+
+	@Benchmark
+	public ParcelUuid parse128() {
+		return BluetoothUuid.parseUuidFrom(mUuid128);
+	}
+}
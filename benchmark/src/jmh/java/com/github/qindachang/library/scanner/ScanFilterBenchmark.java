@@ -0,0 +1,84 @@
+package com.github.qindachang.library.scanner;
+
+import android.os.ParcelUuid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cost of deciding whether an advertisement passes the filters of a scan, by trying every
+ * {@link ScanFilter} in turn and through the compiled {@link ScanFilterMatcher}.
+ */
+@State(Scope.Thread)
+public class ScanFilterBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int filterCount;
+
+	@Param({"MIXED"})
+	public AdvertisementCorpus.Kind kind;
+
+	private List<ScanFilter> mFilters;
+	private ScanFilterMatcher mMatcher;
+	private ScanResult[] mResults;
+	private int mIndex;
+
+	@Setup
+	public void setup() {
+		final AdvertisementCorpus corpus = new AdvertisementCorpus(kind, 1024, 256);
+		mResults = corpus.results;
+
+		// A typical mix: known devices by address, some names, service UUIDs and manufacturer data.
+		// Only some of the filters match anything in the corpus.
+		mFilters = new ArrayList<>(filterCount);
+		for (int i = 0; i < filterCount; i++) {
+			final ScanFilter.Builder builder = new ScanFilter.Builder();
+			switch (i % 4) {
+				case 0:
+					builder.setDeviceAddress(corpus.addresses[(i * 7) % corpus.addresses.length]);
+					break;
+				case 1:
+					builder.setDeviceName("Sensor " + i);
+					break;
+				case 2:
+					builder.setServiceUuid(i % 8 == 2
+							? ParcelUuid.fromString(AdvertisementCorpus.SERVICE_128)
+							: ParcelUuid.fromString(String.format("0000%04X-0000-1000-8000-00805F9B34FB", i & 0xFFFF)));
+					break;
+				default:
+					builder.setManufacturerData(AdvertisementCorpus.COMPANY_APPLE,
+							new byte[] { 0x02, 0x15, (byte) (0xE2 + (i & 1)) },
+							new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+					break;
+			}
+			mFilters.add(builder.build());
+		}
+		mMatcher = ScanFilterMatcher.compile(mFilters);
+	}
+
+	private ScanResult next() {
+		mIndex = (mIndex + 1) & (mResults.length - 1);
+		return mResults[mIndex];
+	}
+
+	@Benchmark
+	public boolean linear() {
+		final ScanResult result = next();
+		for (int i = 0; i < mFilters.size(); i++) {
+			if (mFilters.get(i).matches(result))
+				return true;
+		}
+		return false;
+	}
+
+	@Benchmark
+	public boolean compiled() {
+		return mMatcher.matches(next());
+	}
+}
@@ -0,0 +1,52 @@
+package com.github.qindachang.library.scanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of parsing an advertisement, alone and with the lookups a filter or a listener usually makes.
+ */
+@State(Scope.Thread)
+public class ScanRecordBenchmark {
+
+	@Param({"IBEACON", "EDDYSTONE", "MANUFACTURER", "MIXED"})
+	public AdvertisementCorpus.Kind kind;
+
+	private byte[][] mRecords;
+	private int mIndex;
+
+	@Setup
+	public void setup() {
+		mRecords = new AdvertisementCorpus(kind, 1024, 256).records;
+	}
+
+	private byte[] next() {
+		mIndex = (mIndex + 1) & (mRecords.length - 1);
+		return mRecords[mIndex];
+	}
+
+	@Benchmark
+	public ScanRecord parse() {
+		return ScanRecord.parseFromBytes(next());
+	}
+
+	@Benchmark
+	public void parseAndRead(final Blackhole blackhole) {
+		final ScanRecord record = ScanRecord.parseFromBytes(next());
+		blackhole.consume(record.getManufacturerSpecificData(AdvertisementCorpus.COMPANY_APPLE));
+		blackhole.consume(record.getTxPowerLevel());
+	}
+
+	@Benchmark
+	public void parseAndDecode(final Blackhole blackhole) {
+		final ScanRecord record = ScanRecord.parseFromBytes(next());
+		blackhole.consume(record.getServiceUuids());
+		blackhole.consume(record.getServiceData());
+		blackhole.consume(record.getManufacturerSpecificData());
+		blackhole.consume(record.getDeviceName());
+	}
+}
@@ -0,0 +1,75 @@
+package com.github.qindachang.library.scanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Cost of a replayed scan in {@link ScanReplayScanner}: reading a {@link ScanRecorder} file and passing every
+ * advertisement through the callback wrapper, as fast as possible.
+ * <p>
+ * The scan reports every result at once and without filters, so every advertisement reaches the callback and the
+ * end of the replay is known. Batching and match lost need timers, which the stub {@code Handler} does not run.
+ */
+@State(Scope.Thread)
+public class ScanReplayBenchmark {
+	private static final int SIZE = 4096;
+
+	@Param({"MIXED"})
+	public AdvertisementCorpus.Kind kind;
+
+	@Param({"16", "256"})
+	public int devices;
+
+	private File mFile;
+	private ScanReplayScanner mScanner;
+	private ScanSettings mSettings;
+	private Blackhole mBlackhole;
+
+	@Setup(Level.Trial)
+	public void setup(final Blackhole blackhole) throws IOException {
+		mBlackhole = blackhole;
+		mFile = File.createTempFile("scan", ".bler");
+		final ScanRecorder recorder = new ScanRecorder(mFile);
+		try {
+			for (final ScanResult result : new AdvertisementCorpus(kind, SIZE, devices).results)
+				recorder.record(result);
+		} finally {
+			recorder.close();
+		}
+		mScanner = new ScanReplayScanner(mFile, 0);
+		mSettings = new ScanSettings.Builder().build();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (!mFile.delete())
+			mFile.deleteOnExit();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SIZE)
+	public void replay() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(SIZE);
+		final ScanCallback callback = new ScanCallback() {
+			@Override
+			public void onScanResult(final int callbackType, final ScanResult result) {
+				mBlackhole.consume(result);
+				done.countDown();
+			}
+		};
+		mScanner.startScan(null, mSettings, callback);
+		done.await();
+		mScanner.stopScan(callback);
+	}
+}
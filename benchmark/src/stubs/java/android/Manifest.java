@@ -0,0 +1,11 @@
+package android;
+
+/**
+ * Stub of the Android class, only what the scanner sources use.
+ */
+public final class Manifest {
+    public static final class permission {
+        public static final String BLUETOOTH = "android.permission.BLUETOOTH";
+        public static final String BLUETOOTH_ADMIN = "android.permission.BLUETOOTH_ADMIN";
+    }
+}
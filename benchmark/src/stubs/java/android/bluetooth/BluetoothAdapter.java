@@ -0,0 +1,51 @@
+package android.bluetooth;
+
+/**
+ * Stub of the Android class, an adapter that can only create devices.
+ */
+public final class BluetoothAdapter {
+    public static final int STATE_ON = 12;
+
+    private static final BluetoothAdapter DEFAULT = new BluetoothAdapter();
+
+    private BluetoothAdapter() {
+    }
+
+    public static BluetoothAdapter getDefaultAdapter() {
+        return DEFAULT;
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        if (!checkBluetoothAddress(address)) {
+            throw new IllegalArgumentException(address + " is not a valid Bluetooth address");
+        }
+        return new BluetoothDevice(address);
+    }
+
+    public int getState() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static boolean checkBluetoothAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return false;
+        }
+        for (int i = 0; i < 17; i++) {
+            final char c = address.charAt(i);
+            switch (i % 3) {
+                case 0:
+                case 1:
+                    if ((c < '0' || c > '9') && (c < 'A' || c > 'F')) {
+                        return false;
+                    }
+                    break;
+                case 2:
+                    if (c != ':') {
+                        return false;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package android.bluetooth;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Stub of the Android class, unlike the real one it can be created from an address.
+ */
+public final class BluetoothDevice implements Parcelable {
+    private final String mAddress;
+
+    public BluetoothDevice(String address) {
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return null;
+    }
+
+    @Override
+    public int hashCode() {
+        return mAddress.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BluetoothDevice && mAddress.equals(((BluetoothDevice) o).mAddress);
+    }
+
+    @Override
+    public String toString() {
+        return mAddress;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        throw new UnsupportedOperationException();
+    }
+
+    public static final Creator<BluetoothDevice> CREATOR = new Creator<BluetoothDevice>() {
+        @Override
+        public BluetoothDevice createFromParcel(Parcel source) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public BluetoothDevice[] newArray(int size) {
+            return new BluetoothDevice[size];
+        }
+    };
+}
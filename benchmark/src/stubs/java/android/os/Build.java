@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Stub of the Android class, only what the scanner sources use.
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.M;
+    }
+
+    public static class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+    }
+}
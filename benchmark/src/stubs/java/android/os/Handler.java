@@ -0,0 +1,26 @@
+package android.os;
+
+/**
+ * Stub of the Android class. Posted runnables run immediately on the calling thread and delayed ones
+ * never run, benchmarks drive timers such as batch flushes themselves or use settings without timers.
+ */
+public class Handler {
+
+    public Handler() {
+    }
+
+    public Handler(Looper looper) {
+    }
+
+    public final boolean post(Runnable r) {
+        r.run();
+        return true;
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Stub of the Android class, there is a single looper and it never loops.
+ */
+public final class Looper {
+    private static final Looper MAIN = new Looper();
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return MAIN;
+    }
+}
@@ -0,0 +1,54 @@
+package android.os;
+
+/**
+ * Stub of the Android class, parceling is not benchmarked.
+ */
+public final class Parcel {
+
+    private Parcel() {
+    }
+
+    public void writeInt(int val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeLong(long val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeString(String val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeByteArray(byte[] b) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeParcelable(Parcelable p, int parcelableFlags) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int readInt() {
+        throw new UnsupportedOperationException();
+    }
+
+    public long readLong() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String readString() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void readByteArray(byte[] val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] createByteArray() {
+        throw new UnsupportedOperationException();
+    }
+
+    public <T extends Parcelable> T readParcelable(ClassLoader loader) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,56 @@
+package android.os;
+
+import java.util.UUID;
+
+/**
+ * Stub of the Android class, same behaviour apart from parceling.
+ */
+public final class ParcelUuid implements Parcelable {
+    private final UUID mUuid;
+
+    public ParcelUuid(UUID uuid) {
+        mUuid = uuid;
+    }
+
+    public static ParcelUuid fromString(String uuid) {
+        return new ParcelUuid(UUID.fromString(uuid));
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    @Override
+    public String toString() {
+        return mUuid.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return mUuid.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object == null) {
+            return false;
+        }
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof ParcelUuid)) {
+            return false;
+        }
+        return mUuid.equals(((ParcelUuid) object).mUuid);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,16 @@
+package android.support.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Stub of the support annotation.
+ */
+@Retention(RetentionPolicy.CLASS)
+public @interface RequiresPermission {
+    String value() default "";
+
+    String[] allOf() default {};
+
+    String[] anyOf() default {};
+}
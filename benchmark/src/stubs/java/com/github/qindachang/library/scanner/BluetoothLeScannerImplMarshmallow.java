@@ -0,0 +1,27 @@
+package com.github.qindachang.library.scanner;
+
+import android.os.Handler;
+
+import java.util.List;
+
+/**
+ * Stands in for the platform scanner, which needs the real Bluetooth stack.
+ */
+/* package */ class BluetoothLeScannerImplMarshmallow extends BluetoothLeScannerCompat {
+
+	@Override
+	/* package */ void startScanInternal(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback,
+										final Handler handler) {
+		throw new UnsupportedOperationException("no Bluetooth stack");
+	}
+
+	@Override
+	public void stopScan(final ScanCallback callback) {
+		throw new UnsupportedOperationException("no Bluetooth stack");
+	}
+
+	@Override
+	public void flushPendingScanResults(final ScanCallback callback) {
+		throw new UnsupportedOperationException("no Bluetooth stack");
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library;
+
+import com.github.qindachang.library.exception.BleException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of one queued request. It completes exactly once, with the value of the request, a
+ * {@link BleException} or by {@link #cancel(boolean)}, and only the callbacks of this future hear
+ * about it; the {@code OnLe*Listener}s are not called for requests made through a future.
+ * <p>
+ * Callbacks run on the callback thread of the manager, also when added after completion.
+ * {@link #get()} blocks the calling thread, it must not be called on the callback thread.
+ *
+ * @param <T> type of the value, {@code byte[]} for reads and {@link Void} for writes.
+ */
+public final class BleFuture<T> implements Future<T> {
+
+    public interface Callback<T> {
+
+        void onSuccess(T value);
+
+        /**
+         * Called for errors and cancellation alike.
+         */
+        void onFailure(BleException e);
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final int exceptionType;
+    private final Executor mCallbackExecutor;
+    private int mState = PENDING;
+    private T mValue;
+    private BleException mException;
+    private List<Callback<? super T>> mCallbacks;
+    private Runnable mOnCancel;
+
+    /**
+     * @param exceptionType   the {@link BleException} type reported on cancellation.
+     * @param callbackExecutor runs the callbacks.
+     */
+    BleFuture(int exceptionType, Executor callbackExecutor) {
+        this.exceptionType = exceptionType;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * @return this future, to chain calls.
+     */
+    public BleFuture<T> addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                if (mCallbacks == null) {
+                    mCallbacks = new ArrayList<>(1);
+                }
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        dispatch(callback);
+        return this;
+    }
+
+    /**
+     * Cancels the request. A request still waiting in the queue is removed from it, one already
+     * handed to the Bluetooth stack runs to its end but its result is dropped.
+     *
+     * @param mayInterruptIfRunning ignored, a GATT operation can not be interrupted.
+     * @return false if the future had completed already.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final Runnable onCancel;
+        synchronized (this) {
+            onCancel = mOnCancel;
+        }
+        if (!finish(CANCELLED, null, new BleException(233, exceptionType, "request cancelled."))) {
+            return false;
+        }
+        if (onCancel != null) {
+            onCancel.run();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    /**
+     * @throws ExecutionException    if the request failed, see {@link #getException()} for the error.
+     * @throws CancellationException if the request was cancelled.
+     */
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (mState == PENDING) {
+            wait();
+        }
+        return getValue();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == PENDING) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getValue();
+    }
+
+    /**
+     * @return the error of a failed or cancelled request, null otherwise.
+     */
+    public synchronized BleException getException() {
+        return mException;
+    }
+
+    /**
+     * @return false if the future was cancelled already, the hook is then not kept.
+     */
+    synchronized boolean setOnCancel(Runnable onCancel) {
+        if (mState != PENDING) {
+            return false;
+        }
+        mOnCancel = onCancel;
+        return true;
+    }
+
+    /**
+     * @return false if the future had completed already.
+     */
+    boolean succeed(T value) {
+        return finish(SUCCEEDED, value, null);
+    }
+
+    /**
+     * @return false if the future had completed already.
+     */
+    boolean fail(BleException exception) {
+        return finish(FAILED, null, exception);
+    }
+
+    private boolean finish(int state, T value, BleException exception) {
+        final List<Callback<? super T>> callbacks;
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+            mState = state;
+            mValue = value;
+            mException = exception;
+            mOnCancel = null;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        if (callbacks != null) {
+            for (Callback<? super T> callback : callbacks) {
+                dispatch(callback);
+            }
+        }
+        return true;
+    }
+
+    private void dispatch(final Callback<? super T> callback) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final T value;
+                final BleException exception;
+                synchronized (BleFuture.this) {
+                    value = mValue;
+                    exception = mException;
+                }
+                if (exception == null) {
+                    callback.onSuccess(value);
+                } else {
+                    callback.onFailure(exception);
+                }
+            }
+        });
+    }
+
+    private T getValue() throws ExecutionException {
+        if (mState == CANCELLED) {
+            throw new CancellationException(mException.getDetailMessage());
+        }
+        if (mState == FAILED) {
+            throw new ExecutionException(mException.toString(), null);
+        }
+        return mValue;
+    }
+}
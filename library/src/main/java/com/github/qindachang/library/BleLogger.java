@@ -24,45 +24,158 @@ package com.github.qindachang.library;
 
 import android.util.Log;
 
+import java.io.File;
+
 /**
  * Created on 2017/1/9.
+ * <p>
+ * Besides plain messages every level takes a pattern with up to three {@code {}} placeholders, the
+ * message is then only built once the enable flag and the level let it through:
+ * <pre>
+ * BleLogger.d(enableLogger, TAG, "write {} bytes to {}", value.length, uuid);
+ * </pre>
+ * Messages go to logcat, or with {@link #startFileLogging(File)} to a file written from a background
+ * thread. The file path defers even the formatting to that thread, arguments must therefore not be
+ * changed after they were logged.
  *
  * @author Qin DaChang
  * @see <a href="https://github.com/qindachang">https://github.com/qindachang</a>
  */
 
-/* package */ class BleLogger {
+public class BleLogger {
+
+    public static final int DEFAULT_FILE_CAPACITY = 4096;
+    public static final long DEFAULT_MAX_FILE_BYTES = 4 * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static volatile int sLevel = Log.VERBOSE;
+    private static volatile LogFileWriter sFileWriter;
+
+    /**
+     * @param level the lowest priority that is logged, one of the {@link Log} priorities, e.g.
+     *              {@link Log#INFO}. Defaults to {@link Log#VERBOSE}.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(boolean enable, int priority) {
+        return enable && priority >= sLevel;
+    }
+
+    public static void startFileLogging(File file) {
+        startFileLogging(file, DEFAULT_FILE_CAPACITY, DEFAULT_MAX_FILE_BYTES);
+    }
+
+    /**
+     * Sends messages to the file instead of logcat, until {@link #stopFileLogging()} or a write error.
+     *
+     * @param capacity     messages buffered for the writer thread, the oldest are dropped when it
+     *                     falls behind.
+     * @param maxFileBytes size at which the file is moved to {@code file.1} and a new one started,
+     *                     0 to let it grow.
+     */
+    public static synchronized void startFileLogging(File file, int capacity, long maxFileBytes) {
+        stopFileLogging();
+        sFileWriter = new LogFileWriter(file, capacity, maxFileBytes);
+    }
+
+    /**
+     * Writes the buffered messages, stops the writer thread and logs to logcat again.
+     */
+    public static synchronized void stopFileLogging() {
+        final LogFileWriter writer = sFileWriter;
+        sFileWriter = null;
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private static synchronized void dropFileWriter(LogFileWriter writer) {
+        if (sFileWriter == writer) {
+            sFileWriter = null;
+        }
+    }
 
     public static void v(boolean enable, final String tag, final String text) {
-        if (enable)
-            Log.v(tag, text);
+        log(enable, Log.VERBOSE, tag, text, 0, null, null, null, null);
+    }
+
+    public static void v(boolean enable, final String tag, final String pattern, Object arg) {
+        log(enable, Log.VERBOSE, tag, pattern, 1, arg, null, null, null);
+    }
+
+    public static void v(boolean enable, final String tag, final String pattern, Object arg0, Object arg1) {
+        log(enable, Log.VERBOSE, tag, pattern, 2, arg0, arg1, null, null);
+    }
+
+    public static void v(boolean enable, final String tag, final String pattern, Object arg0, Object arg1, Object arg2) {
+        log(enable, Log.VERBOSE, tag, pattern, 3, arg0, arg1, arg2, null);
     }
 
     public static void d(boolean enable, final String tag, final String text) {
-        if (enable) {
-            Log.d(tag, text);
-        }
+        log(enable, Log.DEBUG, tag, text, 0, null, null, null, null);
+    }
+
+    public static void d(boolean enable, final String tag, final String pattern, Object arg) {
+        log(enable, Log.DEBUG, tag, pattern, 1, arg, null, null, null);
+    }
+
+    public static void d(boolean enable, final String tag, final String pattern, Object arg0, Object arg1) {
+        log(enable, Log.DEBUG, tag, pattern, 2, arg0, arg1, null, null);
+    }
+
+    public static void d(boolean enable, final String tag, final String pattern, Object arg0, Object arg1, Object arg2) {
+        log(enable, Log.DEBUG, tag, pattern, 3, arg0, arg1, arg2, null);
     }
 
     public static void i(boolean enable, final String tag, final String text) {
-        if (enable)
-            Log.i(tag, text);
+        log(enable, Log.INFO, tag, text, 0, null, null, null, null);
+    }
+
+    public static void i(boolean enable, final String tag, final String pattern, Object arg) {
+        log(enable, Log.INFO, tag, pattern, 1, arg, null, null, null);
+    }
+
+    public static void i(boolean enable, final String tag, final String pattern, Object arg0, Object arg1) {
+        log(enable, Log.INFO, tag, pattern, 2, arg0, arg1, null, null);
     }
 
     public static void w(boolean enable, final String tag, final String text) {
-        if (enable) {
-            Log.w(tag, text);
-        }
+        log(enable, Log.WARN, tag, text, 0, null, null, null, null);
+    }
+
+    public static void w(boolean enable, final String tag, final String pattern, Object arg) {
+        log(enable, Log.WARN, tag, pattern, 1, arg, null, null, null);
+    }
+
+    public static void w(boolean enable, final String tag, final String pattern, Object arg0, Object arg1) {
+        log(enable, Log.WARN, tag, pattern, 2, arg0, arg1, null, null);
     }
 
     public static void e(boolean enable, final String tag, final String text) {
-        if (enable)
-            Log.e(tag, text);
+        log(enable, Log.ERROR, tag, text, 0, null, null, null, null);
+    }
+
+    public static void e(boolean enable, final String tag, final String pattern, Object arg) {
+        log(enable, Log.ERROR, tag, pattern, 1, arg, null, null, null);
+    }
+
+    public static void e(boolean enable, final String tag, final String pattern, Object arg0, Object arg1) {
+        log(enable, Log.ERROR, tag, pattern, 2, arg0, arg1, null, null);
     }
 
     public static void e(boolean enable, final String tag, final String text, final Throwable e) {
-        if (enable)
-            Log.e(tag, text, e);
+        log(enable, Log.ERROR, tag, text, 0, null, null, null, e);
+    }
+
+    public static void e(boolean enable, final String tag, final String pattern, Object arg, final Throwable e) {
+        log(enable, Log.ERROR, tag, pattern, 1, arg, null, null, e);
     }
 
     public static void wtf(boolean enable, final String tag, final String text) {
@@ -76,4 +189,66 @@ import android.util.Log;
             Log.wtf(tag, text, e);
         }
     }
+
+    private static void log(boolean enable, int priority, String tag, String pattern, int argCount,
+                            Object arg0, Object arg1, Object arg2, Throwable throwable) {
+        if (!enable || priority < sLevel) {
+            return;
+        }
+        final LogFileWriter fileWriter = sFileWriter;
+        if (fileWriter != null) {
+            if (fileWriter.add(priority, tag, pattern, argCount, arg0, arg1, arg2, throwable)) {
+                return;
+            }
+            // The writer stopped on a write error, back to logcat.
+            dropFileWriter(fileWriter);
+        }
+        String message = pattern;
+        if (argCount > 0) {
+            final StringBuilder builder = new StringBuilder(pattern.length() + 32);
+            appendMessage(builder, pattern, argCount, arg0, arg1, arg2);
+            message = builder.toString();
+        }
+        if (throwable != null) {
+            message = message + '\n' + Log.getStackTraceString(throwable);
+        }
+        Log.println(priority, tag, message);
+    }
+
+    /**
+     * Replaces the {@code {}} placeholders of the pattern with the arguments in order. Byte arrays are
+     * written in hex, placeholders without an argument are kept.
+     */
+    static void appendMessage(StringBuilder builder, String pattern, int argCount,
+                              Object arg0, Object arg1, Object arg2) {
+        if (pattern == null) {
+            builder.append("null");
+            return;
+        }
+        int start = 0;
+        for (int arg = 0; arg < argCount; arg++) {
+            final int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            builder.append(pattern, start, placeholder);
+            appendArg(builder, arg == 0 ? arg0 : arg == 1 ? arg1 : arg2);
+            start = placeholder + 2;
+        }
+        builder.append(pattern, start, pattern.length());
+    }
+
+    private static void appendArg(StringBuilder builder, Object arg) {
+        if (arg instanceof byte[]) {
+            final byte[] bytes = (byte[]) arg;
+            for (int i = 0; i < bytes.length; i++) {
+                if (i > 0) {
+                    builder.append('-');
+                }
+                builder.append(HEX[(bytes[i] >> 4) & 0x0F]).append(HEX[bytes[i] & 0x0F]);
+            }
+        } else {
+            builder.append(arg);
+        }
+    }
 }
@@ -30,10 +30,12 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.ParcelUuid;
 
@@ -44,23 +46,21 @@ import com.github.qindachang.library.exception.ConnBleException;
 import com.github.qindachang.library.exception.ReadBleException;
 import com.github.qindachang.library.exception.ScanBleException;
 import com.github.qindachang.library.exception.WriteBleException;
+import com.github.qindachang.library.scanner.AdaptiveScanScheduler;
 import com.github.qindachang.library.scanner.BluetoothLeScannerCompat;
 import com.github.qindachang.library.scanner.ScanCallback;
 import com.github.qindachang.library.scanner.ScanFilter;
 import com.github.qindachang.library.scanner.ScanResult;
 import com.github.qindachang.library.scanner.ScanSettings;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
 
@@ -73,12 +73,18 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
     private static final UUID CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
     private static final UUID PERIPHERAL_PREFERRED_CONNECTION_PARAMETERS_UUID = UUID.fromString("00002A04-0000-1000-8000-00805f9b34fb");
 
+    private static final int WRITE_BUSY_RETRY_DELAY = 5;
+    private static final int MAX_BUSY_RETRIES = 5;
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER_SIZE = 3;
+
     private boolean isStopScanAfterConnected;
     private boolean isScanning;
     private boolean mConnected;
+    /** A connect was requested and not given up with disconnect() or close(), its timers may be pending. */
+    private boolean mConnectionOpen;
     private boolean mServiceDiscovered;
     private boolean mRetryConnectEnable;
-    private int mRetryConnectCount = 1;
     private int connectTimeoutMillis;
     private int serviceTimeoutMillis;
 
@@ -86,11 +92,15 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
     private double connIntervalMax;
     private int slaveLatency;
     private int connSupervisionTimeout;
-    private int autoQueueInterval = 400;
 
     private int queueDelayTime;
     private boolean enableQueueDelay;
     private boolean enableLogger;
+    private int writeWithoutResponseWindow;
+    private int preferredMtu;
+    private int requestTimeout = BluetoothConfig.DEFAULT_REQUEST_TIMEOUT;
+    private int requestTimeoutsBeforeReconnect = BluetoothConfig.DEFAULT_REQUEST_TIMEOUTS_BEFORE_RECONNECT;
+    private int mMtu = DEFAULT_MTU;
 
     private boolean isReadRssi;
 
@@ -99,23 +109,74 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
 
     private Context mContext;
 
-    private BluetoothGatt mBluetoothGatt;
+    private GattTransport mBluetoothGatt;
+    private GattTransport.Factory mTransportFactory = AndroidGattTransport.FACTORY;
     private ConnParameters mConnParameters = new ConnParameters();
 
     private RequestQueue mRequestQueue = new RequestQueue();
-    private Set<LeListener> mListenerList = new LinkedHashSet<>();
+    private QueuePacer mPacer = new QueuePacer(Request.Type.values().length);
+    private Map<String, QueuePacer> mPacers = new HashMap<>();
+    private LeListenerRegistry mListeners = new LeListenerRegistry();
+    private ReconnectEngine mReconnectEngine = new ReconnectEngine();
+    private GattServiceCache mServiceCache;
+    private final List<Runnable> mDeferredRequests = new ArrayList<>();
+    /** Discovery of a device with cached services is on its way, requests for them are held back. */
+    private volatile boolean mDeferRequests;
+    private final BleMetrics mMetrics = BleMetrics.getDefault();
+    /** Start times of the operations timed for {@link BleMetrics}, 0 when not timed. */
+    private long mConnectStartTime;
+    private long mDiscoverStartTime;
+    private long mRssiStartTime;
 
     private int readRssiIntervalMillisecond = 1000;
-    private Timer mTimer;
-    private TimerTask mTimerTask;
 
     private Handler mHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mHandlerThread;
+    private Executor mCallbackExecutor;
+    /** Runs the callbacks of {@link BleFuture}s where the listeners would run. */
+    private final Executor mFutureExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            runOnCallbackThread(command);
+        }
+    };
 
+    /**
+     * @throws IllegalStateException if the callback thread changes while scanning or while a
+     *                               connection is open, its pending timers could not be cancelled any more.
+     */
     @Override
     public void setConfig(BluetoothConfig config) {
+        if (config.getCallbackOnBackgroundThread() != (mHandlerThread != null) && (isScanning || mConnectionOpen)) {
+            throw new IllegalStateException("callback thread cannot change while scanning or connected.");
+        }
         queueDelayTime = config.getQueueDelayTime();
         enableQueueDelay = config.getEnableQueueDelay();
         enableLogger = config.getEnableLogger();
+        writeWithoutResponseWindow = config.getWriteWithoutResponseWindow();
+        preferredMtu = config.getMtu();
+        requestTimeout = config.getRequestTimeout();
+        requestTimeoutsBeforeReconnect = config.getRequestTimeoutsBeforeReconnect();
+        mCallbackExecutor = config.getCallbackExecutor();
+        mServiceCache = config.getServiceCacheDirectory() == null ? null
+                : new GattServiceCache(config.getServiceCacheDirectory(), enableLogger);
+        mTransportFactory = config.getGattTransportFactory() == null ? AndroidGattTransport.FACTORY
+                : config.getGattTransportFactory();
+        setCallbackOnBackgroundThread(config.getCallbackOnBackgroundThread());
+    }
+
+    private void setCallbackOnBackgroundThread(boolean enable) {
+        synchronized (BleManager.class) {
+            if (enable && mHandlerThread == null) {
+                mHandlerThread = new HandlerThread(TAG);
+                mHandlerThread.start();
+                mHandler = new Handler(mHandlerThread.getLooper());
+            } else if (!enable && mHandlerThread != null) {
+                mHandlerThread.quitSafely();
+                mHandlerThread = null;
+                mHandler = new Handler(Looper.getMainLooper());
+            }
+        }
     }
 
     @Override
@@ -180,12 +241,14 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
         }
     }
 
-    private static boolean isAndroidMainThread() {
-        return Looper.myLooper() == Looper.getMainLooper();
+    private boolean isCallbackThread() {
+        return Looper.myLooper() == mHandler.getLooper();
     }
 
-    private void runOnUiThread(Runnable runnable) {
-        if (isAndroidMainThread()) {
+    private void runOnCallbackThread(Runnable runnable) {
+        if (mCallbackExecutor != null) {
+            mCallbackExecutor.execute(runnable);
+        } else if (isCallbackThread()) {
             runnable.run();
         } else {
             mHandler.post(runnable);
@@ -199,29 +262,29 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
                 BleLogger.e(enableLogger, TAG, "please connected bluetooth then clear cache.");
                 return false;
             }
-            try {
-                Method e = BluetoothGatt.class.getMethod("refresh", new Class[0]);
-                if (e != null) {
-                    boolean success = ((Boolean) e.invoke(mBluetoothGatt, new Object[0])).booleanValue();
-                    BleLogger.i(enableLogger, TAG, "refresh Device Cache: " + success);
-                    return success;
-                }
-            } catch (Exception exception) {
-                BleLogger.e(enableLogger, TAG, "An exception occured while refreshing device", exception);
+            if (mServiceCache != null) {
+                mServiceCache.invalidate(mBluetoothGatt.getDevice().getAddress());
             }
-            return false;
+            boolean success = mBluetoothGatt.refresh();
+            BleLogger.i(enableLogger, TAG, "refresh Device Cache: {}", success);
+            return success;
         }
     }
 
     public boolean addLeListenerList(LeListener leListener) {
-        return mListenerList.add(leListener);
+        return mListeners.add(leListener);
     }
 
     private List<String> filterDeviceNameList = new ArrayList<>();
     private List<String> filterDeviceAddressList = new ArrayList<>();
     private List<UUID> filerServiceUUIDList = new ArrayList<>();
-    private int scanPeriod = 10000;
+    /** Scan period of a normal scan unless set, an adaptive scan runs until stopped unless set. */
+    private static final int DEFAULT_SCAN_PERIOD = 10000;
+
+    private int scanPeriod;
     private int reportDelayMillis;
+    private boolean adaptiveScan;
+    private AdaptiveScanScheduler mAdaptiveScanScheduler;
 
     @Override
     public BleManager setScanWithDeviceName(String deviceName) {
@@ -273,6 +336,10 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
         return this;
     }
 
+    /**
+     * @param millisecond time after which {@link #scan()} stops by itself. 0 restores the default:
+     *                    10 s for a normal scan, no limit for an adaptive scan.
+     */
     @Override
     public BleManager setScanPeriod(int millisecond) {
         this.scanPeriod = millisecond;
@@ -285,6 +352,17 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
         return this;
     }
 
+    /**
+     * Runs the next scans through an {@link AdaptiveScanScheduler}. An adaptive scan is meant to run
+     * in the background: it keeps running until {@link #stopScan()}, unless a period was set with
+     * {@link #setScanPeriod(int)}.
+     */
+    @Override
+    public BleManager setAdaptiveScan(boolean adaptiveScan) {
+        this.adaptiveScan = adaptiveScan;
+        return this;
+    }
+
     @Override
     public void scan() {
         scan(filterDeviceNameList, filterDeviceAddressList, filerServiceUUIDList, scanPeriod, reportDelayMillis);
@@ -317,33 +395,45 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
             filters.add(builder);
         }
 
-        scannerCompat.startScan(filters, scanSettings, scanCallback);
-
-        int SCAN_DURATION = scanPeriod;
-        if (SCAN_DURATION == 0) {
-            SCAN_DURATION = 10000;
-        }
         isScanning = true;
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (isScanning) {
-                    stopScan();
-                }
+        if (adaptiveScan) {
+            mAdaptiveScanScheduler = new AdaptiveScanScheduler(scannerCompat, filters, scanSettings, scanCallback, mHandler);
+            mAdaptiveScanScheduler.start();
+            // An adaptive scan is meant to run in the background, it only stops by itself when given a period
+            if (scanPeriod > 0) {
+                mHandler.postDelayed(mScanTimeoutRunnable, scanPeriod);
             }
-        }, SCAN_DURATION);
+            return;
+        }
+
+        scannerCompat.startScan(filters, scanSettings, scanCallback, mHandler);
+
+        mHandler.postDelayed(mScanTimeoutRunnable, scanPeriod > 0 ? scanPeriod : DEFAULT_SCAN_PERIOD);
     }
 
+    private final Runnable mScanTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isScanning) {
+                stopScan();
+            }
+        }
+    };
+
     @Override
     public void stopScan() {
         if (isScanning) {
-            final BluetoothLeScannerCompat scanner = BluetoothLeScannerCompat.getScanner();
-            scanner.stopScan(scanCallback);
+            mHandler.removeCallbacks(mScanTimeoutRunnable);
+            if (mAdaptiveScanScheduler != null) {
+                mAdaptiveScanScheduler.stop();
+                mAdaptiveScanScheduler = null;
+            } else {
+                final BluetoothLeScannerCompat scanner = BluetoothLeScannerCompat.getScanner();
+                scanner.stopScan(scanCallback);
+            }
             isScanning = false;
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeScanListener) {
-                    ((OnLeScanListener) leListener).onScanCompleted();
-                }
+            for (OnLeScanListener leListener : mListeners.getScanListeners()) {
+                leListener.onScanCompleted();
             }
             BleLogger.d(enableLogger, TAG, "bluetooth le scan has stop.");
         }
@@ -363,30 +453,41 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
     private ScanCallback scanCallback = new ScanCallback() {
         @Override
         public void onScanResult(final int callbackType, final ScanResult result) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeScanListener) {
-                    ((OnLeScanListener) leListener).onScanResult(result.getDevice(), result.getRssi(), result.getScanRecord());
+            runOnCallbackThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (OnLeScanListener leListener : mListeners.getScanListeners()) {
+                        leListener.onScanResult(result.getDevice(), result.getRssi(), result.getScanRecord());
+                    }
                 }
-            }
+            });
         }
 
         @Override
-        public void onBatchScanResults(final List<ScanResult> results) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeScanListener) {
-                    ((OnLeScanListener) leListener).onBatchScanResults(results);
+        public void onBatchScanResults(List<ScanResult> batch) {
+            // The scanner refills the list with the next batch, the listeners may run later.
+            final List<ScanResult> results = new ArrayList<>(batch);
+            runOnCallbackThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (OnLeScanListener leListener : mListeners.getScanListeners()) {
+                        leListener.onBatchScanResults(results);
+                    }
                 }
-            }
+            });
         }
 
         @Override
         public void onScanFailed(final int errorCode) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeScanListener) {
-                    ((OnLeScanListener) leListener).onScanFailed(
-                            new ScanBleException(errorCode, BleException.SCAN));
+            runOnCallbackThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (OnLeScanListener leListener : mListeners.getScanListeners()) {
+                        leListener.onScanFailed(
+                                new ScanBleException(errorCode, BleException.SCAN));
+                    }
                 }
-            }
+            });
         }
     };
 
@@ -410,57 +511,139 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
 
     @Override
     public BleManager setRetryConnectCount(int retryConnectCount) {
-        mRetryConnectCount = retryConnectCount;
+        mReconnectEngine.setMaxAttempts(retryConnectCount);
         return this;
     }
 
     @Override
     public boolean connect(boolean autoConnect, final BluetoothDevice device) {
+        return connect(autoConnect, device, ConnectScheduler.PRIORITY_NORMAL);
+    }
+
+    @Override
+    public boolean connect(boolean autoConnect, final BluetoothDevice device, int priority) {
+        mReconnectEngine.reset();
+        if (!connectInternal(autoConnect, device, priority)) {
+            return false;
+        }
+        mConnectionOpen = true;
+        return true;
+    }
+
+    private boolean connectInternal(boolean autoConnect, final BluetoothDevice device, int priority) {
         mAutoConnect = autoConnect;
         mBluetoothDevice = device;
         if (mBluetoothDevice == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeConnectListener) {
-                    ((OnLeConnectListener) leListener).onDeviceConnectFail(
-                            new ConnBleException(233, BleException.CONNECT,
-                                    "bluetoothDevice.connectGatt(..) on a null object reference. check bluetoothDevice object is not null.")
-                    );
-                }
+            for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+                leListener.onDeviceConnectFail(
+                        new ConnBleException(233, BleException.CONNECT,
+                                "bluetoothDevice.connectGatt(..) on a null object reference. check bluetoothDevice object is not null.")
+                );
             }
             return false;
         }
         if (mConnected) {
             BleLogger.d(enableLogger, TAG, "Bluetooth has been connected. connect false.");
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeConnectListener) {
-                    ((OnLeConnectListener) leListener).onDeviceConnectFail(
-                            new ConnBleException(0, BleException.CONNECT, "Bluetooth has been connected. connect false."));
-                }
+            for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+                leListener.onDeviceConnectFail(
+                        new ConnBleException(0, BleException.CONNECT, "Bluetooth has been connected. connect false."));
             }
             return false;
         }
+        if (mServiceCache != null) {
+            mServiceCache.preload(mBluetoothDevice.getAddress());
+        }
         if (mBluetoothGatt != null) {
             BleLogger.d(enableLogger, TAG, "The BluetoothGatt already exist, set it close() and null.");
             mBluetoothGatt.close();
             mBluetoothGatt = null;
             mConnected = false;
         }
+        mPacer = getQueuePacer(device.getAddress());
+        mMtu = DEFAULT_MTU;
+
+        if (autoConnect) {
+            startConnect(true, device);
+            return true;
+        }
+        // The scheduler gives the attempt up after the connect timeout of this manager.
+        final boolean queued = ConnectScheduler.getDefault().enqueue(device.getAddress(), priority, connectTimeoutMillis,
+                new ConnectScheduler.ConnectTask() {
+                    @Override
+                    public boolean connect() {
+                        if (mBluetoothDevice != device || mConnected) {
+                            return false;
+                        }
+                        startConnect(false, device);
+                        return true;
+                    }
+
+                    @Override
+                    public void onTimeout() {
+                        onConnectTimeout(device);
+                    }
+                });
+        if (!queued) {
+            BleLogger.e(enableLogger, TAG, "too many pending connects, connect false.");
+            runOnCallbackThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+                        leListener.onDeviceConnectFail(
+                                new ConnBleException(233, BleException.CONNECT, "too many pending connects, connect false."));
+                    }
+                }
+            });
+            return false;
+        }
+        return true;
+    }
+
+    private void startConnect(boolean autoConnect, BluetoothDevice device) {
         BleLogger.d(enableLogger, TAG, "create new device connection for BluetoothGatt. ");
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            mBluetoothGatt = device.connectGatt(mContext, autoConnect, mGattCallback, TRANSPORT_LE);
-        } else {
-            mBluetoothGatt = device.connectGatt(mContext, autoConnect, mGattCallback);
+        mConnectStartTime = mMetrics.startTime();
+        mBluetoothGatt = mTransportFactory.connect(mContext, device, autoConnect, TRANSPORT_LE, mGattCallback);
+        for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+            leListener.onDeviceConnecting();
         }
-        for (LeListener leListener : mListenerList) {
-            if (leListener instanceof OnLeConnectListener) {
-                ((OnLeConnectListener) leListener).onDeviceConnecting();
-            }
+
+        mHandler.removeCallbacks(mConnectTimeoutRunnable);
+        // Direct connects are timed by the ConnectScheduler.
+        if (autoConnect && connectTimeoutMillis > 0) {
+            mHandler.postDelayed(mConnectTimeoutRunnable, connectTimeoutMillis);
         }
+    }
 
-        checkConnected();
+    private void onConnectTimeout(BluetoothDevice device) {
+        if (mBluetoothDevice != device || mConnected) {
+            return;
+        }
+        BleLogger.e(enableLogger, TAG, "connect timeout, close BluetoothGatt.");
+        mHandler.removeCallbacks(mConnectTimeoutRunnable);
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        scheduleReconnect(ReconnectEngine.STATUS_CONNECT_TIMEOUT);
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+                    leListener.onDeviceConnectFail(
+                            new ConnBleException(BleException.STATUS_TIMEOUT, BleException.CONNECT, "connect timeout."));
+                }
+            }
+        });
+    }
 
-        return true;
+    private QueuePacer getQueuePacer(String address) {
+        QueuePacer pacer = mPacers.get(address);
+        if (pacer == null) {
+            pacer = new QueuePacer(Request.Type.values().length);
+            mPacers.put(address, pacer);
+        }
+        return pacer;
     }
 
     @Override
@@ -472,22 +655,108 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
     }
 
     BluetoothGatt getBluetoothGatt() {
-        return mBluetoothGatt;
+        final GattTransport gatt = mBluetoothGatt;
+        return gatt != null ? gatt.getBluetoothGatt() : null;
+    }
+
+    private final Runnable mConnectTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mConnected && mBluetoothDevice != null) {
+                ConnectScheduler.getDefault().onFinished(mBluetoothDevice.getAddress());
+                onConnectTimeout(mBluetoothDevice);
+            }
+        }
+    };
+
+    private final Runnable mServiceTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnected && !mServiceDiscovered && mBluetoothGatt != null) {
+                BleLogger.e(enableLogger, TAG, "services discovered timeout, close BluetoothGatt.");
+                closeAndReconnect(ReconnectEngine.STATUS_SERVICE_TIMEOUT, "connection closed after services discovered timeout.");
+            }
+        }
+    };
+
+    /**
+     * Several requests in a row got no GATT callback, the connection is stuck.
+     */
+    private void onRequestsTimedOut() {
+        BleLogger.e(enableLogger, TAG, "{} requests timed out in a row, close BluetoothGatt.", requestTimeoutsBeforeReconnect);
+        closeAndReconnect(ReconnectEngine.STATUS_REQUEST_TIMEOUT, "connection closed after request timeouts.");
     }
 
-    private void checkConnected() {
-        if (mRetryConnectEnable && mRetryConnectCount > 0 && connectTimeoutMillis > 0) {
-            mHandler.postDelayed(new Runnable() {
+    /**
+     * Closes a stuck connection, fails what is still queued and lets the {@link ReconnectEngine}
+     * decide about reconnecting.
+     *
+     * @param status        reason given to the reconnect engine.
+     * @param detailMessage error of the failed requests.
+     */
+    private void closeAndReconnect(int status, String detailMessage) {
+        final boolean wasConnected = mConnected;
+        mBluetoothGatt.close();
+        mBluetoothGatt = null;
+        mConnected = false;
+        mServiceDiscovered = false;
+        mMtu = DEFAULT_MTU;
+        mHandler.removeCallbacks(mServiceTimeoutRunnable);
+        stopReadRssi();
+        mRequestQueue.failAll(detailMessage);
+        runDeferredRequests();
+        scheduleReconnect(status);
+        if (wasConnected) {
+            // A closed BluetoothGatt reports no disconnect of its own.
+            runOnCallbackThread(new Runnable() {
                 @Override
                 public void run() {
-                    boolean connected = getConnected();
-                    if (!connected) {
-                        connect(mAutoConnect, mBluetoothDevice);
-                        mRetryConnectCount = mRetryConnectCount - 1;
+                    for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+                        leListener.onDeviceDisconnected();
                     }
                 }
-            }, connectTimeoutMillis);
+            });
+        }
+    }
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mConnected && mBluetoothDevice != null) {
+                BleLogger.d(enableLogger, TAG, "reconnect device.");
+                connectInternal(mAutoConnect, mBluetoothDevice, ConnectScheduler.PRIORITY_HIGH);
+            }
+        }
+    };
+
+    /**
+     * Lets the {@link ReconnectEngine} decide whether and when the lost connection is tried again.
+     * Only one reconnect is ever pending.
+     */
+    private void scheduleReconnect(int status) {
+        mHandler.removeCallbacks(mReconnectRunnable);
+        if (!mRetryConnectEnable || mBluetoothDevice == null) {
+            return;
         }
+        final long delay = mReconnectEngine.onFailure(status);
+        if (delay == ReconnectEngine.NO_RECONNECT) {
+            BleLogger.d(enableLogger, TAG, "no reconnect for status {}.", status);
+            return;
+        }
+        BleLogger.d(enableLogger, TAG, "reconnect in {} ms for status {}.", delay, status);
+        mHandler.postDelayed(mReconnectRunnable, delay);
+    }
+
+    private void cancelReconnect() {
+        mReconnectEngine.stop();
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mHandler.removeCallbacks(mConnectTimeoutRunnable);
+        mHandler.removeCallbacks(mServiceTimeoutRunnable);
+    }
+
+    @Override
+    public ReconnectEngine getReconnectEngine() {
+        return mReconnectEngine;
     }
 
     @Override
@@ -501,72 +770,54 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
     }
 
     private boolean enableNotification(boolean enable, BluetoothGattCharacteristic characteristic) {
-        final BluetoothGatt gatt = mBluetoothGatt;
+        final GattTransport gatt = mBluetoothGatt;
         if (gatt == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeNotificationListener) {
-                    ((OnLeNotificationListener) leListener).onFailed(
-                            new BleException(233, BleException.NOTIFICATION,
-                                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
-                }
-            }
-            mRequestQueue.next();
+            failStart(new BleException(233, BleException.NOTIFICATION,
+                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
             return false;
         }
         if (characteristic == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeNotificationListener) {
-                    ((OnLeNotificationListener) leListener).onFailed(
-                            new BleException(233, BleException.NOTIFICATION,
-                                    "characteristic uuid is null."));
-                }
-            }
-            mRequestQueue.next();
+            failStart(new BleException(233, BleException.NOTIFICATION,
+                    "characteristic uuid is null."));
             return false;
         }
         final int properties = characteristic.getProperties();
         if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
-            BleLogger.d(enableLogger, TAG, "uuid:" + characteristic.getUuid() + ", does not support notification");
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeNotificationListener) {
-                    ((OnLeNotificationListener) leListener).onFailed(
-                            new BleException(233, BleException.NOTIFICATION,
-                                    "characteristic uuid : " + characteristic.getUuid() + ", does not support notification"));
-                }
-            }
-            mRequestQueue.next();
+            BleLogger.d(enableLogger, TAG, "uuid:{}, does not support notification", characteristic.getUuid());
+            failStart(new BleException(233, BleException.NOTIFICATION,
+                    "characteristic uuid : " + characteristic.getUuid() + ", does not support notification"));
             return false;
         }
         gatt.setCharacteristicNotification(characteristic, enable);
-        BleLogger.d(enableLogger, TAG, "setCharacteristicNotification uuid:" + characteristic.getUuid() + " ," + enable);
+        BleLogger.d(enableLogger, TAG, "setCharacteristicNotification uuid:{} ,{}", characteristic.getUuid(), enable);
         final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
         if (descriptor != null) {
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            BleLogger.d(enableLogger, TAG, "writeDescriptor(notification), " + CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
-            return gatt.writeDescriptor(descriptor);
+            BleLogger.d(enableLogger, TAG, "writeDescriptor(notification), {}", CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
+            return mRequestQueue.onStarted(gatt.writeDescriptor(descriptor));
         } else {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeNotificationListener) {
-                    ((OnLeNotificationListener) leListener).onFailed(
-                            new BleException(233, BleException.NOTIFICATION,
-                                    "characteristic uuid : " + characteristic.getUuid() + ", does not contain descriptor."));
-                }
-            }
-            mRequestQueue.next();
+            failStart(new BleException(233, BleException.NOTIFICATION,
+                    "characteristic uuid : " + characteristic.getUuid() + ", does not contain descriptor."));
             return false;
         }
     }
 
     @Override
-    public void enableNotifications(boolean enable, UUID serviceUUID, UUID[] characteristicUUIDs) {
+    public void enableNotifications(final boolean enable, final UUID serviceUUID, final UUID[] characteristicUUIDs) {
         if (mBluetoothGatt == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeNotificationListener) {
-                    ((OnLeNotificationListener) leListener).onFailed(
-                            new BleException(233, BleException.NOTIFICATION,
-                                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
-                }
+            for (OnLeNotificationListener leListener : mListeners.getNotificationListeners()) {
+                leListener.onFailed(
+                        new BleException(233, BleException.NOTIFICATION,
+                                "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
+            }
+            return;
+        }
+        if (deferUntilDiscovered(serviceUUID, null, new Runnable() {
+            @Override
+            public void run() {
+                enableNotifications(enable, serviceUUID, characteristicUUIDs);
             }
+        })) {
             return;
         }
         BluetoothGattService service = mBluetoothGatt.getService(serviceUUID);
@@ -574,97 +825,75 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
             for (UUID characteristicUUID : characteristicUUIDs) {
                 BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
                 if (characteristic == null) {
-                    for (LeListener leListener : mListenerList) {
-                        if (leListener instanceof OnLeNotificationListener) {
-                            ((OnLeNotificationListener) leListener).onFailed(
-                                    new BleException(233, BleException.NOTIFICATION,
-                                            "can not find characteristic form given characteristic uuid : " + characteristicUUID +
-                                                    ", where in given service uuid : " + serviceUUID));
-                        }
+                    for (OnLeNotificationListener leListener : mListeners.getNotificationListeners()) {
+                        leListener.onFailed(
+                                new BleException(233, BleException.NOTIFICATION,
+                                        "can not find characteristic form given characteristic uuid : " + characteristicUUID +
+                                                ", where in given service uuid : " + serviceUUID));
                     }
                 } else {
                     mRequestQueue.addRequest(Request.newEnableNotificationsRequest(enable, characteristic));
                 }
             }
         } else {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeNotificationListener) {
-                    ((OnLeNotificationListener) leListener).onFailed(
-                            new BleException(233, BleException.NOTIFICATION,
-                                    "can not find service form given service uuid : " + serviceUUID.toString()));
-                }
+            for (OnLeNotificationListener leListener : mListeners.getNotificationListeners()) {
+                leListener.onFailed(
+                        new BleException(233, BleException.NOTIFICATION,
+                                "can not find service form given service uuid : " + serviceUUID.toString()));
             }
         }
     }
 
     private boolean enableIndication(boolean enable, BluetoothGattCharacteristic characteristic) {
-        final BluetoothGatt gatt = mBluetoothGatt;
+        final GattTransport gatt = mBluetoothGatt;
         if (gatt == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeIndicationListener) {
-                    ((OnLeIndicationListener) leListener).onFailed(
-                            new BleException(233, BleException.INDICATION,
-                                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
-                }
-            }
-            mRequestQueue.next();
+            failStart(new BleException(233, BleException.INDICATION,
+                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
             return false;
         }
         if (characteristic == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeIndicationListener) {
-                    ((OnLeIndicationListener) leListener).onFailed(
-                            new BleException(233, BleException.INDICATION,
-                                    "characteristic uuid is null."));
-                }
-            }
-            mRequestQueue.next();
+            failStart(new BleException(233, BleException.INDICATION,
+                    "characteristic uuid is null."));
             return false;
         }
         final int properties = characteristic.getProperties();
         if ((properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) == 0) {
-            BleLogger.e(enableLogger, TAG, "uuid:" + characteristic.getUuid() + ", does not support indication");
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeIndicationListener) {
-                    ((OnLeIndicationListener) leListener).onFailed(
-                            new BleException(233, BleException.INDICATION,
-                                    "characteristic uuid : " + characteristic.getUuid() + ", does not support indication."));
-                }
-            }
-            mRequestQueue.next();
+            BleLogger.e(enableLogger, TAG, "uuid:{}, does not support indication", characteristic.getUuid());
+            failStart(new BleException(233, BleException.INDICATION,
+                    "characteristic uuid : " + characteristic.getUuid() + ", does not support indication."));
             return false;
         }
         gatt.setCharacteristicNotification(characteristic, enable);
-        BleLogger.d(enableLogger, TAG, "setCharacteristicNotification uuid:" + characteristic.getUuid() + " ," + enable);
+        BleLogger.d(enableLogger, TAG, "setCharacteristicNotification uuid:{} ,{}", characteristic.getUuid(), enable);
         final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
         if (descriptor != null) {
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-            BleLogger.d(enableLogger, TAG, "writeDescriptor(indication), " + CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
-            return gatt.writeDescriptor(descriptor);
+            BleLogger.d(enableLogger, TAG, "writeDescriptor(indication), {}", CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
+            return mRequestQueue.onStarted(gatt.writeDescriptor(descriptor));
         } else {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeIndicationListener) {
-                    ((OnLeIndicationListener) leListener).onFailed(
-                            new BleException(233, BleException.INDICATION,
-                                    "characteristic uuid : " + characteristic.getUuid() + ", does not contain descriptor."));
-                }
-            }
-            mRequestQueue.next();
+            failStart(new BleException(233, BleException.INDICATION,
+                    "characteristic uuid : " + characteristic.getUuid() + ", does not contain descriptor."));
             return false;
         }
     }
 
     @Override
-    public void enableIndicates(boolean enable, UUID serviceUUID, UUID[] characteristicUUIDs) {
+    public void enableIndicates(final boolean enable, final UUID serviceUUID, final UUID[] characteristicUUIDs) {
         if (mBluetoothGatt == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeIndicationListener) {
-                    ((OnLeIndicationListener) leListener).onFailed(
-                            new BleException(233, BleException.INDICATION,
-                                    "BluetoothGatt object is null. check connect status and onServicesDiscovered.")
-                    );
-                }
+            for (OnLeIndicationListener leListener : mListeners.getIndicationListeners()) {
+                leListener.onFailed(
+                        new BleException(233, BleException.INDICATION,
+                                "BluetoothGatt object is null. check connect status and onServicesDiscovered.")
+                );
+            }
+            return;
+        }
+        if (deferUntilDiscovered(serviceUUID, null, new Runnable() {
+            @Override
+            public void run() {
+                enableIndicates(enable, serviceUUID, characteristicUUIDs);
             }
+        })) {
             return;
         }
         BluetoothGattService service = mBluetoothGatt.getService(serviceUUID);
@@ -672,88 +901,81 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
             for (UUID characteristicUUID : characteristicUUIDs) {
                 BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
                 if (characteristic == null) {
-                    for (LeListener leListener : mListenerList) {
-                        if (leListener instanceof OnLeIndicationListener) {
-                            ((OnLeIndicationListener) leListener).onFailed(
-                                    new BleException(233, BleException.INDICATION,
-                                            "can not find characteristic form given characteristic uuid : " + characteristicUUID +
-                                                    ", where in given service uuid : " + serviceUUID));
-                        }
+                    for (OnLeIndicationListener leListener : mListeners.getIndicationListeners()) {
+                        leListener.onFailed(
+                                new BleException(233, BleException.INDICATION,
+                                        "can not find characteristic form given characteristic uuid : " + characteristicUUID +
+                                                ", where in given service uuid : " + serviceUUID));
                     }
                 } else {
                     mRequestQueue.addRequest(Request.newEnableIndicationsRequest(enable, service.getCharacteristic(characteristicUUID)));
                 }
             }
         } else {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeIndicationListener) {
-                    ((OnLeIndicationListener) leListener).onFailed(
-                            new BleException(233, BleException.INDICATION,
-                                    "can not find service form given service uuid : " + serviceUUID.toString()
-                            )
-                    );
-                }
+            for (OnLeIndicationListener leListener : mListeners.getIndicationListeners()) {
+                leListener.onFailed(
+                        new BleException(233, BleException.INDICATION,
+                                "can not find service form given service uuid : " + serviceUUID.toString()
+                        )
+                );
             }
         }
     }
 
     @Override
-    public void writeBytesToCharacteristic(byte[] bytes, UUID serviceUUID, UUID characteristicUUID) {
+    public void writeBytesToCharacteristic(final byte[] bytes, final UUID serviceUUID, final UUID characteristicUUID) {
         if (mBluetoothGatt == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeWriteCharacteristicListener) {
-                    ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                            new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
-                                    "bluetoothGatt is null. check connect status and onServicesDiscovered.")
-                    );
-                }
+            for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                leListener.onFailed(
+                        new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
+                                "bluetoothGatt is null. check connect status and onServicesDiscovered.")
+                );
             }
             return;
         }
         if (serviceUUID == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeWriteCharacteristicListener) {
-                    ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                            new WriteBleException(233, BleException.WRITE_CHARACTERISTIC, "service uuid is null")
-                    );
-                }
+            for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                leListener.onFailed(
+                        new WriteBleException(233, BleException.WRITE_CHARACTERISTIC, "service uuid is null")
+                );
             }
             return;
         }
         if (characteristicUUID == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeWriteCharacteristicListener) {
-                    ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                            new WriteBleException(233, BleException.WRITE_CHARACTERISTIC, "characteristic uuid is null")
-                    );
-                }
+            for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                leListener.onFailed(
+                        new WriteBleException(233, BleException.WRITE_CHARACTERISTIC, "characteristic uuid is null")
+                );
+            }
+            return;
+        }
+        if (deferUntilDiscovered(serviceUUID, characteristicUUID, new Runnable() {
+            @Override
+            public void run() {
+                writeBytesToCharacteristic(bytes, serviceUUID, characteristicUUID);
             }
+        })) {
             return;
         }
         BluetoothGattService service = mBluetoothGatt.getService(serviceUUID);
         if (service != null) {
             BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
             if (characteristic == null) {
-                for (LeListener leListener : mListenerList) {
-                    if (leListener instanceof OnLeWriteCharacteristicListener) {
-                        ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                                new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
-                                        "can not find characteristic form given characteristic uuid : " + characteristicUUID +
-                                                ", where in given service uuid : " + serviceUUID));
-                    }
+                for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                    leListener.onFailed(
+                            new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
+                                    "can not find characteristic form given characteristic uuid : " + characteristicUUID +
+                                            ", where in given service uuid : " + serviceUUID));
                 }
             } else {
-                characteristic.setValue(bytes);
-                mRequestQueue.addRequest(Request.newWriteRequest(characteristic));
+                mRequestQueue.addRequest(Request.newWriteRequest(characteristic, bytes));
             }
         } else {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeWriteCharacteristicListener) {
-                    ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                            new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
-                                    "can not find service from given service uuid : " + serviceUUID.toString())
-                    );
-                }
+            for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                leListener.onFailed(
+                        new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
+                                "can not find service from given service uuid : " + serviceUUID.toString())
+                );
             }
         }
     }
@@ -774,11 +996,9 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
     @Override
     public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
         if (characteristic == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeWriteCharacteristicListener) {
-                    ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                            new WriteBleException(233, BleException.WRITE_CHARACTERISTIC, "characteristic is null"));
-                }
+            for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                leListener.onFailed(
+                        new WriteBleException(233, BleException.WRITE_CHARACTERISTIC, "characteristic is null"));
             }
             return;
         }
@@ -786,135 +1006,413 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
     }
 
 
-    private boolean write2Characteristic(BluetoothGattCharacteristic characteristic) {
-        final BluetoothGatt gatt = mBluetoothGatt;
+    private boolean write2Characteristic(Request request) {
+        final BluetoothGattCharacteristic characteristic = request.getCharacteristic();
+        final GattTransport gatt = mBluetoothGatt;
         if (gatt == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeWriteCharacteristicListener) {
-                    ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                            new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
-                                    "BluetoothGatt object is null. check connect status and onServicesDiscovered.")
-                    );
-                }
-            }
-            mRequestQueue.next();
+            failStart(new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
+                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
             return false;
         }
         if (characteristic == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeWriteCharacteristicListener) {
-                    ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                            new WriteBleException(233, BleException.WRITE_CHARACTERISTIC, "characteristic uuid is null.")
-                    );
-                }
-            }
-            mRequestQueue.next();
+            failStart(new WriteBleException(233, BleException.WRITE_CHARACTERISTIC, "characteristic uuid is null."));
             return false;
         }
         // Check characteristic property
         final int properties = characteristic.getProperties();
         if ((properties & (BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeWriteCharacteristicListener) {
-                    ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                            new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
-                                    "characteristic : " + characteristic.getUuid() + ", property not support write.")
-                    );
+            failStart(new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
+                    "characteristic : " + characteristic.getUuid() + ", property not support write."));
+            return false;
+        }
+        final byte[] chunk = request.getChunk(mMtu - ATT_HEADER_SIZE);
+        if (chunk != null) {
+            characteristic.setValue(chunk);
+        }
+        final boolean started = gatt.writeCharacteristic(characteristic);
+        if (started) {
+            request.onChunkSent();
+        }
+        return mRequestQueue.onStarted(started);
+    }
+
+    private static boolean isWriteWithoutResponse(Request request) {
+        if (request.type != Request.Type.WRITE || request.getCharacteristic() == null) {
+            return false;
+        }
+        final BluetoothGattCharacteristic characteristic = request.getCharacteristic();
+        return (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                && characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
+    /**
+     * Hands a Write Without Response packet to the stack without waiting for the queue.
+     *
+     * @return false if the stack is busy and the packet has to be sent again later.
+     */
+    private boolean writeWithoutResponse(Request request) {
+        final BluetoothGattCharacteristic characteristic = request.getCharacteristic();
+        final byte[] chunk = request.getChunk(mMtu - ATT_HEADER_SIZE);
+        if (chunk != null) {
+            characteristic.setValue(chunk);
+        }
+        final boolean started = mBluetoothGatt.writeCharacteristic(characteristic);
+        if (started) {
+            request.onChunkSent();
+        }
+        return started;
+    }
+
+    private void notifyWriteProgress(final BluetoothGattCharacteristic characteristic, final int sent, final int total) {
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                    leListener.onProgress(characteristic, sent, total);
                 }
             }
+        });
+    }
+
+    private void requestMtu() {
+        if (preferredMtu > DEFAULT_MTU && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mRequestQueue.addRequest(Request.newMtuRequest(preferredMtu));
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean requestMtu(int mtu) {
+        final GattTransport gatt = mBluetoothGatt;
+        if (gatt == null) {
+            BleLogger.e(enableLogger, TAG, "BluetoothGatt object is null, can not request mtu.");
             mRequestQueue.next();
             return false;
         }
+        BleLogger.d(enableLogger, TAG, "requestMtu {}", mtu);
+        return mRequestQueue.onStarted(gatt.requestMtu(mtu));
+    }
 
-        return gatt.writeCharacteristic(characteristic);
+    int getMtu() {
+        return mMtu;
     }
 
     @Override
-    public void readCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+    public void readCharacteristic(final UUID serviceUUID, final UUID characteristicUUID) {
         if (mBluetoothGatt == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeReadCharacteristicListener) {
-                    ((OnLeReadCharacteristicListener) leListener).onFailure(
-                            new ReadBleException(233, BleException.READ_CHARACTERISTIC,
-                                    "BluetoothGatt object is null. check connect status and onServicesDiscovered.")
-                    );
-                }
+            for (OnLeReadCharacteristicListener leListener : mListeners.getReadCharacteristicListeners()) {
+                leListener.onFailure(
+                        new ReadBleException(233, BleException.READ_CHARACTERISTIC,
+                                "BluetoothGatt object is null. check connect status and onServicesDiscovered.")
+                );
+            }
+            return;
+        }
+        if (deferUntilDiscovered(serviceUUID, characteristicUUID, new Runnable() {
+            @Override
+            public void run() {
+                readCharacteristic(serviceUUID, characteristicUUID);
             }
+        })) {
             return;
         }
         BluetoothGattService service = mBluetoothGatt.getService(serviceUUID);
         if (service != null) {
             BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
             if (characteristic == null) {
-                for (LeListener leListener : mListenerList) {
-                    if (leListener instanceof OnLeReadCharacteristicListener) {
-                        ((OnLeReadCharacteristicListener) leListener).onFailure(
-                                new ReadBleException(233, BleException.READ_CHARACTERISTIC,
-                                        "can not find characteristic form given characteristic uuid : " + characteristicUUID +
-                                                ", where in given service uuid : " + serviceUUID));
-                    }
+                for (OnLeReadCharacteristicListener leListener : mListeners.getReadCharacteristicListeners()) {
+                    leListener.onFailure(
+                            new ReadBleException(233, BleException.READ_CHARACTERISTIC,
+                                    "can not find characteristic form given characteristic uuid : " + characteristicUUID +
+                                            ", where in given service uuid : " + serviceUUID));
                 }
             } else {
                 mRequestQueue.addRequest(Request.newReadRequest(characteristic));
             }
         } else {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeReadCharacteristicListener) {
-                    ((OnLeReadCharacteristicListener) leListener).onFailure(
-                            new ReadBleException(233, BleException.READ_CHARACTERISTIC,
-                                    "can not find service form given service uuid : " + serviceUUID)
-                    );
-                }
+            for (OnLeReadCharacteristicListener leListener : mListeners.getReadCharacteristicListeners()) {
+                leListener.onFailure(
+                        new ReadBleException(233, BleException.READ_CHARACTERISTIC,
+                                "can not find service form given service uuid : " + serviceUUID)
+                );
             }
         }
     }
 
-    private boolean read2Characteristic(BluetoothGattCharacteristic characteristic) {
-        final BluetoothGatt gatt = mBluetoothGatt;
-        if (gatt == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeReadCharacteristicListener) {
-                    ((OnLeReadCharacteristicListener) leListener).onFailure(
-                            new ReadBleException(233, BleException.READ_CHARACTERISTIC,
-                                    "BluetoothGatt object is null. check connect status and onServicesDiscovered.")
-                    );
-                }
-            }
-            mRequestQueue.next();
-            return false;
+    /**
+     * Stores the discovered service table under the version read from the device.
+     */
+    private void storeServiceCache(final GattTransport gatt) {
+        if (mServiceCache == null) {
+            return;
         }
-        if (characteristic == null) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeReadCharacteristicListener) {
-                    ((OnLeReadCharacteristicListener) leListener).onFailure(
-                            new ReadBleException(233, BleException.READ_CHARACTERISTIC,
-                                    "characteristic uuid is null.")
-                    );
-                }
-            }
-            mRequestQueue.next();
-            return false;
+        final String address = gatt.getDevice().getAddress();
+        final List<BluetoothGattService> services = gatt.getServices();
+        final UUID[] version = GattServiceCache.findVersionCharacteristic(services);
+        if (version == null) {
+            mServiceCache.put(address, GattServiceCache.NO_VERSION, services);
+            return;
         }
-        // Check characteristic property
-        final int properties = characteristic.getProperties();
-        if ((properties & BluetoothGattCharacteristic.PROPERTY_READ) == 0) {
-            for (LeListener leListener : mListenerList) {
-                if (leListener instanceof OnLeReadCharacteristicListener) {
-                    ((OnLeReadCharacteristicListener) leListener).onFailure(
-                            new ReadBleException(233, BleException.READ_CHARACTERISTIC,
-                                    "characteristic : " + characteristic.toString() + ", property not support read.")
-                    );
-                }
+        read(version[0], version[1]).addCallback(new BleFuture.Callback<byte[]>() {
+            @Override
+            public void onSuccess(byte[] value) {
+                mServiceCache.put(address, GattServiceCache.toVersion(value), services);
             }
-            mRequestQueue.next();
-            return false;
-        }
-        return gatt.readCharacteristic(characteristic);
+
+            @Override
+            public void onFailure(BleException e) {
+                BleLogger.w(enableLogger, TAG, "can not read the version of the services of {}, not cached.", address);
+            }
+        });
+    }
+
+    @Override
+    public BleFuture<byte[]> read(UUID serviceUUID, UUID characteristicUUID) {
+        final BleFuture<byte[]> future = new BleFuture<>(BleException.READ_CHARACTERISTIC, mFutureExecutor);
+        enqueue(future, Request.Type.READ, null, false, serviceUUID, characteristicUUID);
+        return future;
+    }
+
+    @Override
+    public BleFuture<Void> write(byte[] bytes, UUID serviceUUID, UUID characteristicUUID) {
+        final BleFuture<Void> future = new BleFuture<>(BleException.WRITE_CHARACTERISTIC, mFutureExecutor);
+        enqueue(future, Request.Type.WRITE, bytes, false, serviceUUID, characteristicUUID);
+        return future;
+    }
+
+    @Override
+    public BleFuture<Void> enableNotification(boolean enable, UUID serviceUUID, UUID characteristicUUID) {
+        final BleFuture<Void> future = new BleFuture<>(BleException.NOTIFICATION, mFutureExecutor);
+        enqueue(future, Request.Type.ENABLE_NOTIFICATIONS, null, enable, serviceUUID, characteristicUUID);
+        return future;
+    }
+
+    @Override
+    public BleFuture<Void> enableIndication(boolean enable, UUID serviceUUID, UUID characteristicUUID) {
+        final BleFuture<Void> future = new BleFuture<>(BleException.INDICATION, mFutureExecutor);
+        enqueue(future, Request.Type.ENABLE_INDICATIONS, null, enable, serviceUUID, characteristicUUID);
+        return future;
+    }
+
+    /**
+     * Queues a request for the characteristic with the future attached, or fails the future if the
+     * characteristic can not be found.
+     */
+    private void enqueue(final BleFuture<?> future, final Request.Type type, final byte[] bytes, final boolean enable,
+                         final UUID serviceUUID, final UUID characteristicUUID) {
+        if (future.isDone()) {
+            // Cancelled while held back until discovery.
+            return;
+        }
+        final GattTransport gatt = mBluetoothGatt;
+        if (gatt == null) {
+            future.fail(newRequestException(type, 233,
+                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
+            return;
+        }
+        if (serviceUUID == null || characteristicUUID == null) {
+            future.fail(newRequestException(type, 233, "service or characteristic uuid is null"));
+            return;
+        }
+        if (deferUntilDiscovered(serviceUUID, characteristicUUID, new Runnable() {
+            @Override
+            public void run() {
+                enqueue(future, type, bytes, enable, serviceUUID, characteristicUUID);
+            }
+        })) {
+            return;
+        }
+        final BluetoothGattService service = gatt.getService(serviceUUID);
+        final BluetoothGattCharacteristic characteristic = service != null ? service.getCharacteristic(characteristicUUID) : null;
+        if (characteristic == null) {
+            future.fail(newRequestException(type, 233,
+                    "can not find characteristic form given characteristic uuid : " + characteristicUUID +
+                            ", where in given service uuid : " + serviceUUID));
+            return;
+        }
+        final Request request;
+        switch (type) {
+            case READ:
+                request = Request.newReadRequest(characteristic);
+                break;
+            case WRITE:
+                request = Request.newWriteRequest(characteristic, bytes);
+                break;
+            case ENABLE_NOTIFICATIONS:
+                request = Request.newEnableNotificationsRequest(enable, characteristic);
+                break;
+            default:
+                request = Request.newEnableIndicationsRequest(enable, characteristic);
+                break;
+        }
+        request.setFuture(future);
+        if (future.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                mRequestQueue.remove(request);
+            }
+        })) {
+            mRequestQueue.addRequest(request);
+        }
+    }
+
+    private static BleException newRequestException(Request.Type type, int status, String detailMessage) {
+        switch (type) {
+            case WRITE:
+                return new WriteBleException(status, BleException.WRITE_CHARACTERISTIC, detailMessage);
+            case READ:
+                return new ReadBleException(status, BleException.READ_CHARACTERISTIC, detailMessage);
+            case ENABLE_NOTIFICATIONS:
+                return new BleException(status, BleException.NOTIFICATION, detailMessage);
+            case ENABLE_INDICATIONS:
+                return new BleException(status, BleException.INDICATION, detailMessage);
+            default:
+                return new BleException(status, BleException.CONNECT, detailMessage);
+        }
+    }
+
+    /**
+     * Completes the future of a request with the result of its GATT callback.
+     *
+     * @return false if the request has no future, its listeners are to be called instead.
+     */
+    private boolean completeFuture(Request request, int status, String detailMessage) {
+        final BleFuture<Object> future = request != null ? request.getFuture() : null;
+        if (future == null) {
+            return false;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            future.fail(newRequestException(request.type, status, detailMessage));
+        } else if (request.type == Request.Type.READ) {
+            final byte[] value = request.getCharacteristic().getValue();
+            future.succeed(value != null ? value.clone() : null);
+        } else {
+            future.succeed(null);
+        }
+        return true;
+    }
+
+    /**
+     * Fails the request at the head of the queue before it reached the Bluetooth stack, then moves
+     * on. The future of the request receives the error, requests without one report to the listeners.
+     */
+    private void failStart(final BleException exception) {
+        final Request request = mRequestQueue.executing();
+        final BleFuture<Object> future = request != null ? request.getFuture() : null;
+        if (future != null) {
+            future.fail(exception);
+        } else {
+            runOnCallbackThread(new Runnable() {
+                @Override
+                public void run() {
+                    switch (exception.getType()) {
+                        case BleException.WRITE_CHARACTERISTIC:
+                            for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                                leListener.onFailed((WriteBleException) exception);
+                            }
+                            break;
+                        case BleException.READ_CHARACTERISTIC:
+                            for (OnLeReadCharacteristicListener leListener : mListeners.getReadCharacteristicListeners()) {
+                                leListener.onFailure((ReadBleException) exception);
+                            }
+                            break;
+                        case BleException.NOTIFICATION:
+                            for (OnLeNotificationListener leListener : mListeners.getNotificationListeners()) {
+                                leListener.onFailed(exception);
+                            }
+                            break;
+                        case BleException.INDICATION:
+                            for (OnLeIndicationListener leListener : mListeners.getIndicationListeners()) {
+                                leListener.onFailed(exception);
+                            }
+                            break;
+                    }
+                }
+            });
+        }
+        mRequestQueue.next();
+    }
+
+    /**
+     * Holds back a request issued while the services of a known device are still being discovered,
+     * it is issued again once discovery completed, failed or was skipped, at the latest after the
+     * request timeout.
+     *
+     * @param characteristicUUID null to only look up the service.
+     * @return true if the request was held back.
+     */
+    private boolean deferUntilDiscovered(UUID serviceUUID, UUID characteristicUUID, Runnable request) {
+        if (!mDeferRequests || mServiceDiscovered || !mConnected || mServiceCache == null || mBluetoothDevice == null) {
+            return false;
+        }
+        final GattServiceCache.Entry entry = mServiceCache.get(mBluetoothDevice.getAddress());
+        if (entry == null || !(characteristicUUID == null
+                ? entry.hasService(serviceUUID) : entry.hasCharacteristic(serviceUUID, characteristicUUID))) {
+            return false;
+        }
+        BleLogger.d(enableLogger, TAG, "services not discovered yet, hold back request for {}", serviceUUID);
+        synchronized (mDeferredRequests) {
+            if (mDeferredRequests.isEmpty() && requestTimeout > 0) {
+                // Discovery that never reports must not hold the requests forever.
+                mHandler.postDelayed(mDeferredTimeoutRunnable, requestTimeout);
+            }
+            mDeferredRequests.add(request);
+        }
+        return true;
+    }
+
+    private final Runnable mDeferredTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            BleLogger.e(enableLogger, TAG, "services not discovered in time, issue held back requests.");
+            runDeferredRequests();
+        }
+    };
+
+    /**
+     * Stops holding back requests and issues the held back ones, which then run or fail with the
+     * usual errors.
+     */
+    private void runDeferredRequests() {
+        final List<Runnable> requests;
+        mDeferRequests = false;
+        mHandler.removeCallbacks(mDeferredTimeoutRunnable);
+        synchronized (mDeferredRequests) {
+            if (mDeferredRequests.isEmpty()) {
+                return;
+            }
+            requests = new ArrayList<>(mDeferredRequests);
+            mDeferredRequests.clear();
+        }
+        for (Runnable request : requests) {
+            request.run();
+        }
+    }
+
+    private boolean read2Characteristic(BluetoothGattCharacteristic characteristic) {
+        final GattTransport gatt = mBluetoothGatt;
+        if (gatt == null) {
+            failStart(new ReadBleException(233, BleException.READ_CHARACTERISTIC,
+                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
+            return false;
+        }
+        if (characteristic == null) {
+            failStart(new ReadBleException(233, BleException.READ_CHARACTERISTIC,
+                    "characteristic uuid is null."));
+            return false;
+        }
+        // Check characteristic property
+        final int properties = characteristic.getProperties();
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_READ) == 0) {
+            failStart(new ReadBleException(233, BleException.READ_CHARACTERISTIC,
+                    "characteristic : " + characteristic.toString() + ", property not support read."));
+            return false;
+        }
+        return mRequestQueue.onStarted(gatt.readCharacteristic(characteristic));
     }
 
     void readRssi() {
         if (mConnected) {
-            readRssiTimerTask();
+            startReadRssi();
         } else {
             isReadRssi = true;
         }
@@ -924,62 +1422,75 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
         readRssiIntervalMillisecond = millisecond;
     }
 
-    void cancelReadRssiTimerTask() {
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer = null;
-        }
-        if (mTimerTask != null) {
-            mTimerTask.cancel();
-            mTimerTask = null;
-        }
+    void stopReadRssi() {
+        RssiScheduler.getDefault().stop(this);
     }
 
-    private void readRssiTimerTask() {
-        mTimer = null;
-        mTimerTask = null;
-        mTimer = new Timer();
-        mTimerTask = new TimerTask() {
-            @Override
-            public void run() {
-                if (mBluetoothGatt != null) {
-                    mBluetoothGatt.readRemoteRssi();
-                }
+    private void startReadRssi() {
+        RssiScheduler.getDefault().start(this, readRssiIntervalMillisecond, mRssiReader);
+    }
+
+    private final RssiScheduler.RssiReader mRssiReader = new RssiScheduler.RssiReader() {
+        @Override
+        public boolean readRssi() {
+            final GattTransport gatt = mBluetoothGatt;
+            if (gatt == null || !mConnected) {
+                return true;
             }
-        };
-        mTimer.schedule(mTimerTask, 100, readRssiIntervalMillisecond);
+            final long startTime = mMetrics.startTime();
+            if (!mRequestQueue.readRssi(gatt)) {
+                return false;
+            }
+            mRssiStartTime = startTime;
+            return true;
+        }
+    };
+
+    /**
+     * @return the address metrics of this connection are recorded under, null while metrics are disabled.
+     */
+    private String getMetricsAddress() {
+        final BluetoothDevice device = mBluetoothDevice;
+        return mMetrics.isEnabled() && device != null ? device.getAddress() : null;
     }
 
     void disconnect() {
+        cancelReconnect();
+        cancelConnect();
+        mConnectionOpen = false;
         if (mConnected && mBluetoothGatt != null) {
             mBluetoothGatt.disconnect();
             mConnected = false;
             mServiceDiscovered = false;
-            cancelReadRssiTimerTask();
+            stopReadRssi();
             mBluetoothGatt = null;
         }
     }
 
     void close() {
+        cancelReconnect();
+        cancelConnect();
+        mConnectionOpen = false;
         if (mBluetoothGatt != null) {
             mBluetoothGatt.close();
             mBluetoothGatt = null;
             mConnected = false;
             mServiceDiscovered = false;
         }
+        // A closed BluetoothGatt reports no disconnect that would release them.
+        runDeferredRequests();
+    }
+
+    private void cancelConnect() {
+        if (mBluetoothDevice != null) {
+            ConnectScheduler.getDefault().cancel(mBluetoothDevice.getAddress());
+        }
     }
 
     private void checkServiceDiscover() {
-        if (mRetryConnectEnable && mRetryConnectCount > 0 && serviceTimeoutMillis > 0) {
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (!mServiceDiscovered) {
-                        connect(mAutoConnect, mBluetoothDevice);
-                        mRetryConnectCount -= 1;
-                    }
-                }
-            }, serviceTimeoutMillis);
+        mHandler.removeCallbacks(mServiceTimeoutRunnable);
+        if (serviceTimeoutMillis > 0) {
+            mHandler.postDelayed(mServiceTimeoutRunnable, serviceTimeoutMillis);
         }
     }
 
@@ -997,68 +1508,78 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
     private BleManagerGattCallback mGattCallback = new BleManagerGattCallback() {
 
         @Override
-        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, int newState) {
+        public void onConnectionStateChange(final GattTransport gatt, final int status, int newState) {
             super.onConnectionStateChange(gatt, status, newState);
+            if (newState == BluetoothProfile.STATE_CONNECTED || newState == BluetoothProfile.STATE_DISCONNECTED) {
+                ConnectScheduler.getDefault().onFinished(gatt.getDevice().getAddress());
+            }
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 BleLogger.d(enableLogger, TAG, "device connect success!");
                 mConnected = true;
+                mHandler.removeCallbacks(mConnectTimeoutRunnable);
+                mMetrics.recordLatency(gatt.getDevice().getAddress(), BleMetrics.CONNECT, mConnectStartTime);
+                mConnectStartTime = 0;
                 if (isStopScanAfterConnected) {
                     stopScan();
                 }
 
-                runOnUiThread(new Runnable() {
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeConnectListener) {
-                                ((OnLeConnectListener) leListener).onDeviceConnected();
-                            }
+                        for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+                            leListener.onDeviceConnected();
                         }
                     }
                 });
 
+                final boolean cached = mServiceCache != null && mServiceCache.get(gatt.getDevice().getAddress()) != null;
+                mDeferRequests = cached;
                 mHandler.postDelayed(new Runnable() {
                     @Override
                     public void run() {
-                        if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_BONDING) {
-                            if (mBluetoothGatt != null) {
-                                mBluetoothGatt.discoverServices();
-                                checkServiceDiscover();
-                            }
+                        if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_BONDING && mBluetoothGatt != null) {
+                            mDiscoverStartTime = mMetrics.startTime();
+                            mBluetoothGatt.discoverServices();
+                            checkServiceDiscover();
+                        } else {
+                            // No discovery to wait for.
+                            runDeferredRequests();
                         }
                     }
-                }, 600);
+                }, cached ? 0 : 600);
 
                 if (isReadRssi) {
-                    cancelReadRssiTimerTask();
-                    readRssiTimerTask();
+                    startReadRssi();
                 }
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 BleLogger.d(enableLogger, TAG, "device disconnect.");
                 mConnected = false;
                 mServiceDiscovered = false;
-
-                runOnUiThread(new Runnable() {
+                mMtu = DEFAULT_MTU;
+                mHandler.removeCallbacks(mConnectTimeoutRunnable);
+                mHandler.removeCallbacks(mServiceTimeoutRunnable);
+                stopReadRssi();
+                // Held back requests now fail with the usual errors.
+                runDeferredRequests();
+                scheduleReconnect(status);
+
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeConnectListener) {
-                                ((OnLeConnectListener) leListener).onDeviceDisconnected();
-                            }
+                        for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+                            leListener.onDeviceDisconnected();
                         }
                     }
                 });
             } else {
-                runOnUiThread(new Runnable() {
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeConnectListener) {
-                                ((OnLeConnectListener) leListener).onDeviceConnectFail(
-                                        new ConnBleException(status, BleException.CONNECT, "Error on connection state change.")
-                                );
-                            }
+                        for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+                            leListener.onDeviceConnectFail(
+                                    new ConnBleException(status, BleException.CONNECT, "Error on connection state change.")
+                            );
                         }
                     }
                 });
@@ -1066,22 +1587,27 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
         }
 
         @Override
-        public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
+        public void onServicesDiscovered(final GattTransport gatt, int status) {
             super.onServicesDiscovered(gatt, status);
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 BleLogger.d(enableLogger, TAG, "success with find services discovered .");
                 mServiceDiscovered = true;
-
+                mHandler.removeCallbacks(mServiceTimeoutRunnable);
+                mMetrics.recordLatency(gatt.getDevice().getAddress(), BleMetrics.DISCOVER_SERVICES, mDiscoverStartTime);
+                mDiscoverStartTime = 0;
+                mReconnectEngine.onSuccess();
+                storeServiceCache(gatt);
+                runDeferredRequests();
+
+                requestMtu();
                 readConnectionParameters();
 
-                runOnUiThread(new Runnable() {
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeConnectListener) {
-                                ((OnLeConnectListener) leListener).onServicesDiscovered(gatt);
-                            }
+                        for (OnLeConnectListener leListener : mListeners.getConnectListeners()) {
+                            leListener.onServicesDiscovered(gatt.getBluetoothGatt());
                         }
                     }
                 });
@@ -1089,12 +1615,24 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
             } else {
                 BleLogger.d(enableLogger, TAG, "failure find services discovered.");
                 mServiceDiscovered = false;
+                runDeferredRequests();
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+        public void onCharacteristicRead(GattTransport gatt, final BluetoothGattCharacteristic characteristic, final int status) {
             super.onCharacteristicRead(gatt, characteristic, status);
+            final Request request = mRequestQueue.current(characteristic);
+            if (request == null || request.type != Request.Type.READ) {
+                BleLogger.d(enableLogger, TAG, "ignore read callback of a request no longer executing.");
+                return;
+            }
+            if (completeFuture(request, status,
+                    status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION
+                            ? "Phone has lost bonding information." : "Error on reading characteristic.")) {
+                mRequestQueue.complete(request, status);
+                return;
+            }
             //read
             if (status == BluetoothGatt.GATT_SUCCESS) {
 
@@ -1110,15 +1648,13 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
                     mConnParameters.setProperties("READ");
                     mConnParameters.setSlaveLatency(slaveLatency);
                     mConnParameters.setSupervisionTimeout(connSupervisionTimeout);
-                    autoQueueInterval = (int) connIntervalMax + 50;
+                    mPacer.setConnectionInterval(connIntervalMax);
                 } else {
-                    runOnUiThread(new Runnable() {
+                    runOnCallbackThread(new Runnable() {
                         @Override
                         public void run() {
-                            for (LeListener leListener : mListenerList) {
-                                if (leListener instanceof OnLeReadCharacteristicListener) {
-                                    ((OnLeReadCharacteristicListener) leListener).onSuccess(characteristic);
-                                }
+                            for (OnLeReadCharacteristicListener leListener : mListeners.getReadCharacteristicListeners()) {
+                                leListener.onSuccess(characteristic);
                             }
                         }
                     });
@@ -1126,106 +1662,117 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
 
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
 
-                runOnUiThread(new Runnable() {
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeReadCharacteristicListener) {
-                                ((OnLeReadCharacteristicListener) leListener).onFailure(
-                                        new ReadBleException(status, BleException.READ_CHARACTERISTIC, "Phone has lost bonding information."));
-                            }
+                        for (OnLeReadCharacteristicListener leListener : mListeners.getReadCharacteristicListeners()) {
+                            leListener.onFailure(
+                                    new ReadBleException(status, BleException.READ_CHARACTERISTIC, "Phone has lost bonding information."));
                         }
                     }
                 });
 
             } else {
 
-                runOnUiThread(new Runnable() {
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeReadCharacteristicListener) {
-                                ((OnLeReadCharacteristicListener) leListener).onFailure(
-                                        new ReadBleException(status, BleException.READ_CHARACTERISTIC, "Error on reading characteristic."));
-                            }
+                        for (OnLeReadCharacteristicListener leListener : mListeners.getReadCharacteristicListeners()) {
+                            leListener.onFailure(
+                                    new ReadBleException(status, BleException.READ_CHARACTERISTIC, "Error on reading characteristic."));
                         }
                     }
                 });
 
             }
 
-            mRequestQueue.next();
+            mRequestQueue.complete(request, status);
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+        public void onCharacteristicWrite(GattTransport gatt, final BluetoothGattCharacteristic characteristic, final int status) {
             super.onCharacteristicWrite(gatt, characteristic, status);
+            final Request request = mRequestQueue.current(characteristic);
+            if (!mRequestQueue.onWriteCompleted(characteristic, status)) {
+                // More packets of the same payload follow, or a late callback was dropped.
+                return;
+            }
+            if (request != null && request.type == Request.Type.WRITE && completeFuture(request, status,
+                    status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION
+                            ? "Phone has lost bonding information." : "Error on writing characteristic.")) {
+                return;
+            }
             if (status == BluetoothGatt.GATT_SUCCESS) {
 
-                runOnUiThread(new Runnable() {
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeWriteCharacteristicListener) {
-                                ((OnLeWriteCharacteristicListener) leListener).onSuccess(characteristic);
-                            }
+                        for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                            leListener.onSuccess(characteristic);
                         }
                     }
                 });
 
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
 
-                runOnUiThread(new Runnable() {
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeWriteCharacteristicListener) {
-                                ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                                        new WriteBleException(status, BleException.WRITE_CHARACTERISTIC, "Phone has lost of bonding information."));
-                            }
+                        for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                            leListener.onFailed(
+                                    new WriteBleException(status, BleException.WRITE_CHARACTERISTIC, "Phone has lost of bonding information."));
                         }
                     }
                 });
 
             } else {
 
-                runOnUiThread(new Runnable() {
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeWriteCharacteristicListener) {
-                                ((OnLeWriteCharacteristicListener) leListener).onFailed(
-                                        new WriteBleException(status, BleException.WRITE_CHARACTERISTIC, "Error on reading characteristic."));
-                            }
+                        for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                            leListener.onFailed(
+                                    new WriteBleException(status, BleException.WRITE_CHARACTERISTIC, "Error on reading characteristic."));
                         }
                     }
                 });
 
             }
-            mRequestQueue.next();
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+        public void onCharacteristicChanged(GattTransport gatt, final BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicChanged(gatt, characteristic);
+            if (mMetrics.isEnabled()) {
+                final byte[] value = characteristic.getValue();
+                mMetrics.recordNotification(gatt.getDevice().getAddress(), characteristic.getUuid(),
+                        value != null ? value.length : 0);
+            }
+
+            if (GattServiceCache.SERVICE_CHANGED_UUID.equals(characteristic.getUuid())) {
+                BleLogger.d(enableLogger, TAG, "service changed, discover services again.");
+                if (mServiceCache != null) {
+                    mServiceCache.invalidate(gatt.getDevice().getAddress());
+                }
+                mServiceDiscovered = false;
+                mDiscoverStartTime = mMetrics.startTime();
+                gatt.discoverServices();
+                checkServiceDiscover();
+            }
 
-            runOnUiThread(new Runnable() {
+            runOnCallbackThread(new Runnable() {
                 @Override
                 public void run() {
                     final BluetoothGattDescriptor cccd = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
                     final boolean notifications = cccd == null || cccd.getValue() == null || cccd.getValue().length != 2 || cccd.getValue()[0] == 0x01;
 
                     if (notifications) {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeNotificationListener) {
-                                ((OnLeNotificationListener) leListener).onSuccess(characteristic);
-                            }
+                        for (OnLeNotificationListener leListener : mListeners.getNotificationListeners()) {
+                            leListener.onSuccess(characteristic);
                         }
                     } else {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeIndicationListener) {
-                                ((OnLeIndicationListener) leListener).onSuccess(characteristic);
-                            }
+                        for (OnLeIndicationListener leListener : mListeners.getIndicationListeners()) {
+                            leListener.onSuccess(characteristic);
                         }
                     }
                 }
@@ -1234,32 +1781,40 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
         }
 
         @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        public void onDescriptorRead(GattTransport gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorRead(gatt, descriptor, status);
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        public void onDescriptorWrite(GattTransport gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorWrite(gatt, descriptor, status);
-            mRequestQueue.next();
+            final Request request = mRequestQueue.current(descriptor.getCharacteristic());
+            if (request == null || (request.type != Request.Type.ENABLE_NOTIFICATIONS
+                    && request.type != Request.Type.ENABLE_INDICATIONS)) {
+                BleLogger.d(enableLogger, TAG, "ignore descriptor write callback of a request no longer executing.");
+                return;
+            }
+            completeFuture(request, status, "Error on writing descriptor.");
+            mRequestQueue.complete(request, status);
         }
 
         @Override
-        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+        public void onReliableWriteCompleted(GattTransport gatt, int status) {
             super.onReliableWriteCompleted(gatt, status);
         }
 
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, final int rssi, int status) {
+        public void onReadRemoteRssi(GattTransport gatt, final int rssi, int status) {
             super.onReadRemoteRssi(gatt, rssi, status);
+            mMetrics.recordLatency(gatt.getDevice().getAddress(), BleMetrics.READ_RSSI, mRssiStartTime);
+            mRssiStartTime = 0;
+            mRequestQueue.onRssiRead();
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                runOnUiThread(new Runnable() {
+                runOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (LeListener leListener : mListenerList) {
-                            if (leListener instanceof OnLeReadRssiListener) {
-                                ((OnLeReadRssiListener) leListener).onSuccess(rssi, BluetoothUtils.getDistance(rssi));
-                            }
+                        for (OnLeReadRssiListener leListener : mListeners.getReadRssiListeners()) {
+                            leListener.onSuccess(rssi, BluetoothUtils.getDistance(rssi));
                         }
                     }
                 });
@@ -1267,8 +1822,15 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
         }
 
         @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        public void onMtuChanged(GattTransport gatt, int mtu, int status) {
             super.onMtuChanged(gatt, mtu, status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                BleLogger.d(enableLogger, TAG, "mtu changed: {}", mtu);
+                mMtu = mtu;
+            } else {
+                BleLogger.e(enableLogger, TAG, "failure request mtu, status: {}", status);
+            }
+            mRequestQueue.onMtuChanged(status);
         }
     };
 
@@ -1279,30 +1841,14 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
 
     private void cancelTag(Object tag) {
         synchronized (BleManager.class) {
-            List<LeListener> leListenerList = new ArrayList<>();
-            for (LeListener leListener : mListenerList) {
-                if (leListener.getTag() == tag) {
-                    leListenerList.add(leListener);
-                }
-            }
-            cancelTagList(leListenerList);
-        }
-    }
-
-    private void cancelTagList(List<LeListener> list) {
-        if (list.size() > 0 && !list.isEmpty()) {
-            mListenerList.remove(list.get(0));
-            if (list.size() > 0 && !list.isEmpty()) {
-                list.remove(0);
-                cancelTagList(list);
-            }
+            mListeners.removeTag(tag);
         }
     }
 
     @Override
     public void cancelAllTag() {
         synchronized (BleManager.class) {
-            mListenerList.clear();
+            mListeners.clear();
         }
     }
 
@@ -1313,67 +1859,558 @@ import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
         }
     }
 
+    private void failRequest(Request request, final int status, final String detailMessage) {
+        final BleFuture<Object> future = request.getFuture();
+        if (future != null) {
+            future.fail(newRequestException(request.type, status, detailMessage));
+            return;
+        }
+        switch (request.type) {
+            case WRITE:
+                runOnCallbackThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (OnLeWriteCharacteristicListener leListener : mListeners.getWriteCharacteristicListeners()) {
+                            leListener.onFailed(
+                                    new WriteBleException(status, BleException.WRITE_CHARACTERISTIC, detailMessage));
+                        }
+                    }
+                });
+                break;
+            case READ:
+                runOnCallbackThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (OnLeReadCharacteristicListener leListener : mListeners.getReadCharacteristicListeners()) {
+                            leListener.onFailure(
+                                    new ReadBleException(status, BleException.READ_CHARACTERISTIC, detailMessage));
+                        }
+                    }
+                });
+                break;
+            case ENABLE_NOTIFICATIONS:
+                runOnCallbackThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (OnLeNotificationListener leListener : mListeners.getNotificationListeners()) {
+                            leListener.onFailed(
+                                    new BleException(status, BleException.NOTIFICATION, detailMessage));
+                        }
+                    }
+                });
+                break;
+            case ENABLE_INDICATIONS:
+                runOnCallbackThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (OnLeIndicationListener leListener : mListeners.getIndicationListeners()) {
+                            leListener.onFailed(
+                                    new BleException(status, BleException.INDICATION, detailMessage));
+                        }
+                    }
+                });
+                break;
+            case REQUEST_MTU:
+                BleLogger.e(enableLogger, TAG, "request mtu failed. {}", detailMessage);
+                break;
+        }
+    }
+
     private class RequestQueue {
 
-        private Queue<Request> mRequestQueue = new LinkedList<>();
+        private LinkedList<Request> mRequestQueue = new LinkedList<>();
+        /** Write Without Response packets accepted by the stack and not confirmed by onCharacteristicWrite yet. */
+        private LinkedList<Request> mInFlight = new LinkedList<>();
+        /** A serialized request is at the head of the queue and waits for its GATT callback. */
+        private boolean mExecuting;
+        /**
+         * The executing request reached the Bluetooth stack. It is false while a busy stack is
+         * retried, a callback arriving then belongs to an earlier request.
+         */
+        private boolean mStarted;
+        /** A readRemoteRssi() reached the Bluetooth stack, requests wait for onReadRemoteRssi. */
+        private boolean mReadingRssi;
+
+        /** Times the Bluetooth stack refused to start the request at the head of the queue. */
+        private int mBusyRetries;
+
+        /** Armed while a GATT callback is awaited, see {@link RequestWatchdog}. */
+        private RequestWatchdog.Deadline mDeadline;
+        /** Requests timed out since the last GATT callback. */
+        private int mTimeouts;
+        /** Confirmations still due for Write Without Response packets of a payload that failed. */
+        private int mSkippedConfirmations;
+
+        private final Runnable mDeadlineExpired = new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(mTimeoutRunnable);
+            }
+        };
+
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                onTimeout();
+            }
+        };
+
+        private final Runnable mRetryRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RequestQueue.this) {
+                    mExecuting = false;
+                    startExecutor();
+                }
+            }
+        };
+
+        private final Runnable mRunQueueRunnable = new Runnable() {
+            @Override
+            public void run() {
+                runQueue();
+            }
+        };
+
+        private final Runnable mRssiTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                BleLogger.e(enableLogger, TAG, "no callback for read rssi, resume requests.");
+                onRssiRead();
+            }
+        };
 
-        void addRequest(Request request) {
-            int oldSize = mRequestQueue.size();
+        synchronized void addRequest(Request request) {
             mRequestQueue.add(request);
-            if (mRequestQueue.size() == 1 && oldSize == 0) {
+            final String address = getMetricsAddress();
+            if (address != null) {
+                request.mEnqueueTime = System.nanoTime();
+                mMetrics.recordQueueDepth(address, mRequestQueue.size() + mInFlight.size());
+            }
+            if (!mExecuting) {
                 startExecutor();
             }
         }
 
-        private void startExecutor() {
-            Request request = mRequestQueue.peek();
+        private synchronized void startExecutor() {
+            if (mReadingRssi) {
+                // Started again from onRssiRead().
+                return;
+            }
+            while (!mExecuting && !mRequestQueue.isEmpty()) {
+                Request request = mRequestQueue.peek();
+                if (writeWithoutResponseWindow > 1 && mBluetoothGatt != null && isWriteWithoutResponse(request)) {
+                    if (mInFlight.size() >= writeWithoutResponseWindow) {
+                        return;
+                    }
+                    if (!writeWithoutResponse(request)) {
+                        // Controller buffers are full, wait for a confirmation to free one.
+                        if (mInFlight.isEmpty()) {
+                            mHandler.postDelayed(mRetryRunnable, WRITE_BUSY_RETRY_DELAY);
+                        }
+                        return;
+                    }
+                    onRequestStarted(request);
+                    if (!request.hasRemaining()) {
+                        mRequestQueue.poll();
+                    }
+                    mInFlight.add(request);
+                    if (mDeadline == null) {
+                        armDeadline();
+                    }
+                    continue;
+                }
+                // Reads, acknowledged writes and descriptor writes wait until the pipeline has drained.
+                if (!mInFlight.isEmpty()) {
+                    return;
+                }
+                mExecuting = true;
+                switch (request.type) {
+                    case WRITE:
+                        write2Characteristic(request);
+                        break;
+                    case READ:
+                        read2Characteristic(request.getCharacteristic());
+                        break;
+                    case ENABLE_NOTIFICATIONS:
+                        enableNotification(request.isEnable(), request.getCharacteristic());
+                        break;
+                    case ENABLE_INDICATIONS:
+                        enableIndication(request.isEnable(), request.getCharacteristic());
+                        break;
+                    case REQUEST_MTU:
+                        requestMtu(request.getMtu());
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Called with the result of the BluetoothGatt call that started the request at the head of
+         * the queue. A busy stack is retried after the pacer's backoff, a request that keeps failing
+         * to start is reported to its listeners and dropped.
+         */
+        synchronized boolean onStarted(boolean started) {
+            if (started) {
+                mBusyRetries = 0;
+                mStarted = true;
+                armDeadline();
+                mPacer.onStart();
+                final Request request = mRequestQueue.peek();
+                if (request != null) {
+                    onRequestStarted(request);
+                }
+                return true;
+            }
+            disarmDeadline();
+            final Request request = mRequestQueue.peek();
+            if (request == null) {
+                return false;
+            }
+            if (++mBusyRetries > MAX_BUSY_RETRIES) {
+                BleLogger.e(enableLogger, TAG, "Bluetooth stack is busy, drop request {}", request.type);
+                failRequest(request, 233, "Bluetooth stack is busy, request could not be started.");
+                next();
+                return false;
+            }
+            mHandler.postDelayed(mRetryRunnable, mPacer.onBusy(request.type.ordinal()));
+            return false;
+        }
+
+        /**
+         * Called from onCharacteristicWrite.
+         *
+         * @return true if a whole write request has completed, false if more packets of its payload
+         * follow or the callback belongs to a request that timed out.
+         */
+        synchronized boolean onWriteCompleted(BluetoothGattCharacteristic characteristic, int status) {
+            mTimeouts = 0;
+            if (mSkippedConfirmations > 0) {
+                mSkippedConfirmations--;
+                return false;
+            }
+            final Request current = current(characteristic);
+            if (current == null || current.type != Request.Type.WRITE) {
+                BleLogger.d(enableLogger, TAG, "ignore write callback of a request no longer executing.");
+                return false;
+            }
+            if (!mInFlight.isEmpty()) {
+                final Request request = mInFlight.poll();
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    // The rest of the payload is dropped and the failure reported once. Its packets
+                    // already handed to the stack are confirmed all the same, those are skipped.
+                    while (mInFlight.peek() == request) {
+                        mInFlight.poll();
+                        mSkippedConfirmations++;
+                    }
+                    mRequestQueue.remove(request);
+                }
+                // The deadline follows the oldest packet still waiting for its confirmation.
+                if (mInFlight.isEmpty()) {
+                    disarmDeadline();
+                } else {
+                    armDeadline();
+                }
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    startExecutor();
+                    return true;
+                }
+                final boolean completed = request.onChunkConfirmed();
+                if (request.isChunked()) {
+                    notifyWriteProgress(request.getCharacteristic(), request.getConfirmedBytes(), request.getBytes().length);
+                }
+                if (completed) {
+                    onRequestCompleted(request);
+                }
+                startExecutor();
+                return completed;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                final boolean completed = current.onChunkConfirmed();
+                if (current.isChunked()) {
+                    notifyWriteProgress(current.getCharacteristic(), current.getConfirmedBytes(), current.getBytes().length);
+                }
+                if (!completed) {
+                    disarmDeadline();
+                    mPacer.onComplete(current.type.ordinal(), true);
+                    mExecuting = false;
+                    mStarted = false;
+                    startExecutor();
+                    return false;
+                }
+            }
+            complete(current, status);
+            return true;
+        }
+
+        synchronized void onMtuChanged(int status) {
+            final Request request = current();
+            if (request != null && request.type == Request.Type.REQUEST_MTU) {
+                complete(request, status);
+            }
+        }
+
+        /**
+         * Moves on after the request at the head of the queue failed before reaching the Bluetooth
+         * stack. The next request is always started from a post, so a run of requests failing to
+         * start does not recurse through {@link #startExecutor()}.
+         */
+        void next() {
+            mHandler.postDelayed(mRunQueueRunnable, enableQueueDelay && queueDelayTime >= 0 ? queueDelayTime : 0);
+        }
+
+        /**
+         * Moves on after the GATT callback of the request at the head of the queue.
+         *
+         * @param request the request the callback was matched to by {@link #current(BluetoothGattCharacteristic)}.
+         */
+        synchronized void complete(Request request, int status) {
+            if (!mExecuting || !mStarted || mRequestQueue.peek() != request) {
+                // The request timed out after its callback was matched, the head is a later request.
+                BleLogger.d(enableLogger, TAG, "ignore callback of a request no longer executing.");
+                return;
+            }
+            mStarted = false;
+            mHandler.removeCallbacks(mRetryRunnable);
+            disarmDeadline();
+            mTimeouts = 0;
+            long delay = mPacer.onComplete(request.type.ordinal(), status == BluetoothGatt.GATT_SUCCESS);
+            onRequestCompleted(request);
+            if (enableQueueDelay && queueDelayTime >= 0) {
+                delay = queueDelayTime;
+            } else if (!enableQueueDelay) {
+                delay = 0;
+            }
+            if (delay > 0) {
+                mHandler.postDelayed(mRunQueueRunnable, delay);
+            } else {
+                runQueue();
+            }
+        }
+
+        /**
+         * Records the queue wait of the request when its first packet reached the Bluetooth stack.
+         */
+        private void onRequestStarted(Request request) {
+            if (request.mEnqueueTime != 0 && request.mStartTime == 0) {
+                request.mStartTime = System.nanoTime();
+                mMetrics.recordLatency(getMetricsAddress(), BleMetrics.QUEUE_WAIT, request.mEnqueueTime);
+            }
+        }
+
+        private void onRequestCompleted(Request request) {
+            if (request.mStartTime == 0) {
+                return;
+            }
             switch (request.type) {
                 case WRITE:
-                    write2Characteristic(request.getCharacteristic());
+                    mMetrics.recordLatency(getMetricsAddress(), BleMetrics.WRITE, request.mStartTime);
                     break;
                 case READ:
-                    read2Characteristic(request.getCharacteristic());
+                    mMetrics.recordLatency(getMetricsAddress(), BleMetrics.READ, request.mStartTime);
                     break;
                 case ENABLE_NOTIFICATIONS:
-                    enableNotification(request.isEnable(), request.getCharacteristic());
-                    break;
                 case ENABLE_INDICATIONS:
-                    enableIndication(request.isEnable(), request.getCharacteristic());
+                    mMetrics.recordLatency(getMetricsAddress(), BleMetrics.WRITE_DESCRIPTOR, request.mStartTime);
                     break;
             }
+            request.mStartTime = 0;
         }
 
-        void next() {
-            if (enableQueueDelay) {
-                if (queueDelayTime < 0) {
-                    mHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            runQueue();
-                        }
-                    }, autoQueueInterval);
-                } else {
-                    mHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            runQueue();
-                        }
-                    }, queueDelayTime);
-                }
-            } else {
-                runQueue();
+        synchronized void runQueue() {
+            disarmDeadline();
+            mHandler.removeCallbacks(mRetryRunnable);
+            mExecuting = false;
+            mStarted = false;
+            mBusyRetries = 0;
+            mRequestQueue.poll();
+            if (mRequestQueue.size() > 0) {
+                startExecutor();
             }
         }
 
-        void runQueue() {
-            mRequestQueue.poll();
-            if (mRequestQueue != null && mRequestQueue.size() > 0) {
-                startExecutor();
+        /**
+         * @return true while a request waits for its GATT callback.
+         */
+        synchronized boolean isBusy() {
+            return mExecuting || mReadingRssi || !mInFlight.isEmpty();
+        }
+
+        /**
+         * Reads the RSSI while no request is in flight. Requests queued meanwhile wait for
+         * {@link #onRssiRead()}, so the read never competes with them for the Bluetooth stack.
+         *
+         * @return false if the queue is busy or the Bluetooth stack refused the read.
+         */
+        synchronized boolean readRssi(GattTransport gatt) {
+            if (isBusy() || !gatt.readRemoteRssi()) {
+                return false;
+            }
+            mReadingRssi = true;
+            mHandler.postDelayed(mRssiTimeoutRunnable,
+                    requestTimeout > 0 ? requestTimeout : BluetoothConfig.DEFAULT_REQUEST_TIMEOUT);
+            return true;
+        }
+
+        synchronized void onRssiRead() {
+            if (!mReadingRssi) {
+                return;
             }
+            mReadingRssi = false;
+            mHandler.removeCallbacks(mRssiTimeoutRunnable);
+            startExecutor();
+        }
+
+        /**
+         * @return the request the next GATT callback belongs to, the oldest Write Without Response
+         * packet in flight or else the started head of the queue, null if no callback is awaited.
+         */
+        synchronized Request current() {
+            return !mInFlight.isEmpty() ? mInFlight.peek() : mExecuting && mStarted ? mRequestQueue.peek() : null;
+        }
+
+        /**
+         * @return the request a GATT callback for the characteristic belongs to, null for a late
+         * callback of a request that timed out while a request on another characteristic is awaited.
+         * A late callback on the characteristic of the awaited request cannot be told apart.
+         */
+        synchronized Request current(BluetoothGattCharacteristic characteristic) {
+            final Request request = current();
+            return request != null && request.getCharacteristic() == characteristic ? request : null;
+        }
+
+        /**
+         * @return the executing head of the queue, also before it reached the Bluetooth stack.
+         */
+        synchronized Request executing() {
+            return mExecuting ? mRequestQueue.peek() : null;
+        }
+
+        /**
+         * Drops a cancelled request unless it has been handed to the Bluetooth stack already.
+         */
+        synchronized void remove(Request request) {
+            if (mInFlight.contains(request) || (mExecuting && mRequestQueue.peek() == request)) {
+                return;
+            }
+            mRequestQueue.remove(request);
         }
 
         void cancelAll() {
+            final List<Request> cancelled;
+            synchronized (this) {
+                cancelled = new ArrayList<>(mRequestQueue);
+                cancelled.addAll(mInFlight);
+                clear();
+            }
+            for (Request request : cancelled) {
+                final BleFuture<Object> future = request.getFuture();
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Fails every request, including the ones handed to the Bluetooth stack, after the
+         * connection was closed underneath them.
+         */
+        void failAll(String detailMessage) {
+            final List<Request> failed;
+            synchronized (this) {
+                disarmDeadline();
+                mHandler.removeCallbacks(mRetryRunnable);
+                mHandler.removeCallbacks(mRunQueueRunnable);
+                failed = new ArrayList<>(mInFlight);
+                for (Request request : mRequestQueue) {
+                    if (!failed.contains(request)) {
+                        failed.add(request);
+                    }
+                }
+                mInFlight.clear();
+                mRequestQueue.clear();
+                mExecuting = false;
+                mStarted = false;
+                mReadingRssi = false;
+                mHandler.removeCallbacks(mRssiTimeoutRunnable);
+                mBusyRetries = 0;
+                mTimeouts = 0;
+                mSkippedConfirmations = 0;
+            }
+            for (Request request : failed) {
+                failRequest(request, 233, detailMessage);
+            }
+        }
+
+        private void armDeadline() {
+            disarmDeadline();
+            if (requestTimeout > 0) {
+                mDeadline = RequestWatchdog.getDefault().schedule(requestTimeout, mDeadlineExpired);
+            }
+        }
+
+        private void disarmDeadline() {
+            if (mDeadline != null) {
+                mDeadline.cancel();
+                mDeadline = null;
+            }
+        }
+
+        /**
+         * No GATT callback arrived in time: fails the requests waiting for it and moves on, or
+         * closes the connection once too many requests timed out in a row.
+         */
+        private void onTimeout() {
+            final List<Request> timedOut = new ArrayList<>();
+            final boolean stuck;
+            synchronized (this) {
+                if (mDeadline == null || !mDeadline.isExpired()) {
+                    // The callback arrived while the timeout was on its way.
+                    return;
+                }
+                mDeadline = null;
+                if (!mInFlight.isEmpty()) {
+                    for (Request request : mInFlight) {
+                        if (!timedOut.contains(request)) {
+                            timedOut.add(request);
+                        }
+                    }
+                    mInFlight.clear();
+                    // The rest of a partly sent payload goes with it.
+                    mRequestQueue.removeAll(timedOut);
+                } else if (mExecuting && !mRequestQueue.isEmpty()) {
+                    timedOut.add(mRequestQueue.poll());
+                }
+                mExecuting = false;
+                mStarted = false;
+                mBusyRetries = 0;
+                mSkippedConfirmations = 0;
+                mHandler.removeCallbacks(mRetryRunnable);
+                stuck = requestTimeoutsBeforeReconnect > 0 && ++mTimeouts >= requestTimeoutsBeforeReconnect;
+            }
+            for (Request request : timedOut) {
+                BleLogger.e(enableLogger, TAG, "request {} timed out after {} ms.", request.type, requestTimeout);
+                failRequest(request, BleException.STATUS_TIMEOUT, "request timeout.");
+            }
+            if (stuck && mBluetoothGatt != null) {
+                onRequestsTimedOut();
+            } else {
+                synchronized (this) {
+                    startExecutor();
+                }
+            }
+        }
+
+        private void clear() {
+            mHandler.removeCallbacks(mRetryRunnable);
+            mBusyRetries = 0;
+            // A request waiting for its GATT callback stays at the head, so the callback is not
+            // taken for a request queued later.
+            final Request executing = mExecuting ? mRequestQueue.peek() : null;
             mRequestQueue.clear();
+            if (executing != null) {
+                mRequestQueue.add(executing);
+            }
         }
 
     }
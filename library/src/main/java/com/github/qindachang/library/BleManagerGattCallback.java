@@ -1,8 +1,6 @@
 package com.github.qindachang.library;
 
-import android.bluetooth.BluetoothGattCallback;
 
-
-abstract class BleManagerGattCallback extends BluetoothGattCallback {
+abstract class BleManagerGattCallback extends GattTransport.Callback {
 
 }
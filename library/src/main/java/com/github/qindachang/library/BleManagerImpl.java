@@ -71,6 +71,8 @@ public abstract class BleManagerImpl {
 
     public abstract BleManager setReportDelay(int reportDelayMillis);
 
+    public abstract BleManager setAdaptiveScan(boolean adaptiveScan);
+
     public abstract void scan();
 
     public abstract void stopScan();
@@ -89,8 +91,19 @@ public abstract class BleManagerImpl {
 
     public abstract boolean connect(boolean autoConnect, final BluetoothDevice device);
 
+    /**
+     * @param priority one of {@link ConnectScheduler#PRIORITY_LOW}, {@link ConnectScheduler#PRIORITY_NORMAL}
+     *                 and {@link ConnectScheduler#PRIORITY_HIGH}, decides which queued connect starts first.
+     */
+    public abstract boolean connect(boolean autoConnect, final BluetoothDevice device, int priority);
+
     public abstract BluetoothDevice getBluetoothDevice();
 
+    /**
+     * @return the engine deciding about reconnects, it counts attempts, reconnects and failures.
+     */
+    public abstract ReconnectEngine getReconnectEngine();
+
     public abstract boolean getConnected();
 
     public abstract boolean getServicesDiscovered();
@@ -107,6 +120,17 @@ public abstract class BleManagerImpl {
 
     public abstract void readCharacteristic(UUID serviceUUID, UUID characteristicUUID);
 
+    /**
+     * Queues a read whose value only the returned future receives, the listeners are not called.
+     */
+    public abstract BleFuture<byte[]> read(UUID serviceUUID, UUID characteristicUUID);
+
+    public abstract BleFuture<Void> write(byte[] bytes, UUID serviceUUID, UUID characteristicUUID);
+
+    public abstract BleFuture<Void> enableNotification(boolean enable, UUID serviceUUID, UUID characteristicUUID);
+
+    public abstract BleFuture<Void> enableIndication(boolean enable, UUID serviceUUID, UUID characteristicUUID);
+
 
     public abstract void destroy(Object tag);
 
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of connection and scan metrics, disabled by default.
+ * <p>
+ * Per device it keeps a {@link LatencyHistogram} for each operation, the depth of the request queue
+ * and the notifications received per characteristic. Scan results are counted before and after the
+ * {@link com.github.qindachang.library.scanner.ScanFilter}s are applied. Take a {@link #snapshot()}
+ * to read them.
+ * <p>
+ * While disabled, every recording call returns after reading one volatile field, so the hooks
+ * can stay in the hot paths.
+ */
+public final class BleMetrics {
+
+    public static final int CONNECT = 0;
+    public static final int DISCOVER_SERVICES = 1;
+    public static final int READ = 2;
+    public static final int WRITE = 3;
+    public static final int WRITE_DESCRIPTOR = 4;
+    public static final int READ_RSSI = 5;
+    /** Time a request spent in the queue before it was started. */
+    public static final int QUEUE_WAIT = 6;
+
+    private static final int OPERATIONS = 7;
+    private static final String[] OPERATION_NAMES = {
+            "connect", "discoverServices", "read", "write", "writeDescriptor", "readRssi", "queueWait"
+    };
+
+    private static volatile BleMetrics sInstance;
+
+    private volatile boolean enabled;
+    private volatile long mSinceNanos = System.nanoTime();
+    private final ConcurrentHashMap<String, DeviceMetrics> mDevices = new ConcurrentHashMap<>();
+    private final AtomicLong mScanResults = new AtomicLong();
+    private final AtomicLong mMatchedScanResults = new AtomicLong();
+
+    public static BleMetrics getDefault() {
+        if (sInstance == null) {
+            synchronized (BleMetrics.class) {
+                if (sInstance == null) {
+                    sInstance = new BleMetrics();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private BleMetrics() {
+    }
+
+    /**
+     * Enabling starts a new measurement period, what was recorded before is dropped.
+     */
+    public void setEnabled(boolean enabled) {
+        if (enabled && !this.enabled) {
+            reset();
+        }
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Drops everything recorded so far and starts a new measurement period.
+     */
+    public void reset() {
+        mDevices.clear();
+        mScanResults.set(0);
+        mMatchedScanResults.set(0);
+        mSinceNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the start time to pass to {@link #recordLatency(String, int, long)}, 0 while disabled.
+     */
+    public long startTime() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time from {@code startNanos} until now. Nothing is recorded for a start time of 0,
+     * so an operation started while metrics were disabled is skipped.
+     *
+     * @param operation one of {@link #CONNECT}, {@link #DISCOVER_SERVICES}, {@link #READ},
+     *                  {@link #WRITE}, {@link #WRITE_DESCRIPTOR}, {@link #READ_RSSI} and {@link #QUEUE_WAIT}.
+     */
+    public void recordLatency(String address, int operation, long startNanos) {
+        if (!enabled || startNanos == 0 || address == null) {
+            return;
+        }
+        device(address).mLatencies[operation].recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param depth requests waiting or in flight on the connection.
+     */
+    public void recordQueueDepth(String address, int depth) {
+        if (!enabled || address == null) {
+            return;
+        }
+        final DeviceMetrics device = device(address);
+        device.mQueueDepth = depth;
+        synchronized (device) {
+            if (depth > device.mMaxQueueDepth) {
+                device.mMaxQueueDepth = depth;
+            }
+        }
+    }
+
+    public void recordNotification(String address, UUID characteristic, int bytes) {
+        if (!enabled || address == null || characteristic == null) {
+            return;
+        }
+        final DeviceMetrics device = device(address);
+        NotificationCounter counter = device.mNotifications.get(characteristic);
+        if (counter == null) {
+            final NotificationCounter created = new NotificationCounter();
+            counter = device.mNotifications.putIfAbsent(characteristic, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.mCount.incrementAndGet();
+        counter.mBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @param received results delivered by the platform to one scan callback.
+     * @param matched  how many of them passed the scan filters.
+     */
+    public void recordScanResults(int received, int matched) {
+        if (!enabled) {
+            return;
+        }
+        mScanResults.addAndGet(received);
+        if (matched > 0) {
+            mMatchedScanResults.addAndGet(matched);
+        }
+    }
+
+    /**
+     * @return a copy of everything recorded since metrics were enabled or {@link #reset()}.
+     */
+    public Snapshot snapshot() {
+        final long now = System.nanoTime();
+        final Map<String, DeviceSnapshot> devices = new HashMap<>();
+        for (Map.Entry<String, DeviceMetrics> entry : mDevices.entrySet()) {
+            devices.put(entry.getKey(), entry.getValue().snapshot(entry.getKey(), now - mSinceNanos));
+        }
+        return new Snapshot(now - mSinceNanos, mScanResults.get(), mMatchedScanResults.get(),
+                Collections.unmodifiableMap(devices));
+    }
+
+    public static String getOperationName(int operation) {
+        return OPERATION_NAMES[operation];
+    }
+
+    private DeviceMetrics device(String address) {
+        DeviceMetrics device = mDevices.get(address);
+        if (device == null) {
+            final DeviceMetrics created = new DeviceMetrics();
+            device = mDevices.putIfAbsent(address, created);
+            if (device == null) {
+                device = created;
+            }
+        }
+        return device;
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return nanos <= 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    private static final class DeviceMetrics {
+        final LatencyHistogram[] mLatencies = new LatencyHistogram[OPERATIONS];
+        final ConcurrentHashMap<UUID, NotificationCounter> mNotifications = new ConcurrentHashMap<>();
+        volatile int mQueueDepth;
+        int mMaxQueueDepth;
+
+        DeviceMetrics() {
+            for (int i = 0; i < OPERATIONS; i++) {
+                mLatencies[i] = new LatencyHistogram();
+            }
+        }
+
+        DeviceSnapshot snapshot(String address, long elapsedNanos) {
+            final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS];
+            for (int i = 0; i < OPERATIONS; i++) {
+                latencies[i] = mLatencies[i].copy();
+            }
+            final Map<UUID, NotificationStats> notifications = new HashMap<>();
+            for (Map.Entry<UUID, NotificationCounter> entry : mNotifications.entrySet()) {
+                final NotificationCounter counter = entry.getValue();
+                notifications.put(entry.getKey(),
+                        new NotificationStats(counter.mCount.get(), counter.mBytes.get(), elapsedNanos));
+            }
+            final int maxQueueDepth;
+            synchronized (this) {
+                maxQueueDepth = mMaxQueueDepth;
+            }
+            return new DeviceSnapshot(address, latencies, mQueueDepth, maxQueueDepth,
+                    Collections.unmodifiableMap(notifications));
+        }
+    }
+
+    private static final class NotificationCounter {
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mBytes = new AtomicLong();
+    }
+
+    /**
+     * Metrics of the whole process at one point in time. Rates are averages over the measurement
+     * period, diff the counts of two snapshots for the rate in between.
+     */
+    public static final class Snapshot {
+        private final long elapsedNanos;
+        private final long scanResults;
+        private final long matchedScanResults;
+        private final Map<String, DeviceSnapshot> devices;
+
+        private Snapshot(long elapsedNanos, long scanResults, long matchedScanResults,
+                         Map<String, DeviceSnapshot> devices) {
+            this.elapsedNanos = elapsedNanos;
+            this.scanResults = scanResults;
+            this.matchedScanResults = matchedScanResults;
+            this.devices = devices;
+        }
+
+        /**
+         * @return length of the measurement period in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return scan results received before filtering, counted once per scan callback.
+         */
+        public long getScanResults() {
+            return scanResults;
+        }
+
+        /**
+         * @return scan results that passed the filters of their scan callback.
+         */
+        public long getMatchedScanResults() {
+            return matchedScanResults;
+        }
+
+        public double getScanResultsPerSecond() {
+            return perSecond(scanResults, elapsedNanos);
+        }
+
+        public double getMatchedScanResultsPerSecond() {
+            return perSecond(matchedScanResults, elapsedNanos);
+        }
+
+        /**
+         * @return metrics per device address.
+         */
+        public Map<String, DeviceSnapshot> getDevices() {
+            return devices;
+        }
+
+        /**
+         * @return metrics of the device, null if nothing was recorded for it.
+         */
+        public DeviceSnapshot getDevice(String address) {
+            return devices.get(address);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("BleMetrics{elapsed=").append(elapsedNanos / 1000000).append("ms")
+                    .append(", scanResults=").append(scanResults)
+                    .append(", matchedScanResults=").append(matchedScanResults);
+            for (DeviceSnapshot device : devices.values()) {
+                builder.append(", ").append(device);
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    public static final class DeviceSnapshot {
+        private final String address;
+        private final LatencyHistogram[] latencies;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final Map<UUID, NotificationStats> notifications;
+
+        private DeviceSnapshot(String address, LatencyHistogram[] latencies, int queueDepth, int maxQueueDepth,
+                               Map<UUID, NotificationStats> notifications) {
+            this.address = address;
+            this.latencies = latencies;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.notifications = notifications;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @param operation one of the operation constants of {@link BleMetrics}.
+         */
+        public LatencyHistogram getLatency(int operation) {
+            return latencies[operation];
+        }
+
+        /**
+         * @return requests waiting or in flight when the queue last changed.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        /**
+         * @return notifications and indications received per characteristic UUID.
+         */
+        public Map<UUID, NotificationStats> getNotifications() {
+            return notifications;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append(address).append("{queueDepth=").append(queueDepth)
+                    .append(", maxQueueDepth=").append(maxQueueDepth);
+            for (int i = 0; i < OPERATIONS; i++) {
+                if (latencies[i].getCount() > 0) {
+                    builder.append(", ").append(OPERATION_NAMES[i]).append("=[").append(latencies[i]).append(']');
+                }
+            }
+            for (Map.Entry<UUID, NotificationStats> entry : notifications.entrySet()) {
+                builder.append(", ").append(entry.getKey()).append("=[").append(entry.getValue()).append(']');
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    public static final class NotificationStats {
+        private final long count;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        private NotificationStats(long count, long bytes, long elapsedNanos) {
+            this.count = count;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getCountPerSecond() {
+            return perSecond(count, elapsedNanos);
+        }
+
+        public double getBytesPerSecond() {
+            return perSecond(bytes, elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", bytes=" + bytes
+                    + ", rate=" + Math.round(getCountPerSecond()) + "/s"
+                    + ", throughput=" + Math.round(getBytesPerSecond()) + "B/s";
+        }
+    }
+}
@@ -22,6 +22,9 @@
 
 package com.github.qindachang.library;
 
+import java.io.File;
+import java.util.concurrent.Executor;
+
 /**
  * Created on 2016/12/13.
  *
@@ -31,37 +34,113 @@ package com.github.qindachang.library;
 
 public final class BluetoothConfig {
 
+    /**
+     * Pace the request queue automatically: requests follow each other as soon as the previous one
+     * completed, and the queue only waits, with an exponential backoff, after errors or while the
+     * Bluetooth stack is busy.
+     */
     public static final int AUTO = -1;
 
+    public static final int DEFAULT_REQUEST_TIMEOUT = 10000;
+    public static final int DEFAULT_REQUEST_TIMEOUTS_BEFORE_RECONNECT = 3;
+
     private int queueDelayTime;
     private boolean enableQueueDelay;
 
     private boolean enableLogger;
 
+    private int writeWithoutResponseWindow;
+
+    private int mtu;
+
+    private boolean callbackOnBackgroundThread;
+    private Executor callbackExecutor;
+
+    private File serviceCacheDirectory;
+
+    private GattTransport.Factory gattTransportFactory;
+
+    private int requestTimeout;
+    private int requestTimeoutsBeforeReconnect;
+
     private BluetoothConfig(Builder builder) {
         queueDelayTime = builder.queueDelayTime;
         enableQueueDelay = builder.enableQueueDelay;
         enableLogger = builder.enableLogger;
+        writeWithoutResponseWindow = builder.writeWithoutResponseWindow;
+        mtu = builder.mtu;
+        callbackOnBackgroundThread = builder.callbackOnBackgroundThread;
+        callbackExecutor = builder.callbackExecutor;
+        serviceCacheDirectory = builder.serviceCacheDirectory;
+        gattTransportFactory = builder.gattTransportFactory;
+        requestTimeout = builder.requestTimeout;
+        requestTimeoutsBeforeReconnect = builder.requestTimeoutsBeforeReconnect;
     }
 
-    int getQueueDelayTime() {
+    public int getQueueDelayTime() {
         return queueDelayTime;
     }
 
-    boolean getEnableQueueDelay() {
+    public boolean getEnableQueueDelay() {
         return enableQueueDelay;
     }
 
-    boolean getEnableLogger() {
+    public boolean getEnableLogger() {
         return enableLogger;
     }
 
+    public int getWriteWithoutResponseWindow() {
+        return writeWithoutResponseWindow;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public boolean getCallbackOnBackgroundThread() {
+        return callbackOnBackgroundThread;
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    public File getServiceCacheDirectory() {
+        return serviceCacheDirectory;
+    }
+
+    public GattTransport.Factory getGattTransportFactory() {
+        return gattTransportFactory;
+    }
+
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public int getRequestTimeoutsBeforeReconnect() {
+        return requestTimeoutsBeforeReconnect;
+    }
+
     public static class Builder {
         private int queueDelayTime;
         private boolean enableQueueDelay;
 
         private boolean enableLogger;
 
+        private int writeWithoutResponseWindow;
+
+        private int mtu;
+
+        private boolean callbackOnBackgroundThread;
+        private Executor callbackExecutor;
+
+        private File serviceCacheDirectory;
+
+        private GattTransport.Factory gattTransportFactory;
+
+        private int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+        private int requestTimeoutsBeforeReconnect = DEFAULT_REQUEST_TIMEOUTS_BEFORE_RECONNECT;
+
         public Builder setQueueIntervalTime(int millisecond) {
             this.queueDelayTime = millisecond;
             this.enableQueueDelay = true;
@@ -78,6 +157,103 @@ public final class BluetoothConfig {
             return this;
         }
 
+        /**
+         * Pipeline writes to characteristics that use Write Without Response. Up to {@code packets}
+         * writes are handed to the Bluetooth stack before the first one is confirmed, reads,
+         * acknowledged writes and descriptor writes are still executed one at a time.
+         *
+         * Only BleManager pipelines writes, the connectors of the conn package send one at a time.
+         *
+         * @param packets maximum writes in flight, 0 or 1 keeps the serialized queue.
+         */
+        public Builder setWriteWithoutResponseWindow(int packets) {
+            this.writeWithoutResponseWindow = packets;
+            return this;
+        }
+
+        /**
+         * Request a larger ATT MTU after the services have been discovered (Android 5.0+). Payloads
+         * longer than MTU - 3 bytes are written in several packets. Only BleManager negotiates the MTU,
+         * the connectors of the conn package keep the default MTU.
+         *
+         * @param mtu preferred MTU, values up to 23 keep the default MTU.
+         */
+        public Builder setMtu(int mtu) {
+            this.mtu = mtu;
+            return this;
+        }
+
+        /**
+         * Run the connect, service, scan and request timers and the scan results on a dedicated
+         * Bluetooth thread instead of the main thread, and deliver the listener callbacks on it.
+         * Listeners must then post to the main thread themselves before touching views. GATT
+         * callbacks, and the request queue moving on from them, stay on the binder threads of the
+         * Bluetooth stack.
+         * <p>
+         * BleManager only takes a change of this setting while it neither scans nor holds a connection.
+         */
+        public Builder setCallbackOnBackgroundThread(boolean enable) {
+            this.callbackOnBackgroundThread = enable;
+            return this;
+        }
+
+        /**
+         * Deliver the listener callbacks through the given executor. Without
+         * {@link #setCallbackOnBackgroundThread(boolean)} the timers keep running on the main thread.
+         *
+         * @param executor executor for the callbacks, null to deliver them on the Bluetooth thread.
+         */
+        public Builder setCallbackExecutor(Executor executor) {
+            this.callbackExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Keep the service tables of connected devices in the given directory, for example
+         * {@code new File(context.getCacheDir(), "gatt")}. A device reconnected to later is then
+         * discovered without the usual 600 ms wait, and requests for its known characteristics are
+         * accepted while discovery is still running.
+         *
+         * @param directory cache directory, null disables the cache.
+         */
+        public Builder setServiceCacheDirectory(File directory) {
+            this.serviceCacheDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Create GATT connections through the given factory instead of the platform Bluetooth
+         * stack, for example a {@code PeripheralSimulator} to run load tests without hardware.
+         *
+         * @param factory connection factory, null uses {@link AndroidGattTransport#FACTORY}.
+         */
+        public Builder setGattTransportFactory(GattTransport.Factory factory) {
+            this.gattTransportFactory = factory;
+            return this;
+        }
+
+        /**
+         * Fail a request whose GATT callback did not arrive in time with a timeout error and move
+         * on to the next one, instead of leaving the queue blocked for good.
+         *
+         * @param millisecond time a request may take once it reached the Bluetooth stack, 0 waits forever.
+         */
+        public Builder setRequestTimeout(int millisecond) {
+            this.requestTimeout = millisecond;
+            return this;
+        }
+
+        /**
+         * Close the connection and reconnect, if reconnecting is enabled, after this many requests
+         * timed out in a row. A stack that lost several callbacks rarely recovers on its own.
+         *
+         * @param count consecutive timeouts, 0 never closes the connection.
+         */
+        public Builder setRequestTimeoutsBeforeReconnect(int count) {
+            this.requestTimeoutsBeforeReconnect = count;
+            return this;
+        }
+
         public BluetoothConfig build() {
             return new BluetoothConfig(this);
         }
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Serializes connection establishment across all devices of the process.
+ * <p>
+ * Android handles many concurrent {@code connectGatt} calls badly: the attempts slow each other
+ * down until they all time out together. Connects are queued here instead, ordered by priority and
+ * then by arrival, and only {@link #setMaxConcurrentConnects(int)} of them are in progress at once.
+ * An attempt that neither connects nor fails within its timeout, given to
+ * {@link #enqueue(Object, int, int, ConnectTask)} or else {@link #setConnectTimeoutMillis(int)}, is
+ * given up through {@link ConnectTask#onTimeout()} so it can not block the queue.
+ * <p>
+ * Background connects ({@code autoConnect == true}) never complete on their own and should not go
+ * through the scheduler.
+ */
+
+public final class ConnectScheduler {
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    private static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 1;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    private static final int DEFAULT_MAX_PENDING = 32;
+
+    public interface ConnectTask {
+        /**
+         * Starts the attempt, typically by calling {@code connectGatt}.
+         *
+         * @return false if the attempt could not be started, its slot is released immediately.
+         */
+        boolean connect();
+
+        /**
+         * The attempt did not finish in time, the caller should close its {@code BluetoothGatt}
+         * and report the failure.
+         */
+        void onTimeout();
+    }
+
+    private static volatile ConnectScheduler sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PriorityQueue<Entry> mPending = new PriorityQueue<>();
+    private final Map<Object, Entry> mEntries = new HashMap<>();
+    private int mRunning;
+    private long mSequence;
+
+    private int maxConcurrentConnects = DEFAULT_MAX_CONCURRENT_CONNECTS;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT;
+    private int maxPending = DEFAULT_MAX_PENDING;
+
+    public static ConnectScheduler getDefault() {
+        if (sInstance == null) {
+            synchronized (ConnectScheduler.class) {
+                if (sInstance == null) {
+                    sInstance = new ConnectScheduler();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private ConnectScheduler() {
+    }
+
+    public synchronized void setMaxConcurrentConnects(int maxConcurrentConnects) {
+        this.maxConcurrentConnects = Math.max(1, maxConcurrentConnects);
+    }
+
+    /**
+     * Timeout of the connects queued without one of their own.
+     */
+    public synchronized void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Bounds the number of connects waiting for a slot, further ones are refused.
+     */
+    public synchronized void setMaxPending(int maxPending) {
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    /**
+     * Queues a connect with the timeout of {@link #setConnectTimeoutMillis(int)}.
+     *
+     * @see #enqueue(Object, int, int, ConnectTask)
+     */
+    public boolean enqueue(Object key, int priority, ConnectTask task) {
+        final int timeoutMillis;
+        synchronized (this) {
+            timeoutMillis = connectTimeoutMillis;
+        }
+        return enqueue(key, priority, timeoutMillis, task);
+    }
+
+    /**
+     * Queues a connect. A task queued again under the same key replaces the waiting one, and the
+     * higher of both priorities is kept.
+     *
+     * @param key           identifies the device, usually its address.
+     * @param priority      {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+     * @param timeoutMillis time the attempt may take once started, 0 never gives it up.
+     * @return false if the queue is full.
+     */
+    public boolean enqueue(Object key, int priority, int timeoutMillis, ConnectTask task) {
+        synchronized (this) {
+            final Entry existing = mEntries.get(key);
+            if (existing != null && existing.running) {
+                // A new attempt for a device that is still connecting replaces the old one in its slot.
+                existing.task = task;
+                existing.timeoutMillis = timeoutMillis;
+                existing.start = true;
+            } else if (existing != null) {
+                mPending.remove(existing);
+                existing.task = task;
+                existing.timeoutMillis = timeoutMillis;
+                existing.priority = Math.max(existing.priority, priority);
+                mPending.add(existing);
+            } else {
+                if (mPending.size() >= maxPending) {
+                    return false;
+                }
+                final Entry entry = new Entry(key, priority, mSequence++, timeoutMillis, task);
+                mEntries.put(key, entry);
+                mPending.add(entry);
+            }
+        }
+        dispatch();
+        return true;
+    }
+
+    /**
+     * The attempt of the given key connected or failed, its slot goes to the next connect.
+     */
+    public void onFinished(Object key) {
+        synchronized (this) {
+            final Entry entry = mEntries.get(key);
+            if (entry == null || !entry.running) {
+                return;
+            }
+            finish(entry);
+        }
+        dispatch();
+    }
+
+    /**
+     * Drops the connect of the given key, whether it is waiting or in progress.
+     */
+    public void cancel(Object key) {
+        synchronized (this) {
+            final Entry entry = mEntries.get(key);
+            if (entry == null) {
+                return;
+            }
+            if (entry.running) {
+                finish(entry);
+            } else {
+                mPending.remove(entry);
+                mEntries.remove(key);
+            }
+        }
+        dispatch();
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    private void finish(Entry entry) {
+        mHandler.removeCallbacks(entry.timeout);
+        mEntries.remove(entry.key);
+        mRunning--;
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Entry entry;
+            synchronized (this) {
+                entry = nextLocked();
+                if (entry == null) {
+                    return;
+                }
+            }
+            // Outside the lock, the task may call back into the scheduler.
+            if (!entry.task.connect()) {
+                synchronized (this) {
+                    if (mEntries.get(entry.key) == entry && entry.running) {
+                        finish(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private Entry nextLocked() {
+        for (Entry entry : mEntries.values()) {
+            if (entry.running && entry.start) {
+                // Restart of a device that already holds a slot.
+                entry.start = false;
+                armTimeout(entry);
+                return entry;
+            }
+        }
+        if (mRunning >= maxConcurrentConnects || mPending.isEmpty()) {
+            return null;
+        }
+        final Entry entry = mPending.poll();
+        entry.running = true;
+        mRunning++;
+        armTimeout(entry);
+        return entry;
+    }
+
+    private void armTimeout(Entry entry) {
+        mHandler.removeCallbacks(entry.timeout);
+        if (entry.timeoutMillis > 0) {
+            mHandler.postDelayed(entry.timeout, entry.timeoutMillis);
+        }
+    }
+
+    private final class Entry implements Comparable<Entry> {
+        final Object key;
+        final long sequence;
+        int priority;
+        int timeoutMillis;
+        ConnectTask task;
+        boolean running;
+        boolean start;
+
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                final ConnectTask timedOut;
+                synchronized (ConnectScheduler.this) {
+                    if (mEntries.get(key) != Entry.this || !running) {
+                        return;
+                    }
+                    timedOut = task;
+                    finish(Entry.this);
+                }
+                timedOut.onTimeout();
+                dispatch();
+            }
+        };
+
+        Entry(Object key, int priority, long sequence, int timeoutMillis, ConnectTask task) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.timeoutMillis = timeoutMillis;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Entry another) {
+            if (priority != another.priority) {
+                return priority > another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.qindachang.library;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Remembers the service table of devices on disk, one file per device address.
+ * <p>
+ * Android can not hand out usable characteristics before {@code discoverServices()} completed, so
+ * the table is not a replacement for discovery. It lets a reconnect discover right away instead of
+ * after the usual 600 ms, and lets requests for characteristics the device is known to have be
+ * accepted while discovery is still running instead of failing.
+ * <p>
+ * Every table is stored under the version of the device's GATT database: its Database Hash
+ * (0x2B2A), or else its Firmware Revision String (0x2A26), read after each discovery. A device that
+ * reports a different version, for example after a firmware update, gets its entry replaced. Devices
+ * without either characteristic fall back to a hash of the table layout. The entry is also dropped on
+ * a Service Changed indication.
+ * <p>
+ * Files are read and written on a background thread. {@link #preload(String)} reads the entry of a
+ * device while it connects, {@link #get(String)} only looks at the entries in memory.
+ */
+
+/* package */ class GattServiceCache {
+
+    static final UUID SERVICE_CHANGED_UUID = UUID.fromString("00002A05-0000-1000-8000-00805f9b34fb");
+    static final UUID GENERIC_ATTRIBUTE_SERVICE_UUID = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    static final UUID DATABASE_HASH_UUID = UUID.fromString("00002B2A-0000-1000-8000-00805f9b34fb");
+    static final UUID DEVICE_INFORMATION_SERVICE_UUID = UUID.fromString("0000180A-0000-1000-8000-00805f9b34fb");
+    static final UUID FIRMWARE_REVISION_UUID = UUID.fromString("00002A26-0000-1000-8000-00805f9b34fb");
+
+    /** Version of the entries of devices that have neither a Database Hash nor a Firmware Revision. */
+    static final String NO_VERSION = "-";
+
+    private static final String TAG = GattServiceCache.class.getSimpleName();
+
+    private final File mDirectory;
+    private final boolean enableLogger;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    /** Addresses whose file is being read and that were not stored or invalidated since. */
+    private final Set<String> mLoading = new HashSet<>();
+    private Handler mHandler;
+
+    GattServiceCache(File directory, boolean enableLogger) {
+        mDirectory = directory;
+        this.enableLogger = enableLogger;
+    }
+
+    /**
+     * @return the characteristic the version of the table is read from, as service and
+     * characteristic UUIDs, null if the device has none.
+     */
+    static UUID[] findVersionCharacteristic(List<BluetoothGattService> services) {
+        UUID[] firmwareRevision = null;
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == 0) {
+                    continue;
+                }
+                if (GENERIC_ATTRIBUTE_SERVICE_UUID.equals(service.getUuid())
+                        && DATABASE_HASH_UUID.equals(characteristic.getUuid())) {
+                    return new UUID[]{service.getUuid(), characteristic.getUuid()};
+                }
+                if (DEVICE_INFORMATION_SERVICE_UUID.equals(service.getUuid())
+                        && FIRMWARE_REVISION_UUID.equals(characteristic.getUuid())) {
+                    firmwareRevision = new UUID[]{service.getUuid(), characteristic.getUuid()};
+                }
+            }
+        }
+        return firmwareRevision;
+    }
+
+    /**
+     * @return the version of a table read from its version characteristic.
+     */
+    static String toVersion(byte[] value) {
+        if (value == null || value.length == 0) {
+            return NO_VERSION;
+        }
+        final StringBuilder builder = new StringBuilder(value.length * 2);
+        for (byte b : value) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads the stored table of the device in the background, unless it is in memory already.
+     */
+    synchronized void preload(final String address) {
+        if (mEntries.containsKey(address) || !mLoading.add(address)) {
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final Entry entry = load(getFile(address));
+                synchronized (GattServiceCache.this) {
+                    if (mLoading.remove(address) && entry != null) {
+                        mEntries.put(address, entry);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the table of the device in memory, null if there is none or it is still being read.
+     */
+    synchronized Entry get(String address) {
+        return mEntries.get(address);
+    }
+
+    /**
+     * Stores a freshly discovered table unless the cached one has the same version and layout.
+     *
+     * @param version version read with {@link #toVersion(byte[])}, or {@link #NO_VERSION}.
+     */
+    synchronized void put(final String address, String version, List<BluetoothGattService> services) {
+        mLoading.remove(address);
+        final String layout = serialize(services);
+        final String hash = Integer.toHexString(layout.hashCode());
+        final Entry cached = mEntries.get(address);
+        if (cached != null && cached.version.equals(version) && cached.hash.equals(hash)) {
+            return;
+        }
+        final Entry entry = parse(version, hash, layout);
+        mEntries.put(address, entry);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                write(address, entry, layout);
+            }
+        });
+    }
+
+    synchronized void invalidate(final String address) {
+        mLoading.remove(address);
+        mEntries.remove(address);
+        final File file = getFile(address);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (file.exists() && !file.delete()) {
+                    BleLogger.w(enableLogger, TAG, "can not delete service cache of {}", address);
+                }
+            }
+        });
+    }
+
+    private void post(Runnable task) {
+        if (mHandler == null) {
+            final HandlerThread thread = new HandlerThread("BleServiceCache");
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        mHandler.post(task);
+    }
+
+    private File getFile(String address) {
+        return new File(mDirectory, address.replace(":", "") + ".gatt");
+    }
+
+    private void write(String address, Entry entry, String layout) {
+        BufferedWriter writer = null;
+        try {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                throw new IOException("can not create " + mDirectory);
+            }
+            writer = new BufferedWriter(new FileWriter(getFile(address)));
+            writer.write(entry.version);
+            writer.newLine();
+            writer.write(entry.hash);
+            writer.newLine();
+            writer.write(layout);
+        } catch (IOException e) {
+            BleLogger.e(enableLogger, TAG, "can not write service cache of {}", address, e);
+        } finally {
+            close(writer);
+        }
+    }
+
+    private Entry load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            final String version = reader.readLine();
+            final String hash = reader.readLine();
+            final StringBuilder layout = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                layout.append(line).append('\n');
+            }
+            if (version == null || hash == null || !hash.equals(Integer.toHexString(layout.toString().hashCode()))) {
+                BleLogger.w(enableLogger, TAG, "corrupt service cache {}", file);
+                return null;
+            }
+            return parse(version, hash, layout.toString());
+        } catch (IOException | IllegalArgumentException e) {
+            BleLogger.e(enableLogger, TAG, "can not read service cache {}", file, e);
+            return null;
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static String serialize(List<BluetoothGattService> services) {
+        final StringBuilder builder = new StringBuilder();
+        for (BluetoothGattService service : services) {
+            builder.append("S ").append(service.getUuid()).append(' ').append(service.getType()).append('\n');
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                builder.append("C ").append(characteristic.getUuid()).append(' ')
+                        .append(characteristic.getProperties()).append('\n');
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    builder.append("D ").append(descriptor.getUuid()).append('\n');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static Entry parse(String version, String hash, String layout) {
+        final Entry entry = new Entry(version, hash);
+        UUID service = null;
+        for (String line : layout.split("\n")) {
+            if (line.length() < 2) {
+                continue;
+            }
+            final String[] fields = line.split(" ");
+            switch (fields[0]) {
+                case "S":
+                    service = UUID.fromString(fields[1]);
+                    entry.services.add(service);
+                    break;
+                case "C":
+                    if (service != null) {
+                        entry.properties.put(service + "/" + fields[1], Integer.parseInt(fields[2]));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return entry;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static final class Entry {
+        final String version;
+        final String hash;
+        private final Set<UUID> services = new HashSet<>();
+        private final Map<String, Integer> properties = new HashMap<>();
+
+        private Entry(String version, String hash) {
+            this.version = version;
+            this.hash = hash;
+        }
+
+        boolean hasService(UUID serviceUUID) {
+            return services.contains(serviceUUID);
+        }
+
+        boolean hasCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+            return properties.containsKey(serviceUUID + "/" + characteristicUUID);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The GATT client connection the library talks to. {@link AndroidGattTransport} drives the
+ * platform {@link BluetoothGatt}, other implementations such as the peripheral simulator let the
+ * request queue, reconnects and throughput be exercised without Bluetooth hardware.
+ * <p>
+ * Methods follow {@link BluetoothGatt}: an operation returns false when it could not be started,
+ * otherwise its result arrives through the {@link Callback}.
+ */
+public interface GattTransport {
+
+    /**
+     * Value of the {@code transport} argument of {@link Factory#connect} for the platform default.
+     */
+    int TRANSPORT_DEFAULT = -1;
+
+    BluetoothDevice getDevice();
+
+    /**
+     * @return the platform GATT client, null if the transport is not backed by one.
+     */
+    BluetoothGatt getBluetoothGatt();
+
+    void disconnect();
+
+    void close();
+
+    boolean discoverServices();
+
+    List<BluetoothGattService> getServices();
+
+    BluetoothGattService getService(UUID uuid);
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean readDescriptor(BluetoothGattDescriptor descriptor);
+
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable);
+
+    boolean readRemoteRssi();
+
+    boolean requestMtu(int mtu);
+
+    /**
+     * Forgets the services the stack cached for the device, so the next discovery reads them again.
+     */
+    boolean refresh();
+
+    /**
+     * Creates connections.
+     */
+    interface Factory {
+
+        /**
+         * Starts connecting to the device.
+         *
+         * @param transport one of the {@code BluetoothDevice.TRANSPORT_*} values, or {@link #TRANSPORT_DEFAULT}.
+         * @return the connection, null if it could not be created.
+         */
+        GattTransport connect(Context context, BluetoothDevice device, boolean autoConnect, int transport,
+                              Callback callback);
+    }
+
+    /**
+     * Results of a connection, the same as those of {@link android.bluetooth.BluetoothGattCallback}.
+     */
+    abstract class Callback {
+
+        public void onConnectionStateChange(GattTransport gatt, int status, int newState) {
+        }
+
+        public void onServicesDiscovered(GattTransport gatt, int status) {
+        }
+
+        public void onCharacteristicRead(GattTransport gatt, BluetoothGattCharacteristic characteristic, int status) {
+        }
+
+        public void onCharacteristicWrite(GattTransport gatt, BluetoothGattCharacteristic characteristic, int status) {
+        }
+
+        public void onCharacteristicChanged(GattTransport gatt, BluetoothGattCharacteristic characteristic) {
+        }
+
+        public void onDescriptorRead(GattTransport gatt, BluetoothGattDescriptor descriptor, int status) {
+        }
+
+        public void onDescriptorWrite(GattTransport gatt, BluetoothGattDescriptor descriptor, int status) {
+        }
+
+        public void onReliableWriteCompleted(GattTransport gatt, int status) {
+        }
+
+        public void onReadRemoteRssi(GattTransport gatt, int rssi, int status) {
+        }
+
+        public void onMtuChanged(GattTransport gatt, int mtu, int status) {
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the registered {@link LeListener}s in one list per listener type, so a GATT or scan
+ * callback only walks the listeners interested in it.
+ * <p>
+ * The lists are copy-on-write: listeners are registered rarely and dispatched to very often, and a
+ * listener may remove itself or others while a callback is being delivered.
+ */
+
+/* package */ class LeListenerRegistry {
+
+    private final CopyOnWriteArrayList<OnLeScanListener> mScanListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnLeConnectListener> mConnectListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnLeNotificationListener> mNotificationListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnLeIndicationListener> mIndicationListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnLeReadCharacteristicListener> mReadListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnLeWriteCharacteristicListener> mWriteListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnLeReadRssiListener> mRssiListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return false if the listener is already registered or is not of a known type.
+     */
+    boolean add(LeListener leListener) {
+        if (leListener instanceof OnLeScanListener) {
+            return mScanListeners.addIfAbsent((OnLeScanListener) leListener);
+        }
+        if (leListener instanceof OnLeConnectListener) {
+            return mConnectListeners.addIfAbsent((OnLeConnectListener) leListener);
+        }
+        if (leListener instanceof OnLeNotificationListener) {
+            return mNotificationListeners.addIfAbsent((OnLeNotificationListener) leListener);
+        }
+        if (leListener instanceof OnLeIndicationListener) {
+            return mIndicationListeners.addIfAbsent((OnLeIndicationListener) leListener);
+        }
+        if (leListener instanceof OnLeReadCharacteristicListener) {
+            return mReadListeners.addIfAbsent((OnLeReadCharacteristicListener) leListener);
+        }
+        if (leListener instanceof OnLeWriteCharacteristicListener) {
+            return mWriteListeners.addIfAbsent((OnLeWriteCharacteristicListener) leListener);
+        }
+        if (leListener instanceof OnLeReadRssiListener) {
+            return mRssiListeners.addIfAbsent((OnLeReadRssiListener) leListener);
+        }
+        return false;
+    }
+
+    List<OnLeScanListener> getScanListeners() {
+        return mScanListeners;
+    }
+
+    List<OnLeConnectListener> getConnectListeners() {
+        return mConnectListeners;
+    }
+
+    List<OnLeNotificationListener> getNotificationListeners() {
+        return mNotificationListeners;
+    }
+
+    List<OnLeIndicationListener> getIndicationListeners() {
+        return mIndicationListeners;
+    }
+
+    List<OnLeReadCharacteristicListener> getReadCharacteristicListeners() {
+        return mReadListeners;
+    }
+
+    List<OnLeWriteCharacteristicListener> getWriteCharacteristicListeners() {
+        return mWriteListeners;
+    }
+
+    List<OnLeReadRssiListener> getReadRssiListeners() {
+        return mRssiListeners;
+    }
+
+    /**
+     * Removes every listener registered with the given tag.
+     */
+    void removeTag(Object tag) {
+        removeTag(mScanListeners, tag);
+        removeTag(mConnectListeners, tag);
+        removeTag(mNotificationListeners, tag);
+        removeTag(mIndicationListeners, tag);
+        removeTag(mReadListeners, tag);
+        removeTag(mWriteListeners, tag);
+        removeTag(mRssiListeners, tag);
+    }
+
+    void clear() {
+        mScanListeners.clear();
+        mConnectListeners.clear();
+        mNotificationListeners.clear();
+        mIndicationListeners.clear();
+        mReadListeners.clear();
+        mWriteListeners.clear();
+        mRssiListeners.clear();
+    }
+
+    private static <T extends LeListener> void removeTag(List<T> listeners, Object tag) {
+        for (T leListener : listeners) {
+            if (leListener.getTag() == tag) {
+                listeners.remove(leListener);
+            }
+        }
+    }
+}
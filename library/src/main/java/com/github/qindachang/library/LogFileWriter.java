@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes {@link BleLogger} messages to a file from a background thread.
+ * <p>
+ * Callers only copy the message and its arguments into a preallocated ring of entries, formatting
+ * and file I/O happen on the writer thread. When the writer falls behind, the oldest entries are
+ * overwritten and the number of lost messages is written instead. A file that grows past
+ * {@code maxFileBytes} is renamed with a ".1" suffix and a new one is started.
+ */
+/* package */ final class LogFileWriter implements Runnable {
+
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    private static final char[] PRIORITY_CHARS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+    private final File mFile;
+    private final long maxFileBytes;
+    private final Entry[] mEntries;
+    private final Entry[] mDrained;
+    /** Index of the oldest entry and number of entries in the ring. */
+    private int mHead;
+    private int mSize;
+    private int mDropped;
+    private boolean mRunning = true;
+    private boolean mWriterWaiting;
+
+    private final Thread mThread;
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+    private final Date mDate = new Date();
+    private final StringBuilder mLine = new StringBuilder(256);
+    private Writer mWriter;
+    private long mFileBytes;
+
+    LogFileWriter(File file, int capacity, long maxFileBytes) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mFile = file;
+        this.maxFileBytes = maxFileBytes;
+        mEntries = new Entry[capacity];
+        mDrained = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry();
+            mDrained[i] = new Entry();
+        }
+        mThread = new Thread(this, "BleLogger");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * @return false if the writer was closed or stopped on a write error, the message was not taken.
+     */
+    synchronized boolean add(int priority, String tag, String format, int argCount,
+                             Object arg0, Object arg1, Object arg2, Throwable throwable) {
+        if (!mRunning) {
+            return false;
+        }
+        final Entry entry;
+        if (mSize == mEntries.length) {
+            entry = mEntries[mHead];
+            mHead = (mHead + 1) % mEntries.length;
+            mDropped++;
+        } else {
+            entry = mEntries[(mHead + mSize) % mEntries.length];
+            mSize++;
+        }
+        entry.time = System.currentTimeMillis();
+        entry.priority = priority;
+        entry.tag = tag;
+        entry.format = format;
+        entry.argCount = argCount;
+        entry.arg0 = arg0;
+        entry.arg1 = arg1;
+        entry.arg2 = arg2;
+        entry.throwable = throwable;
+        entry.thread = Thread.currentThread().getId();
+        if (mWriterWaiting) {
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Stops the writer thread after the pending messages were written.
+     */
+    void close() {
+        synchronized (this) {
+            mRunning = false;
+            notify();
+        }
+        try {
+            mThread.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final int count;
+                final int dropped;
+                final boolean running;
+                synchronized (this) {
+                    while (mRunning && mSize == 0) {
+                        mWriterWaiting = true;
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            mRunning = false;
+                        }
+                        mWriterWaiting = false;
+                    }
+                    count = mSize;
+                    dropped = mDropped;
+                    running = mRunning;
+                    for (int i = 0; i < count; i++) {
+                        final Entry entry = mEntries[(mHead + i) % mEntries.length];
+                        mDrained[i].copyFrom(entry);
+                        entry.clear();
+                    }
+                    mHead = 0;
+                    mSize = 0;
+                    mDropped = 0;
+                }
+                if (dropped > 0) {
+                    write("BleLogger: " + dropped + " messages lost, the writer fell behind.\n");
+                }
+                for (int i = 0; i < count; i++) {
+                    write(mDrained[i]);
+                    mDrained[i].clear();
+                }
+                if (mWriter != null) {
+                    mWriter.flush();
+                }
+                if (!running) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e("BleLogger", "can not write log file " + mFile, e);
+            synchronized (this) {
+                mRunning = false;
+            }
+        } finally {
+            closeWriter();
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        mDate.setTime(entry.time);
+        mLine.setLength(0);
+        mLine.append(mDateFormat.format(mDate))
+                .append(' ').append(entry.thread)
+                .append(' ').append(entry.priority < PRIORITY_CHARS.length ? PRIORITY_CHARS[entry.priority] : '?')
+                .append(' ').append(entry.tag).append(": ");
+        BleLogger.appendMessage(mLine, entry.format, entry.argCount, entry.arg0, entry.arg1, entry.arg2);
+        mLine.append('\n');
+        if (entry.throwable != null) {
+            mLine.append(Log.getStackTraceString(entry.throwable)).append('\n');
+        }
+        write(mLine.toString());
+    }
+
+    private void write(String text) throws IOException {
+        if (mWriter == null || (maxFileBytes > 0 && mFileBytes >= maxFileBytes)) {
+            openWriter();
+        }
+        mWriter.write(text);
+        mFileBytes += text.length();
+    }
+
+    private void openWriter() throws IOException {
+        if (mWriter != null) {
+            closeWriter();
+            final File old = new File(mFile.getPath() + ".1");
+            if ((old.exists() && !old.delete()) || !mFile.renameTo(old)) {
+                throw new IOException("can not rotate " + mFile);
+            }
+        }
+        final File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("can not create " + parent);
+        }
+        mFileBytes = mFile.length();
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile, true), "UTF-8"), 8192);
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) {
+            }
+            mWriter = null;
+        }
+    }
+
+    private static final class Entry {
+        long time;
+        long thread;
+        int priority;
+        String tag;
+        String format;
+        int argCount;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+        Throwable throwable;
+
+        void copyFrom(Entry other) {
+            time = other.time;
+            thread = other.thread;
+            priority = other.priority;
+            tag = other.tag;
+            format = other.format;
+            argCount = other.argCount;
+            arg0 = other.arg0;
+            arg1 = other.arg1;
+            arg2 = other.arg2;
+            throwable = other.throwable;
+        }
+
+        void clear() {
+            tag = null;
+            format = null;
+            arg0 = null;
+            arg1 = null;
+            arg2 = null;
+            throwable = null;
+        }
+    }
+}
@@ -31,4 +31,16 @@ public abstract class OnLeWriteCharacteristicListener extends LeListener{
     public abstract void onSuccess(BluetoothGattCharacteristic characteristic);
 
     public abstract void onFailed(WriteBleException e);
+
+    /**
+     * Called after every confirmed packet of a payload that is longer than one packet and was
+     * split into several writes. {@link #onSuccess(BluetoothGattCharacteristic)} is called once
+     * when the whole payload has been written.
+     *
+     * @param sent  bytes written so far.
+     * @param total length of the whole payload.
+     */
+    public void onProgress(BluetoothGattCharacteristic characteristic, int sent, int total) {
+
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library;
+
+import android.os.SystemClock;
+
+/**
+ * Paces the request queue of one device when {@link BluetoothConfig#AUTO} is used.
+ * <p>
+ * The completion latency of every request type is measured with a moving average. A request that
+ * completed successfully lets the next one start right away, only errors and a busy stack make the
+ * queue wait, and the wait grows exponentially with consecutive errors.
+ * <p>
+ * Request types are given by their index, for example the ordinal of the queue's type enum.
+ */
+
+public final class QueuePacer {
+
+    private static final long MIN_BACKOFF = 10;
+    private static final long MAX_BACKOFF = 2000;
+    private static final int MAX_BACKOFF_SHIFT = 8;
+
+    private final long[] mAverageLatency;
+    private long mConnectionInterval = MIN_BACKOFF;
+    private long mStartTime;
+    private int mErrorCount;
+
+    /**
+     * @param typeCount number of request types, types are indexed from 0 to {@code typeCount - 1}.
+     */
+    public QueuePacer(int typeCount) {
+        mAverageLatency = new long[typeCount];
+    }
+
+    /**
+     * Sets the connection interval reported by the peripheral, used as the smallest backoff step.
+     */
+    public void setConnectionInterval(double connectionIntervalMillis) {
+        mConnectionInterval = Math.max(MIN_BACKOFF, (long) Math.ceil(connectionIntervalMillis));
+    }
+
+    public void onStart() {
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records the completion of a request started with {@link #onStart()}.
+     *
+     * @return the delay in milliseconds before the next request may start.
+     */
+    public long onComplete(int type, boolean success) {
+        if (mStartTime > 0) {
+            final long latency = SystemClock.elapsedRealtime() - mStartTime;
+            final long average = mAverageLatency[type];
+            mAverageLatency[type] = average == 0 ? latency : average + (latency - average) / 8;
+            mStartTime = 0;
+        }
+        if (success) {
+            mErrorCount = 0;
+            return 0;
+        }
+        return backoff(type);
+    }
+
+    /**
+     * Records that the stack refused to start a request.
+     *
+     * @return the delay in milliseconds before the request should be tried again.
+     */
+    public long onBusy(int type) {
+        mStartTime = 0;
+        return backoff(type);
+    }
+
+    /**
+     * @return the average completion latency of the given request type in milliseconds, or 0 if
+     * none has completed yet.
+     */
+    public long getAverageLatency(int type) {
+        return mAverageLatency[type];
+    }
+
+    public int getErrorCount() {
+        return mErrorCount;
+    }
+
+    private long backoff(int type) {
+        final long base = Math.max(mConnectionInterval, mAverageLatency[type]);
+        final int shift = Math.min(mErrorCount, MAX_BACKOFF_SHIFT);
+        mErrorCount++;
+        return Math.min(MAX_BACKOFF, base << shift);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides when a lost or failed connection is tried again.
+ * <p>
+ * The delay grows exponentially with every failed attempt and is jittered so that many devices
+ * lost at the same moment do not come back at the same moment. How fast the first retry happens
+ * depends on the reason of the failure: a supervision timeout usually means the peripheral only
+ * went briefly out of range and is retried at once, a stack error (133) needs the stack to settle
+ * first, and a peripheral that terminated the connection itself is given time to restart.
+ */
+
+public final class ReconnectEngine {
+
+    static final int GATT_CONN_TIMEOUT = 8;
+    static final int GATT_CONN_TERMINATE_PEER_USER = 19;
+    static final int GATT_CONN_TERMINATE_LOCAL_HOST = 22;
+    static final int GATT_CONN_FAIL_ESTABLISH = 62;
+    static final int GATT_ERROR = 133;
+
+    /** The attempt neither connected nor failed within the connect timeout. */
+    public static final int STATUS_CONNECT_TIMEOUT = -1;
+    /** Connected, but the services were not discovered within the service timeout. */
+    public static final int STATUS_SERVICE_TIMEOUT = -2;
+    /** Connected, but GATT requests kept timing out and the connection was closed. */
+    public static final int STATUS_REQUEST_TIMEOUT = -3;
+
+    static final long NO_RECONNECT = -1;
+
+    private static final long MAX_DELAY = 30000;
+    private static final int MAX_SHIFT = 10;
+
+    private final Random mRandom = new Random();
+    private final Map<Integer, Integer> mFailures = new HashMap<>();
+
+    private int maxAttempts = 1;
+    private int mAttempt;
+    private boolean mStopped;
+    private long mLostTime;
+
+    private int mAttemptCount;
+    private int mReconnectCount;
+    private int mGiveUpCount;
+    private long mLastReconnectDuration;
+
+    void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Starts a new session, called when the user connects.
+     */
+    synchronized void reset() {
+        mAttempt = 0;
+        mStopped = false;
+        mLostTime = 0;
+    }
+
+    /**
+     * The user disconnected, nothing is retried until the next {@link #reset()}.
+     */
+    synchronized void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * The connection is usable again.
+     */
+    synchronized void onSuccess() {
+        if (mLostTime > 0) {
+            mReconnectCount++;
+            mLastReconnectDuration = SystemClock.elapsedRealtime() - mLostTime;
+        }
+        mAttempt = 0;
+        mLostTime = 0;
+    }
+
+    /**
+     * @param status the GATT status of the disconnect, or one of the local {@code STATUS_*} values.
+     * @return the delay in milliseconds before reconnecting, or {@link #NO_RECONNECT}.
+     */
+    synchronized long onFailure(int status) {
+        final Integer failures = mFailures.get(status);
+        mFailures.put(status, failures == null ? 1 : failures + 1);
+        if (mStopped || status == GATT_CONN_TERMINATE_LOCAL_HOST) {
+            return NO_RECONNECT;
+        }
+        if (mAttempt >= maxAttempts) {
+            mGiveUpCount++;
+            mStopped = true;
+            return NO_RECONNECT;
+        }
+        if (mLostTime == 0) {
+            mLostTime = SystemClock.elapsedRealtime();
+        }
+        final int attempt = mAttempt++;
+        mAttemptCount++;
+        if (attempt == 0 && (status == GATT_CONN_TIMEOUT || status == STATUS_CONNECT_TIMEOUT)) {
+            return 0;
+        }
+        final long delay = Math.min(MAX_DELAY, getBaseDelay(status) << Math.min(attempt, MAX_SHIFT));
+        // Equal jitter: at least half of the delay, so the backoff still grows.
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    private static long getBaseDelay(int status) {
+        switch (status) {
+            case GATT_CONN_TIMEOUT:
+            case STATUS_CONNECT_TIMEOUT:
+                return 250;
+            case GATT_ERROR:
+            case GATT_CONN_FAIL_ESTABLISH:
+            case STATUS_SERVICE_TIMEOUT:
+            case STATUS_REQUEST_TIMEOUT:
+                return 500;
+            case GATT_CONN_TERMINATE_PEER_USER:
+                return 2000;
+            default:
+                return 1000;
+        }
+    }
+
+    /**
+     * @return reconnects started.
+     */
+    public synchronized int getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    /**
+     * @return lost connections that were usable again after reconnecting.
+     */
+    public synchronized int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * @return lost connections given up after the maximum number of attempts.
+     */
+    public synchronized int getGiveUpCount() {
+        return mGiveUpCount;
+    }
+
+    /**
+     * @return milliseconds from the loss to the recovery of the last reconnected connection.
+     */
+    public synchronized long getLastReconnectDuration() {
+        return mLastReconnectDuration;
+    }
+
+    /**
+     * @param status a GATT disconnection status or one of the {@code STATUS_*} values.
+     * @return failures reported with the status.
+     */
+    public synchronized int getFailureCount(int status) {
+        final Integer failures = mFailures.get(status);
+        return failures == null ? 0 : failures;
+    }
+}
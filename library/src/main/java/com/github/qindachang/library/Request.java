@@ -24,6 +24,8 @@ package com.github.qindachang.library;
 
 import android.bluetooth.BluetoothGattCharacteristic;
 
+import java.util.Arrays;
+
 /* package */ class Request {
 
     private byte[] mBytes;
@@ -32,12 +34,27 @@ import android.bluetooth.BluetoothGattCharacteristic;
         WRITE,
         READ,
         ENABLE_NOTIFICATIONS,
-        ENABLE_INDICATIONS
+        ENABLE_INDICATIONS,
+        REQUEST_MTU
     }
 
     public final Type type;
     private final BluetoothGattCharacteristic characteristic;
     private boolean enable;
+    private int mtu;
+
+    // Progress of a payload written in several packets.
+    private int mChunkSize;
+    private int mOffset;
+    private int mPendingChunks;
+    private int mConfirmedBytes;
+
+    // Timestamps for BleMetrics, 0 when the request is not timed.
+    long mEnqueueTime;
+    long mStartTime;
+
+    /** Completed with the result instead of the listeners, null for requests without one. */
+    private BleFuture<?> mFuture;
 
     private Request(final Type type, final BluetoothGattCharacteristic characteristic) {
         this.type = type;
@@ -56,6 +73,21 @@ import android.bluetooth.BluetoothGattCharacteristic;
         this.enable = enable;
     }
 
+    private Request(final Type type, final int mtu) {
+        this.type = type;
+        this.characteristic = null;
+        this.mtu = mtu;
+    }
+
+    void setFuture(BleFuture<?> future) {
+        mFuture = future;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> BleFuture<T> getFuture() {
+        return (BleFuture<T>) mFuture;
+    }
+
     public static Request newReadRequest(final BluetoothGattCharacteristic characteristic) {
         return new Request(Type.READ, characteristic);
     }
@@ -64,6 +96,10 @@ import android.bluetooth.BluetoothGattCharacteristic;
         return new Request(Type.WRITE, characteristic);
     }
 
+    public static Request newWriteRequest(final BluetoothGattCharacteristic characteristic, final byte[] bytes) {
+        return new Request(Type.WRITE, characteristic, bytes);
+    }
+
     public static Request newEnableNotificationsRequest(final boolean enable, final BluetoothGattCharacteristic characteristic) {
         return new Request(Type.ENABLE_NOTIFICATIONS, characteristic, enable);
     }
@@ -73,6 +109,10 @@ import android.bluetooth.BluetoothGattCharacteristic;
     }
 
 
+    public static Request newMtuRequest(final int mtu) {
+        return new Request(Type.REQUEST_MTU, mtu);
+    }
+
     public BluetoothGattCharacteristic getCharacteristic() {
         return characteristic;
     }
@@ -84,4 +124,61 @@ import android.bluetooth.BluetoothGattCharacteristic;
     public boolean isEnable() {
         return enable;
     }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Returns the next packet of the payload, without advancing. The chunk size is fixed by the
+     * first call so that the progress of a payload stays consistent.
+     */
+    byte[] getChunk(int chunkSize) {
+        if (mBytes == null) {
+            return null;
+        }
+        if (mChunkSize == 0) {
+            mChunkSize = Math.max(1, chunkSize);
+        }
+        final int length = Math.min(mChunkSize, mBytes.length - mOffset);
+        if (mOffset == 0 && length == mBytes.length) {
+            return mBytes;
+        }
+        return Arrays.copyOfRange(mBytes, mOffset, mOffset + length);
+    }
+
+    /**
+     * The packet returned by {@link #getChunk(int)} was accepted by the Bluetooth stack.
+     */
+    void onChunkSent() {
+        if (mBytes != null) {
+            mOffset += Math.min(mChunkSize, mBytes.length - mOffset);
+        }
+        mPendingChunks++;
+    }
+
+    /**
+     * A packet was confirmed by onCharacteristicWrite.
+     *
+     * @return true if it was the last packet of the payload.
+     */
+    boolean onChunkConfirmed() {
+        mPendingChunks--;
+        if (mBytes != null) {
+            mConfirmedBytes = Math.min(mBytes.length, mConfirmedBytes + mChunkSize);
+        }
+        return !hasRemaining() && mPendingChunks <= 0;
+    }
+
+    boolean hasRemaining() {
+        return mBytes != null && mOffset < mBytes.length;
+    }
+
+    boolean isChunked() {
+        return mBytes != null && mChunkSize > 0 && mBytes.length > mChunkSize;
+    }
+
+    int getConfirmedBytes() {
+        return mConfirmedBytes;
+    }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.qindachang.library;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Watches the deadlines of the GATT requests of all connections from one shared thread.
+ * <p>
+ * Android does not promise that every BluetoothGatt call is answered by its callback, and a request
+ * queue waiting for a lost callback would be blocked for good. A queue therefore arms a
+ * {@link Deadline} when a request reaches the Bluetooth stack and cancels it when the callback
+ * arrives. Deadlines are kept in a heap ordered by expiry and only the earliest one has a wakeup
+ * pending on the thread, so arming and cancelling stay cheap however many connections are busy.
+ * Cancelled deadlines are dropped lazily once they reach the top of the heap. The thread is started
+ * with the first deadline and then kept, it only wakes up for expiries.
+ */
+
+public final class RequestWatchdog {
+
+    /** Cancelled deadlines tolerated in the heap before they are removed all at once. */
+    private static final int PURGE_THRESHOLD = 64;
+
+    private static volatile RequestWatchdog sInstance;
+
+    private final PriorityQueue<Deadline> mDeadlines = new PriorityQueue<>();
+    private int mCancelledCount;
+    private long mSequence;
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            expire();
+        }
+    };
+
+    public static RequestWatchdog getDefault() {
+        if (sInstance == null) {
+            synchronized (RequestWatchdog.class) {
+                if (sInstance == null) {
+                    sInstance = new RequestWatchdog();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private RequestWatchdog() {
+    }
+
+    /**
+     * Arms a deadline.
+     *
+     * @param timeoutMillis time the request may take.
+     * @param onExpired     runs on the watchdog thread unless the deadline is cancelled in time.
+     */
+    public synchronized Deadline schedule(long timeoutMillis, Runnable onExpired) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be at least 1");
+        }
+        if (mHandlerThread == null) {
+            mHandlerThread = new HandlerThread("BleWatchdog");
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper());
+        }
+        final Deadline deadline = new Deadline(SystemClock.uptimeMillis() + timeoutMillis, mSequence++, onExpired);
+        mDeadlines.add(deadline);
+        if (mDeadlines.peek() == deadline) {
+            mHandler.removeCallbacks(mWakeup);
+            mHandler.postAtTime(mWakeup, deadline.expiry);
+        }
+        return deadline;
+    }
+
+    /**
+     * @return deadlines armed and neither cancelled nor expired yet.
+     */
+    public synchronized int getPendingCount() {
+        return mDeadlines.size() - mCancelledCount;
+    }
+
+    private void expire() {
+        final List<Deadline> expired = new ArrayList<>();
+        synchronized (this) {
+            final long now = SystemClock.uptimeMillis();
+            Deadline head;
+            while ((head = mDeadlines.peek()) != null && (head.mCancelled || head.expiry <= now)) {
+                mDeadlines.poll();
+                if (head.mCancelled) {
+                    mCancelledCount--;
+                } else {
+                    head.mExpired = true;
+                    expired.add(head);
+                }
+            }
+            if (head != null) {
+                mHandler.postAtTime(mWakeup, head.expiry);
+            }
+        }
+        // Run without holding the lock, the tasks usually arm the deadline of the next request.
+        for (Deadline deadline : expired) {
+            deadline.onExpired.run();
+        }
+    }
+
+    private void purge() {
+        final List<Deadline> pending = new ArrayList<>(mDeadlines.size() - mCancelledCount);
+        for (Deadline deadline : mDeadlines) {
+            if (!deadline.mCancelled) {
+                pending.add(deadline);
+            }
+        }
+        mDeadlines.clear();
+        mDeadlines.addAll(pending);
+        mCancelledCount = 0;
+    }
+
+    public final class Deadline implements Comparable<Deadline> {
+        final long expiry;
+        final long sequence;
+        final Runnable onExpired;
+        boolean mCancelled;
+        boolean mExpired;
+
+        private Deadline(long expiry, long sequence, Runnable onExpired) {
+            this.expiry = expiry;
+            this.sequence = sequence;
+            this.onExpired = onExpired;
+        }
+
+        /**
+         * Disarms the deadline, does nothing once it expired.
+         */
+        public void cancel() {
+            synchronized (RequestWatchdog.this) {
+                if (mCancelled || mExpired) {
+                    return;
+                }
+                mCancelled = true;
+                if (++mCancelledCount > PURGE_THRESHOLD && mCancelledCount > mDeadlines.size() / 2) {
+                    purge();
+                }
+            }
+        }
+
+        /**
+         * @return true once the deadline passed without being cancelled.
+         */
+        public boolean isExpired() {
+            synchronized (RequestWatchdog.this) {
+                return mExpired;
+            }
+        }
+
+        @Override
+        public int compareTo(Deadline another) {
+            if (expiry != another.expiry) {
+                return expiry < another.expiry ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : sequence == another.sequence ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Polls the RSSI of all connections from one shared thread.
+ * <p>
+ * Every connection registers an {@link RssiReader} with its interval. A read is skipped while the
+ * connection has a GATT request in flight and retried a little later, and the connection holds its
+ * queue back until the read completes, so RSSI reads never compete with queued requests; a
+ * connection that stays busy for a whole interval simply misses that read. The thread is started
+ * with the first registration and stopped once nothing was registered for {@link #IDLE_TIMEOUT} ms,
+ * so connections coming and going do not restart it each time.
+ */
+
+public final class RssiScheduler {
+
+    private static final int FIRST_READ_DELAY = 100;
+    private static final int BUSY_RETRY_DELAY = 50;
+    static final int IDLE_TIMEOUT = 30000;
+
+    public interface RssiReader {
+        /**
+         * @return false if the connection is busy and the read should be retried shortly.
+         */
+        boolean readRssi();
+    }
+
+    private static volatile RssiScheduler sInstance;
+
+    private final Map<Object, Entry> mEntries = new HashMap<>();
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    private final Runnable mQuitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RssiScheduler.this) {
+                if (mEntries.isEmpty() && mHandlerThread != null) {
+                    mHandlerThread.quit();
+                    mHandlerThread = null;
+                    mHandler = null;
+                }
+            }
+        }
+    };
+
+    public static RssiScheduler getDefault() {
+        if (sInstance == null) {
+            synchronized (RssiScheduler.class) {
+                if (sInstance == null) {
+                    sInstance = new RssiScheduler();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private RssiScheduler() {
+    }
+
+    /**
+     * Starts polling, replacing the previous registration of the same key.
+     *
+     * @param key            identifies the connection.
+     * @param intervalMillis time between two reads.
+     */
+    public synchronized void start(Object key, int intervalMillis, RssiReader reader) {
+        stopLocked(key);
+        if (mHandlerThread == null) {
+            mHandlerThread = new HandlerThread("BleRssi");
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper());
+        }
+        mHandler.removeCallbacks(mQuitRunnable);
+        final Entry entry = new Entry(Math.max(BUSY_RETRY_DELAY, intervalMillis), reader);
+        mEntries.put(key, entry);
+        entry.mDue = SystemClock.elapsedRealtime() + FIRST_READ_DELAY;
+        mHandler.postDelayed(entry, FIRST_READ_DELAY);
+    }
+
+    public synchronized void stop(Object key) {
+        stopLocked(key);
+        if (mEntries.isEmpty() && mHandler != null) {
+            mHandler.removeCallbacks(mQuitRunnable);
+            mHandler.postDelayed(mQuitRunnable, IDLE_TIMEOUT);
+        }
+    }
+
+    public synchronized boolean isRunning(Object key) {
+        return mEntries.containsKey(key);
+    }
+
+    private void stopLocked(Object key) {
+        final Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            entry.mCancelled = true;
+            mHandler.removeCallbacks(entry);
+        }
+    }
+
+    private final class Entry implements Runnable {
+        final int interval;
+        final RssiReader reader;
+        long mDue;
+        boolean mCancelled;
+
+        Entry(int interval, RssiReader reader) {
+            this.interval = interval;
+            this.reader = reader;
+        }
+
+        @Override
+        public void run() {
+            synchronized (RssiScheduler.this) {
+                if (mCancelled) {
+                    return;
+                }
+            }
+            final boolean read = reader.readRssi();
+            synchronized (RssiScheduler.this) {
+                if (mCancelled) {
+                    return;
+                }
+                final long now = SystemClock.elapsedRealtime();
+                if (!read && now + BUSY_RETRY_DELAY < mDue + interval) {
+                    mHandler.postDelayed(this, BUSY_RETRY_DELAY);
+                    return;
+                }
+                mDue += interval;
+                if (mDue <= now) {
+                    // Fell behind, for example while the connection was busy: skip the missed reads.
+                    mDue = now + interval;
+                }
+                mHandler.postDelayed(this, mDue - now);
+            }
+        }
+    }
+}
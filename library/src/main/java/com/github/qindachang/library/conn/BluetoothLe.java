@@ -11,4 +11,24 @@ public final class BluetoothLe {
     public static BluetoothLeConnectorImpl newConnector() {
         return new BluetoothLeConnectorImpl();
     }
+
+    public static BluetoothLeConnectionManager newConnectionManager() {
+        return new BluetoothLeConnectionManager();
+    }
+
+    /**
+     * Every connected device may have a GATT request in flight at the same time.
+     */
+    public static BluetoothLeConnectionManager newConnectionManager(int maxConnections) {
+        return new BluetoothLeConnectionManager(maxConnections);
+    }
+
+    /**
+     * @param maxConnections        how many devices may be connected at the same time.
+     * @param maxConcurrentRequests how many GATT requests of different devices may be in flight at
+     *                              the same time, 1 serializes all of them.
+     */
+    public static BluetoothLeConnectionManager newConnectionManager(int maxConnections, int maxConcurrentRequests) {
+        return new BluetoothLeConnectionManager(maxConnections, maxConcurrentRequests);
+    }
 }
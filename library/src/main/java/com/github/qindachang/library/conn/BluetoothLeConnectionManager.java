@@ -0,0 +1,152 @@
+package com.github.qindachang.library.conn;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+
+import com.github.qindachang.library.BluetoothConfig;
+import com.github.qindachang.library.exception.BleException;
+import com.github.qindachang.library.exception.ConnBleException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one {@link BluetoothLeConnector} per remote device and caps how many of them may be
+ * connected at once. Android stacks usually give up somewhere around 7 simultaneous GATT
+ * connections, so connecting past the limit is refused instead of left to fail later.
+ * <p/>
+ * GATT requests of all connections go through one shared scheduler: at most
+ * {@code maxConcurrentRequests} are in flight together and the devices take turns.
+ */
+
+public class BluetoothLeConnectionManager {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    private final int maxConnections;
+    private final RequestScheduler mScheduler;
+    private final Map<String, BluetoothLeConnectorImpl> mConnectors = new LinkedHashMap<>();
+    private BluetoothConfig mConfig;
+
+    BluetoothLeConnectionManager() {
+        this(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    BluetoothLeConnectionManager(int maxConnections) {
+        this(maxConnections, maxConnections);
+    }
+
+    /**
+     * @param maxConnections        how many devices may be connected at the same time.
+     * @param maxConcurrentRequests how many GATT requests of different devices may be in flight at
+     *                              the same time, 1 serializes all of them.
+     */
+    BluetoothLeConnectionManager(int maxConnections, int maxConcurrentRequests) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnections = maxConnections;
+        mScheduler = new RequestScheduler(maxConcurrentRequests);
+    }
+
+    /**
+     * Applied to every connector, including the ones created later.
+     *
+     * @throws IllegalStateException if the callback thread changes while a device is connected.
+     */
+    public synchronized void setConfig(@NonNull BluetoothConfig config) {
+        for (BluetoothLeConnectorImpl connector : mConnectors.values()) {
+            if (!connector.acceptsConfig(config)) {
+                throw new IllegalStateException("callback thread cannot change while a device is connected.");
+            }
+        }
+        mConfig = config;
+        for (BluetoothLeConnectorImpl connector : mConnectors.values()) {
+            connector.setConfig(config);
+        }
+    }
+
+    /**
+     * @return the connector of the device, created on first use.
+     */
+    public synchronized BluetoothLeConnector getConnector(@NonNull BluetoothDevice bluetoothDevice) {
+        BluetoothLeConnectorImpl connector = mConnectors.get(bluetoothDevice.getAddress());
+        if (connector == null) {
+            connector = new BluetoothLeConnectorImpl(mScheduler);
+            if (mConfig != null) {
+                connector.setConfig(mConfig);
+            }
+            mConnectors.put(bluetoothDevice.getAddress(), connector);
+        }
+        return connector;
+    }
+
+    /**
+     * @return the connector of the device, null if it was never used.
+     */
+    public synchronized BluetoothLeConnector getConnector(@NonNull String address) {
+        return mConnectors.get(address);
+    }
+
+    /**
+     * Connects the device unless the connection limit is reached, in which case the
+     * {@link ConnectListener}s of its connector receive an error.
+     */
+    public synchronized boolean connect(boolean autoConnect, @NonNull BluetoothDevice bluetoothDevice) {
+        final BluetoothLeConnectorImpl connector = (BluetoothLeConnectorImpl) getConnector(bluetoothDevice);
+        if (!connector.isActive() && getConnectionCount() >= maxConnections) {
+            connector.connectError(new ConnBleException(233, BleException.CONNECT,
+                    "too many connections, the limit is " + maxConnections + "."));
+            return false;
+        }
+        return connector.connect(autoConnect, bluetoothDevice);
+    }
+
+    public synchronized void disconnect(@NonNull String address) {
+        final BluetoothLeConnectorImpl connector = mConnectors.get(address);
+        if (connector != null) {
+            connector.disconnect();
+        }
+    }
+
+    /**
+     * Closes the connection of the device and forgets its connector.
+     */
+    public synchronized void close(@NonNull String address) {
+        final BluetoothLeConnectorImpl connector = mConnectors.remove(address);
+        if (connector != null) {
+            connector.close();
+        }
+    }
+
+    public synchronized void closeAll() {
+        for (BluetoothLeConnectorImpl connector : mConnectors.values()) {
+            connector.close();
+        }
+        mConnectors.clear();
+    }
+
+    /**
+     * @return how many devices hold a GATT client, that is connected, connecting or disconnected
+     * but not closed yet.
+     */
+    public synchronized int getConnectionCount() {
+        int count = 0;
+        for (BluetoothLeConnectorImpl connector : mConnectors.values()) {
+            if (connector.isActive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized List<BluetoothLeConnector> getConnectors() {
+        return new ArrayList<BluetoothLeConnector>(mConnectors.values());
+    }
+}
@@ -8,6 +8,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 
 import com.github.qindachang.library.BluetoothConfig;
+import com.github.qindachang.library.exception.ConnBleException;
 
 import java.util.UUID;
 
@@ -23,11 +24,19 @@ class BluetoothLeConnectorImpl implements BluetoothLeConnector {
         mCommand = new Command();
     }
 
+    BluetoothLeConnectorImpl(RequestScheduler scheduler) {
+        mCommand = new Command(scheduler);
+    }
+
     @Override
     public void setConfig(@NonNull BluetoothConfig config) {
         mCommand.setConfig(config);
     }
 
+    boolean acceptsConfig(BluetoothConfig config) {
+        return mCommand.acceptsConfig(config);
+    }
+
     @Override
     public boolean writeCharacteristic(byte[] bytes,@NonNull  UUID serviceUUID,@NonNull  UUID characteristicUUID) {
         return mCommand.writeCharacteristic(bytes, serviceUUID, characteristicUUID);
@@ -40,7 +49,7 @@ class BluetoothLeConnectorImpl implements BluetoothLeConnector {
 
     @Override
     public void addWriteCharacteristicListener(WriteCharacteristicListener writeCharacteristicListener) {
-
+        mCommand.addListener(writeCharacteristicListener);
     }
 
     @Override
@@ -50,7 +59,7 @@ class BluetoothLeConnectorImpl implements BluetoothLeConnector {
 
     @Override
     public void addReadCharacteristicListener(ReadCharacteristicListener readCharacteristicListener) {
-
+        mCommand.addListener(readCharacteristicListener);
     }
 
     @Override
@@ -60,7 +69,7 @@ class BluetoothLeConnectorImpl implements BluetoothLeConnector {
 
     @Override
     public void addIndicationListener(IndicationListener indicationListener) {
-
+        mCommand.addListener(indicationListener);
     }
 
     @Override
@@ -70,7 +79,7 @@ class BluetoothLeConnectorImpl implements BluetoothLeConnector {
 
     @Override
     public void addNotificationListener(NotificationListener notificationListener) {
-
+        mCommand.addListener(notificationListener);
     }
 
     @Override
@@ -91,7 +100,7 @@ class BluetoothLeConnectorImpl implements BluetoothLeConnector {
 
     @Override
     public void addRssiListener(int milliseconds, RssiListener rssiListener) {
-
+        mCommand.addRssiListener(milliseconds, rssiListener);
     }
 
     @Override
@@ -113,4 +122,16 @@ class BluetoothLeConnectorImpl implements BluetoothLeConnector {
     public BluetoothDevice getBluetoothDevice() {
         return mCommand.getBluetoothDevice();
     }
+
+    boolean isConnected() {
+        return mCommand.isConnected();
+    }
+
+    boolean isActive() {
+        return mCommand.isActive();
+    }
+
+    void connectError(ConnBleException e) {
+        mCommand.connectError(e);
+    }
 }
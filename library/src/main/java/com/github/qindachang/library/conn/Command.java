@@ -2,124 +2,444 @@ package com.github.qindachang.library.conn;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.os.Build;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
-import android.support.annotation.NonNull;
 
+import com.github.qindachang.library.AndroidGattTransport;
+import com.github.qindachang.library.BleMetrics;
 import com.github.qindachang.library.BluetoothConfig;
+import com.github.qindachang.library.ConnectScheduler;
+import com.github.qindachang.library.GattTransport;
+import com.github.qindachang.library.QueuePacer;
+import com.github.qindachang.library.RequestWatchdog;
+import com.github.qindachang.library.RssiScheduler;
 import com.github.qindachang.library.exception.BleException;
 import com.github.qindachang.library.exception.ConnBleException;
+import com.github.qindachang.library.exception.ReadBleException;
+import com.github.qindachang.library.exception.WriteBleException;
 
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 
 /**
  * Created by qindachang on 2017/3/10.
  */
 
 class Command {
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final int MAX_BUSY_RETRIES = 5;
+
+    /** Shared by the connections that deliver their callbacks on a background thread, never quit. */
+    private static HandlerThread sCallbackThread;
+
     private boolean mConnected;
+    private boolean mServiceDiscovered;
+    private boolean mConnectPending;
     private BluetoothDevice mBluetoothDevice;
-    private BluetoothGatt mBluetoothGatt;
-    private Set<Listener> mListeners = new LinkedHashSet<>();
+    private GattTransport mBluetoothGatt;
+    private GattTransport.Factory mTransportFactory = AndroidGattTransport.FACTORY;
+    private Set<Listener> mListeners = new CopyOnWriteArraySet<>();
+    private RequestQueue mRequestQueue = new RequestQueue();
+    private final BleMetrics mMetrics = BleMetrics.getDefault();
+    private long mConnectStartTime;
+    private long mDiscoverStartTime;
+    private long mRssiStartTime;
+
+    /** Shares GATT operations with the other connections of a connection manager, null if used alone. */
+    private final RequestScheduler mScheduler;
+
+    private int readRssiIntervalMillisecond;
+
+    Command() {
+        this(null);
+    }
+
+    Command(RequestScheduler scheduler) {
+        mScheduler = scheduler;
+    }
 
-    BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    GattTransport.Callback mGattCallback = new GattTransport.Callback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        public void onConnectionStateChange(final GattTransport gatt, final int status, int newState) {
             super.onConnectionStateChange(gatt, status, newState);
+            if (newState == BluetoothProfile.STATE_CONNECTED || newState == BluetoothProfile.STATE_DISCONNECTED) {
+                ConnectScheduler.getDefault().onFinished(gatt.getDevice().getAddress());
+            }
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnected = true;
+                mMetrics.recordLatency(gatt.getDevice().getAddress(), BleMetrics.CONNECT, mConnectStartTime);
+                mConnectStartTime = 0;
+                runOnCallbackThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Listener listener : mListeners) {
+                            if (listener instanceof ConnectListener) {
+                                ((ConnectListener) listener).connected();
+                            }
+                        }
+                    }
+                });
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_BONDING && mBluetoothGatt != null) {
+                            mDiscoverStartTime = mMetrics.startTime();
+                            mBluetoothGatt.discoverServices();
+                        }
+                    }
+                }, 600);
+                startReadRssi();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                final boolean wasConnected = mConnected;
+                mConnected = false;
+                mServiceDiscovered = false;
+                stopReadRssi();
+                mRequestQueue.failAll("connection lost.");
+                runOnCallbackThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Listener listener : mListeners) {
+                            if (listener instanceof ConnectListener) {
+                                if (wasConnected || status == BluetoothGatt.GATT_SUCCESS) {
+                                    ((ConnectListener) listener).disconnected();
+                                } else {
+                                    ((ConnectListener) listener).error(
+                                            new ConnBleException(status, BleException.CONNECT, "Error on connection state change."));
+                                }
+                            }
+                        }
+                    }
+                });
+            }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        public void onServicesDiscovered(final GattTransport gatt, final int status) {
             super.onServicesDiscovered(gatt, status);
+            mServiceDiscovered = status == BluetoothGatt.GATT_SUCCESS;
+            if (mServiceDiscovered) {
+                mMetrics.recordLatency(gatt.getDevice().getAddress(), BleMetrics.DISCOVER_SERVICES, mDiscoverStartTime);
+            }
+            mDiscoverStartTime = 0;
+            runOnCallbackThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : mListeners) {
+                        if (listener instanceof ConnectListener) {
+                            ((ConnectListener) listener).onServicesDiscovered(gatt.getBluetoothGatt(), status);
+                        }
+                    }
+                }
+            });
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        public void onCharacteristicRead(GattTransport gatt, final BluetoothGattCharacteristic characteristic, final int status) {
             super.onCharacteristicRead(gatt, characteristic, status);
+            if (!mRequestQueue.complete(CommandQueue.Type.READ, characteristic, status)) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                runOnCallbackThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Listener listener : mListeners) {
+                            if (listener instanceof ReadCharacteristicListener) {
+                                ((ReadCharacteristicListener) listener).onReaded(characteristic);
+                            }
+                        }
+                    }
+                });
+            } else {
+                readError(new ReadBleException(status, BleException.READ_CHARACTERISTIC, "Error on reading characteristic."));
+            }
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        public void onCharacteristicWrite(GattTransport gatt, final BluetoothGattCharacteristic characteristic, final int status) {
             super.onCharacteristicWrite(gatt, characteristic, status);
+            if (!mRequestQueue.complete(CommandQueue.Type.WRITE, characteristic, status)) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                runOnCallbackThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Listener listener : mListeners) {
+                            if (listener instanceof WriteCharacteristicListener) {
+                                ((WriteCharacteristicListener) listener).onWrited(characteristic);
+                            }
+                        }
+                    }
+                });
+            } else {
+                writeError(new WriteBleException(status, BleException.WRITE_CHARACTERISTIC, "Error on writing characteristic."));
+            }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        public void onCharacteristicChanged(GattTransport gatt, final BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicChanged(gatt, characteristic);
+            if (mMetrics.isEnabled()) {
+                final byte[] value = characteristic.getValue();
+                mMetrics.recordNotification(gatt.getDevice().getAddress(), characteristic.getUuid(),
+                        value != null ? value.length : 0);
+            }
+            runOnCallbackThread(new Runnable() {
+                @Override
+                public void run() {
+                    final BluetoothGattDescriptor cccd = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
+                    final boolean notifications = cccd == null || cccd.getValue() == null || cccd.getValue().length != 2 || cccd.getValue()[0] == 0x01;
+                    for (Listener listener : mListeners) {
+                        if (notifications && listener instanceof NotificationListener) {
+                            ((NotificationListener) listener).onNotify(characteristic);
+                        } else if (!notifications && listener instanceof IndicationListener) {
+                            ((IndicationListener) listener).onIndicate(characteristic);
+                        }
+                    }
+                }
+            });
         }
 
         @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        public void onDescriptorRead(GattTransport gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorRead(gatt, descriptor, status);
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        public void onDescriptorWrite(GattTransport gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorWrite(gatt, descriptor, status);
+            mRequestQueue.complete(CommandQueue.Type.NOTIFY, descriptor.getCharacteristic(), status);
         }
 
         @Override
-        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+        public void onReliableWriteCompleted(GattTransport gatt, int status) {
             super.onReliableWriteCompleted(gatt, status);
         }
 
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+        public void onReadRemoteRssi(GattTransport gatt, final int rssi, int status) {
             super.onReadRemoteRssi(gatt, rssi, status);
+            mMetrics.recordLatency(gatt.getDevice().getAddress(), BleMetrics.READ_RSSI, mRssiStartTime);
+            mRssiStartTime = 0;
+            mRequestQueue.onRssiRead();
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                return;
+            }
+            runOnCallbackThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : mListeners) {
+                        if (listener instanceof RssiListener) {
+                            ((RssiListener) listener).onRssi(rssi, Utils.getDistance(rssi));
+                        }
+                    }
+                }
+            });
         }
 
         @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        public void onMtuChanged(GattTransport gatt, int mtu, int status) {
             super.onMtuChanged(gatt, mtu, status);
         }
     };
 
+    /**
+     * The Write Without Response window and the preferred MTU of the config are not supported,
+     * requests are sent one packet at a time with the default MTU.
+     *
+     * @throws IllegalStateException if the callback thread changes while the connection is active.
+     */
     void setConfig(BluetoothConfig config) {
+        if (!acceptsConfig(config)) {
+            throw new IllegalStateException("callback thread cannot change while connected.");
+        }
+        if (config.getCallbackOnBackgroundThread() != isOnBackgroundThread()) {
+            mHandler = new Handler(config.getCallbackOnBackgroundThread() ? getCallbackLooper() : Looper.getMainLooper());
+        }
+        mCallbackExecutor = config.getCallbackExecutor();
+        enableQueueDelay = config.getEnableQueueDelay();
+        queueDelayTime = config.getQueueDelayTime();
+        requestTimeout = config.getRequestTimeout();
+        requestTimeoutsBeforeReconnect = config.getRequestTimeoutsBeforeReconnect();
+        mTransportFactory = config.getGattTransportFactory() == null ? AndroidGattTransport.FACTORY
+                : config.getGattTransportFactory();
+    }
+
+    /**
+     * @return false if the config moves the callbacks to another thread while timers of the
+     * connection may be pending on the current one.
+     */
+    boolean acceptsConfig(BluetoothConfig config) {
+        return config.getCallbackOnBackgroundThread() == isOnBackgroundThread() || !isActive();
+    }
+
+    private boolean isOnBackgroundThread() {
+        return mHandler.getLooper() != Looper.getMainLooper();
+    }
 
+    private static synchronized Looper getCallbackLooper() {
+        if (sCallbackThread == null) {
+            sCallbackThread = new HandlerThread("BleConnCallback");
+            sCallbackThread.start();
+        }
+        return sCallbackThread.getLooper();
     }
 
     boolean writeCharacteristic(byte[] bytes, UUID serviceUUID, UUID characteristicUUID) {
-        return false;
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUUID, characteristicUUID);
+        if (characteristic == null) {
+            writeError(new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
+                    "can not find characteristic form given characteristic uuid : " + characteristicUUID +
+                            ", where in given service uuid : " + serviceUUID));
+            return false;
+        }
+        mRequestQueue.addRequest(CommandQueue.newWriteRequest(characteristic, bytes));
+        return true;
     }
 
 
     boolean readCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
-        return false;
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUUID, characteristicUUID);
+        if (characteristic == null) {
+            readError(new ReadBleException(233, BleException.READ_CHARACTERISTIC,
+                    "can not find characteristic form given characteristic uuid : " + characteristicUUID +
+                            ", where in given service uuid : " + serviceUUID));
+            return false;
+        }
+        mRequestQueue.addRequest(CommandQueue.newReadRequest(characteristic));
+        return true;
     }
 
     void enableIndication(boolean enable, UUID serviceUUID, UUID characteristicUUID) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUUID, characteristicUUID);
+        if (characteristic == null) {
+            indicationError(new BleException(233, BleException.INDICATION,
+                    "can not find characteristic form given characteristic uuid : " + characteristicUUID +
+                            ", where in given service uuid : " + serviceUUID));
+            return;
+        }
+        mRequestQueue.addRequest(CommandQueue.newEnableIndicationsRequest(enable, characteristic));
     }
 
     void enableNotification(boolean enable, UUID serviceUUID, UUID characteristicUUID) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUUID, characteristicUUID);
+        if (characteristic == null) {
+            notificationError(new BleException(233, BleException.NOTIFICATION,
+                    "can not find characteristic form given characteristic uuid : " + characteristicUUID +
+                            ", where in given service uuid : " + serviceUUID));
+            return;
+        }
+        mRequestQueue.addRequest(CommandQueue.newEnableNotificationsRequest(enable, characteristic));
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+        final GattTransport gatt = mBluetoothGatt;
+        if (gatt == null || serviceUUID == null || characteristicUUID == null) {
+            return null;
+        }
+        final BluetoothGattService service = gatt.getService(serviceUUID);
+        if (service == null) {
+            return null;
+        }
+        return service.getCharacteristic(characteristicUUID);
     }
 
     boolean connect(boolean auto, BluetoothDevice bluetoothDevice) {
+        return connect(auto, bluetoothDevice, -1);
+    }
+
+    /**
+     * @param TRANSPORT a {@code BluetoothDevice.TRANSPORT_*} value, -1 for the default transport.
+     */
+    boolean connect(boolean auto, final BluetoothDevice bluetoothDevice, final int TRANSPORT) {
         if (mBluetoothGatt != null) {
             mBluetoothGatt.close();
             mBluetoothGatt = null;
             mConnected = false;
         }
-        mBluetoothGatt = bluetoothDevice.connectGatt(null, auto, mGattCallback);
+        mBluetoothDevice = bluetoothDevice;
+        if (auto) {
+            return connectGatt(true, bluetoothDevice, TRANSPORT);
+        }
+        mConnectPending = true;
+        return ConnectScheduler.getDefault().enqueue(bluetoothDevice.getAddress(), ConnectScheduler.PRIORITY_NORMAL,
+                new ConnectScheduler.ConnectTask() {
+                    @Override
+                    public boolean connect() {
+                        return mBluetoothDevice == bluetoothDevice && !mConnected
+                                && connectGatt(false, bluetoothDevice, TRANSPORT);
+                    }
+
+                    @Override
+                    public void onTimeout() {
+                        if (mBluetoothDevice != bluetoothDevice || mConnected) {
+                            return;
+                        }
+                        mConnectPending = false;
+                        if (mBluetoothGatt != null) {
+                            mBluetoothGatt.close();
+                            mBluetoothGatt = null;
+                        }
+                        connectError(new ConnBleException(BleException.STATUS_TIMEOUT, BleException.CONNECT, "connect timeout."));
+                    }
+                });
+    }
+
+    private boolean connectGatt(boolean auto, BluetoothDevice bluetoothDevice, int TRANSPORT) {
+        mConnectPending = false;
+        mConnectStartTime = mMetrics.startTime();
+        mBluetoothGatt = mTransportFactory.connect(null, bluetoothDevice, auto, TRANSPORT, mGattCallback);
+        connecting();
         return mBluetoothGatt != null;
     }
 
-    @android.support.annotation.RequiresApi(api = Build.VERSION_CODES.M)
-    boolean connect(boolean auto, BluetoothDevice bluetoothDevice, int TRANSPORT) {
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.close();
-            mBluetoothGatt = null;
-            mConnected = false;
+    private void cancelConnect() {
+        mConnectPending = false;
+        if (mBluetoothDevice != null) {
+            ConnectScheduler.getDefault().cancel(mBluetoothDevice.getAddress());
         }
-        mBluetoothGatt = bluetoothDevice.connectGatt(null, auto, mGattCallback, TRANSPORT);
-        return mBluetoothGatt != null;
+    }
+
+    private void connecting() {
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    if (listener instanceof ConnectListener) {
+                        ((ConnectListener) listener).connecting();
+                    }
+                }
+            }
+        });
+    }
+
+    void connectError(final ConnBleException e) {
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    if (listener instanceof ConnectListener) {
+                        ((ConnectListener) listener).error(e);
+                    }
+                }
+            }
+        });
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
     }
 
     void addConnectListener(ConnectListener connectListener) {
@@ -128,13 +448,31 @@ class Command {
 
     void addRssiListener(int millisecond, RssiListener rssiListener) {
         mListeners.add(rssiListener);
+        readRssiIntervalMillisecond = millisecond;
+        if (mConnected) {
+            startReadRssi();
+        }
     }
 
     void disconnect() {
-
+        cancelConnect();
+        stopReadRssi();
+        mRequestQueue.failAll("disconnected.");
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.disconnect();
+        }
     }
 
     void close() {
+        cancelConnect();
+        stopReadRssi();
+        mRequestQueue.cancelAll();
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        mConnected = false;
+        mServiceDiscovered = false;
         mListeners.clear();
         mBluetoothDevice = null;
     }
@@ -143,37 +481,260 @@ class Command {
         return mListeners.remove(listener);
     }
 
+    boolean isConnected() {
+        return mConnected;
+    }
+
+    boolean isServiceDiscovered() {
+        return mServiceDiscovered;
+    }
+
+    /**
+     * @return true while a connection is waiting for its turn, being established or established.
+     */
+    boolean isActive() {
+        return mConnectPending || mBluetoothGatt != null;
+    }
+
     boolean write(BluetoothGattCharacteristic characteristic) {
-        return false;
+        if (characteristic == null) {
+            writeError(new WriteBleException(233, BleException.WRITE_CHARACTERISTIC, "characteristic is null"));
+            return false;
+        }
+        mRequestQueue.addRequest(CommandQueue.newWriteRequest(characteristic, null));
+        return true;
     }
 
-    private void read(BluetoothGattCharacteristic characteristic) {
+    private void write(BluetoothGattCharacteristic characteristic, byte[] bytes) {
+        final GattTransport gatt = mBluetoothGatt;
+        if (gatt == null) {
+            writeError(new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
+                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
+            mRequestQueue.next();
+            return;
+        }
+        final int properties = characteristic.getProperties();
+        if ((properties & (BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
+            writeError(new WriteBleException(233, BleException.WRITE_CHARACTERISTIC,
+                    "characteristic : " + characteristic.getUuid() + ", property not support write."));
+            mRequestQueue.next();
+            return;
+        }
+        if (bytes != null) {
+            characteristic.setValue(bytes);
+        }
+        mRequestQueue.onStarted(gatt.writeCharacteristic(characteristic));
+    }
 
+    private void read(BluetoothGattCharacteristic characteristic) {
+        final GattTransport gatt = mBluetoothGatt;
+        if (gatt == null) {
+            readError(new ReadBleException(233, BleException.READ_CHARACTERISTIC,
+                    "BluetoothGatt object is null. check connect status and onServicesDiscovered."));
+            mRequestQueue.next();
+            return;
+        }
+        if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == 0) {
+            readError(new ReadBleException(233, BleException.READ_CHARACTERISTIC,
+                    "characteristic : " + characteristic.getUuid() + ", property not support read."));
+            mRequestQueue.next();
+            return;
+        }
+        mRequestQueue.onStarted(gatt.readCharacteristic(characteristic));
     }
 
     private void notification(boolean enable, BluetoothGattCharacteristic characteristic) {
-
+        final BluetoothGattDescriptor descriptor = getClientConfiguration(characteristic, BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+        if (descriptor == null) {
+            notificationError(new BleException(233, BleException.NOTIFICATION,
+                    "characteristic uuid : " + characteristic.getUuid() + ", can not enable notification."));
+            mRequestQueue.next();
+            return;
+        }
+        mRequestQueue.onStarted(writeClientConfiguration(enable, descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
     }
 
     private void indication(boolean enable, BluetoothGattCharacteristic characteristic) {
+        final BluetoothGattDescriptor descriptor = getClientConfiguration(characteristic, BluetoothGattCharacteristic.PROPERTY_INDICATE);
+        if (descriptor == null) {
+            indicationError(new BleException(233, BleException.INDICATION,
+                    "characteristic uuid : " + characteristic.getUuid() + ", can not enable indication."));
+            mRequestQueue.next();
+            return;
+        }
+        mRequestQueue.onStarted(writeClientConfiguration(enable, descriptor, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE));
+    }
 
+    /**
+     * @return the Client Characteristic Configuration descriptor, null without a connection or if
+     * the characteristic does not support the property.
+     */
+    private BluetoothGattDescriptor getClientConfiguration(BluetoothGattCharacteristic characteristic, int property) {
+        if (mBluetoothGatt == null || (characteristic.getProperties() & property) == 0) {
+            return null;
+        }
+        return characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
+    }
+
+    private boolean writeClientConfiguration(boolean enable, BluetoothGattDescriptor descriptor, byte[] value) {
+        final GattTransport gatt = mBluetoothGatt;
+        if (gatt == null) {
+            return false;
+        }
+        gatt.setCharacteristicNotification(descriptor.getCharacteristic(), enable);
+        descriptor.setValue(enable ? value : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    private void writeError(final WriteBleException e) {
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    if (listener instanceof WriteCharacteristicListener) {
+                        ((WriteCharacteristicListener) listener).error(e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void readError(final ReadBleException e) {
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    if (listener instanceof ReadCharacteristicListener) {
+                        ((ReadCharacteristicListener) listener).error(e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void notificationError(final BleException e) {
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    if (listener instanceof NotificationListener) {
+                        ((NotificationListener) listener).error(e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void indicationError(final BleException e) {
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    if (listener instanceof IndicationListener) {
+                        ((IndicationListener) listener).error(e);
+                    }
+                }
+            }
+        });
+    }
+
+    private final RssiScheduler.RssiReader mRssiReader = new RssiScheduler.RssiReader() {
+        @Override
+        public boolean readRssi() {
+            final GattTransport gatt = mBluetoothGatt;
+            if (gatt == null || !mConnected) {
+                return true;
+            }
+            final long startTime = mMetrics.startTime();
+            if (!mRequestQueue.readRssi(gatt)) {
+                return false;
+            }
+            mRssiStartTime = startTime;
+            return true;
+        }
+    };
+
+    /**
+     * @return the address metrics of this connection are recorded under, null while metrics are disabled.
+     */
+    private String getMetricsAddress() {
+        final BluetoothDevice device = mBluetoothDevice;
+        return mMetrics.isEnabled() && device != null ? device.getAddress() : null;
+    }
+
+    private void startReadRssi() {
+        if (readRssiIntervalMillisecond > 0) {
+            RssiScheduler.getDefault().start(this, readRssiIntervalMillisecond, mRssiReader);
+        }
+    }
+
+    private void stopReadRssi() {
+        RssiScheduler.getDefault().stop(this);
     }
 
     BluetoothDevice getBluetoothDevice() {
         return mBluetoothDevice;
     }
 
+    /**
+     * Several requests in a row got no GATT callback, the connection is stuck: close it and
+     * connect the device again.
+     */
+    private void reconnectAfterTimeouts() {
+        final BluetoothDevice device = mBluetoothDevice;
+        final boolean wasConnected = mConnected;
+        stopReadRssi();
+        mRequestQueue.failAll("connection closed after request timeouts.");
+        mBluetoothGatt.close();
+        mBluetoothGatt = null;
+        mConnected = false;
+        mServiceDiscovered = false;
+        if (wasConnected) {
+            // A closed BluetoothGatt reports no disconnect of its own.
+            runOnCallbackThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : mListeners) {
+                        if (listener instanceof ConnectListener) {
+                            ((ConnectListener) listener).disconnected();
+                        }
+                    }
+                }
+            });
+        }
+        if (device != null) {
+            connect(false, device);
+        }
+    }
+
+    /**
+     * Starts the request at the head of the queue, called by the {@link RequestScheduler} when it
+     * is this connection's turn.
+     */
+    void executeNext() {
+        mRequestQueue.startExecutor();
+    }
+
+    boolean hasPendingRequests() {
+        return mRequestQueue.hasPending();
+    }
+
     private boolean enableQueueDelay;
     private int queueDelayTime;
-    private int autoQueueInterval;
+    private final QueuePacer mPacer = new QueuePacer(CommandQueue.Type.values().length);
+    private int requestTimeout = BluetoothConfig.DEFAULT_REQUEST_TIMEOUT;
+    private int requestTimeoutsBeforeReconnect = BluetoothConfig.DEFAULT_REQUEST_TIMEOUTS_BEFORE_RECONNECT;
     private Handler mHandler = new Handler(Looper.getMainLooper());
+    private Executor mCallbackExecutor;
 
-    private boolean isAndroidMainThread() {
-        return Looper.myLooper() == Looper.getMainLooper();
+    private boolean isCallbackThread() {
+        return Looper.myLooper() == mHandler.getLooper();
     }
 
-    private void runOnUiThread(Runnable runnable) {
-        if (isAndroidMainThread()) {
+    private void runOnCallbackThread(Runnable runnable) {
+        if (mCallbackExecutor != null) {
+            mCallbackExecutor.execute(runnable);
+        } else if (isCallbackThread()) {
             runnable.run();
         } else {
             mHandler.post(runnable);
@@ -183,20 +744,99 @@ class Command {
     private class RequestQueue {
 
         private Queue<CommandQueue> mCommandQueue = new LinkedList<>();
+        private boolean mExecuting;
+        /**
+         * The executing request was handed to the Bluetooth stack and its GATT callback has not
+         * arrived yet. A callback arriving otherwise belongs to a request that timed out, or repeats
+         * one already taken.
+         */
+        private boolean mAwaiting;
 
-        void addRequest(CommandQueue command) {
-            int oldSize = mCommandQueue.size();
-            mCommandQueue.add(command);
-            if (mCommandQueue.size() == 1 && oldSize == 0) {
+        /** Armed while the request at the head waits for its GATT callback. */
+        private RequestWatchdog.Deadline mDeadline;
+        /** Requests timed out since the last GATT callback. */
+        private int mTimeouts;
+        /** Times the Bluetooth stack refused to start the request at the head of the queue. */
+        private int mBusyRetries;
+        /** A readRemoteRssi() is with the Bluetooth stack, requests wait for onReadRemoteRssi. */
+        private boolean mReadingRssi;
+        /** The head of the queue got its turn while the RSSI was read, it starts from onRssiRead(). */
+        private boolean mStartDeferred;
+
+        private final Runnable mDeadlineExpired = new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(mTimeoutRunnable);
+            }
+        };
+
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                onTimeout();
+            }
+        };
+
+        private final Runnable mRetryRunnable = new Runnable() {
+            @Override
+            public void run() {
                 startExecutor();
             }
+        };
+
+        private final Runnable mRssiTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                onRssiRead();
+            }
+        };
+
+        void addRequest(CommandQueue command) {
+            final boolean start;
+            final String address = getMetricsAddress();
+            if (address != null) {
+                command.mEnqueueTime = System.nanoTime();
+            }
+            synchronized (this) {
+                mCommandQueue.add(command);
+                if (address != null) {
+                    mMetrics.recordQueueDepth(address, mCommandQueue.size());
+                }
+                start = !mExecuting && mCommandQueue.size() == 1;
+            }
+            if (start) {
+                if (mScheduler != null) {
+                    mScheduler.schedule(Command.this);
+                } else {
+                    startExecutor();
+                }
+            }
         }
 
         private void startExecutor() {
-            CommandQueue queue = mCommandQueue.peek();
+            final CommandQueue queue;
+            synchronized (this) {
+                if (mReadingRssi) {
+                    mStartDeferred = true;
+                    return;
+                }
+                queue = mCommandQueue.peek();
+                mExecuting = queue != null;
+                mAwaiting = mExecuting;
+                if (queue != null) {
+                    armDeadline();
+                }
+            }
+            if (queue == null) {
+                // The queue was cleared while waiting for a turn.
+                if (mScheduler != null) {
+                    mScheduler.release(Command.this, false);
+                }
+                return;
+            }
             switch (queue.type) {
                 case WRITE:
-                    write(queue.getCharacteristic());
+                    write(queue.getCharacteristic(), queue.getBytes());
                     break;
                 case READ:
                     read(queue.getCharacteristic());
@@ -210,37 +850,282 @@ class Command {
             }
         }
 
-        void next() {
-            if (enableQueueDelay) {
-                if (queueDelayTime < 0) {
-                    mHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            runQueue();
-                        }
-                    }, autoQueueInterval);
+        /**
+         * Called with the result of the BluetoothGatt call that started the request at the head of
+         * the queue. A busy stack is retried after the pacer's backoff, a request that keeps failing
+         * to start is reported to its listeners and dropped.
+         */
+        void onStarted(boolean started) {
+            final CommandQueue queue;
+            final boolean retry;
+            synchronized (this) {
+                queue = mExecuting ? mCommandQueue.peek() : null;
+                if (queue == null) {
+                    // Cleared while the request was being started.
+                    return;
+                }
+                if (started) {
+                    mBusyRetries = 0;
+                    retry = false;
                 } else {
-                    mHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            runQueue();
-                        }
-                    }, queueDelayTime);
+                    mAwaiting = false;
+                    disarmDeadline();
+                    retry = ++mBusyRetries <= MAX_BUSY_RETRIES;
+                    if (!retry) {
+                        mBusyRetries = 0;
+                    }
+                }
+            }
+            if (started) {
+                mPacer.onStart();
+                if (queue.mEnqueueTime != 0) {
+                    queue.mStartTime = System.nanoTime();
+                    mMetrics.recordLatency(getMetricsAddress(), BleMetrics.QUEUE_WAIT, queue.mEnqueueTime);
+                }
+            } else if (retry) {
+                mHandler.postDelayed(mRetryRunnable, mPacer.onBusy(queue.type.ordinal()));
+            } else {
+                fail(queue, 233, "characteristic : " + queue.getCharacteristic().getUuid()
+                        + ", Bluetooth stack is busy, request could not be started.");
+                next();
+            }
+        }
+
+        /**
+         * Moves on after the GATT callback of the request at the head of the queue.
+         *
+         * @param type           the kind of request the callback reports, {@link CommandQueue.Type#NOTIFY}
+         *                       stands for both client configuration writes.
+         * @param characteristic the characteristic the callback reports.
+         * @return false if the callback is not the one awaited, it is then dropped without being
+         * reported to the listeners.
+         */
+        boolean complete(CommandQueue.Type type, BluetoothGattCharacteristic characteristic, int status) {
+            final CommandQueue queue;
+            synchronized (this) {
+                queue = mExecuting && mAwaiting ? mCommandQueue.peek() : null;
+                if (queue == null || queue.getCharacteristic() != characteristic || kind(queue.type) != kind(type)) {
+                    return false;
+                }
+                mAwaiting = false;
+                mTimeouts = 0;
+            }
+            if (queue.mStartTime != 0) {
+                final int operation;
+                switch (queue.type) {
+                    case WRITE:
+                        operation = BleMetrics.WRITE;
+                        break;
+                    case READ:
+                        operation = BleMetrics.READ;
+                        break;
+                    default:
+                        operation = BleMetrics.WRITE_DESCRIPTOR;
+                        break;
                 }
+                mMetrics.recordLatency(getMetricsAddress(), operation, queue.mStartTime);
+                queue.mStartTime = 0;
+            }
+            moveOn(mPacer.onComplete(queue.type.ordinal(), status == BluetoothGatt.GATT_SUCCESS));
+            return true;
+        }
+
+        private CommandQueue.Type kind(CommandQueue.Type type) {
+            return type == CommandQueue.Type.INDICATE ? CommandQueue.Type.NOTIFY : type;
+        }
+
+        /**
+         * Moves on after the request at the head of the queue could not be started.
+         */
+        void next() {
+            final CommandQueue queue;
+            synchronized (this) {
+                queue = mExecuting ? mCommandQueue.peek() : null;
+            }
+            moveOn(queue != null ? mPacer.onBusy(queue.type.ordinal()) : 0);
+        }
+
+        /**
+         * @param autoDelay delay chosen by the pacer, used with {@link BluetoothConfig#AUTO}.
+         */
+        private void moveOn(long autoDelay) {
+            synchronized (this) {
+                disarmDeadline();
+            }
+            if (enableQueueDelay) {
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        runQueue();
+                    }
+                }, queueDelayTime < 0 ? autoDelay : queueDelayTime);
             } else {
                 runQueue();
             }
         }
 
         void runQueue() {
-            mCommandQueue.poll();
-            if (mCommandQueue != null && mCommandQueue.size() > 0) {
+            final boolean pending;
+            synchronized (this) {
+                if (!mExecuting) {
+                    // A late callback of a request cancelled by cancelAll().
+                    return;
+                }
+                mExecuting = false;
+                mAwaiting = false;
+                mCommandQueue.poll();
+                pending = !mCommandQueue.isEmpty();
+            }
+            if (mScheduler != null) {
+                mScheduler.release(Command.this, pending);
+            } else if (pending) {
+                startExecutor();
+            }
+        }
+
+        synchronized boolean isBusy() {
+            return mExecuting || mReadingRssi;
+        }
+
+        /**
+         * Reads the RSSI while no request is executing. A request getting its turn meanwhile waits
+         * for {@link #onRssiRead()}, so the read never competes with it for the Bluetooth stack.
+         *
+         * @return false if the queue is busy or the Bluetooth stack refused the read.
+         */
+        boolean readRssi(GattTransport gatt) {
+            synchronized (this) {
+                if (mExecuting || mReadingRssi) {
+                    return false;
+                }
+                mReadingRssi = true;
+            }
+            mHandler.postDelayed(mRssiTimeoutRunnable,
+                    requestTimeout > 0 ? requestTimeout : BluetoothConfig.DEFAULT_REQUEST_TIMEOUT);
+            if (gatt.readRemoteRssi()) {
+                return true;
+            }
+            onRssiRead();
+            return false;
+        }
+
+        void onRssiRead() {
+            final boolean start;
+            synchronized (this) {
+                if (!mReadingRssi) {
+                    return;
+                }
+                mReadingRssi = false;
+                start = mStartDeferred;
+                mStartDeferred = false;
+            }
+            mHandler.removeCallbacks(mRssiTimeoutRunnable);
+            if (start) {
                 startExecutor();
             }
         }
 
+        private void armDeadline() {
+            disarmDeadline();
+            if (requestTimeout > 0) {
+                mDeadline = RequestWatchdog.getDefault().schedule(requestTimeout, mDeadlineExpired);
+            }
+        }
+
+        private void disarmDeadline() {
+            if (mDeadline != null) {
+                mDeadline.cancel();
+                mDeadline = null;
+            }
+        }
+
+        /**
+         * No GATT callback arrived in time: reports a timeout error for the request at the head and
+         * moves on, or reconnects once too many requests timed out in a row.
+         */
+        private void onTimeout() {
+            final CommandQueue queue;
+            final boolean stuck;
+            synchronized (this) {
+                if (mDeadline == null || !mDeadline.isExpired() || !mExecuting) {
+                    // The callback arrived while the timeout was on its way.
+                    return;
+                }
+                mDeadline = null;
+                queue = mCommandQueue.peek();
+                stuck = requestTimeoutsBeforeReconnect > 0 && ++mTimeouts >= requestTimeoutsBeforeReconnect;
+                if (stuck) {
+                    mTimeouts = 0;
+                }
+            }
+            if (queue != null) {
+                fail(queue, BleException.STATUS_TIMEOUT, "characteristic : " + queue.getCharacteristic().getUuid()
+                        + ", request timeout after " + requestTimeout + " ms.");
+            }
+            if (stuck && mBluetoothGatt != null) {
+                reconnectAfterTimeouts();
+            } else {
+                runQueue();
+            }
+        }
+
+        synchronized boolean hasPending() {
+            return !mCommandQueue.isEmpty();
+        }
+
         void cancelAll() {
-            mCommandQueue.clear();
+            clear();
+        }
+
+        /**
+         * Drops every request and reports an error for each of them.
+         */
+        void failAll(String detailMessage) {
+            for (CommandQueue queue : clear()) {
+                fail(queue, 233, detailMessage);
+            }
+        }
+
+        /**
+         * @return the requests dropped.
+         */
+        private List<CommandQueue> clear() {
+            final List<CommandQueue> dropped;
+            final boolean executing;
+            synchronized (this) {
+                disarmDeadline();
+                mHandler.removeCallbacks(mRetryRunnable);
+                mBusyRetries = 0;
+                dropped = new ArrayList<>(mCommandQueue);
+                mCommandQueue.clear();
+                executing = mExecuting;
+                mExecuting = false;
+                mAwaiting = false;
+            }
+            if (mScheduler != null) {
+                mScheduler.remove(Command.this);
+                if (executing) {
+                    mScheduler.release(Command.this, false);
+                }
+            }
+            return dropped;
+        }
+
+        private void fail(CommandQueue queue, int status, String detailMessage) {
+            switch (queue.type) {
+                case WRITE:
+                    writeError(new WriteBleException(status, BleException.WRITE_CHARACTERISTIC, detailMessage));
+                    break;
+                case READ:
+                    readError(new ReadBleException(status, BleException.READ_CHARACTERISTIC, detailMessage));
+                    break;
+                case NOTIFY:
+                    notificationError(new BleException(status, BleException.NOTIFICATION, detailMessage));
+                    break;
+                case INDICATE:
+                    indicationError(new BleException(status, BleException.INDICATION, detailMessage));
+                    break;
+            }
         }
 
     }
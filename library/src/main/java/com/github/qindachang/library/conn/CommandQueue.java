@@ -17,6 +17,11 @@ class CommandQueue {
     public final CommandQueue.Type type;
     private final BluetoothGattCharacteristic characteristic;
     private boolean enable;
+    private byte[] bytes;
+
+    // Timestamps for BleMetrics, 0 when the request is not timed.
+    long mEnqueueTime;
+    long mStartTime;
 
     private CommandQueue(final Type type, final BluetoothGattCharacteristic characteristic) {
         this.type = type;
@@ -37,6 +42,16 @@ class CommandQueue {
         return new CommandQueue(Type.WRITE, characteristic);
     }
 
+    /**
+     * The value is set on the characteristic when the request is executed, so queued writes to the
+     * same characteristic do not overwrite each other.
+     */
+    public static CommandQueue newWriteRequest(final BluetoothGattCharacteristic characteristic, final byte[] bytes) {
+        final CommandQueue request = new CommandQueue(Type.WRITE, characteristic);
+        request.bytes = bytes;
+        return request;
+    }
+
     public static CommandQueue newEnableNotificationsRequest(final boolean enable, final BluetoothGattCharacteristic characteristic) {
         return new CommandQueue(Type.NOTIFY, characteristic, enable);
     }
@@ -53,4 +68,8 @@ class CommandQueue {
     public boolean isEnable() {
         return enable;
     }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
 }
@@ -8,7 +8,7 @@ import com.github.qindachang.library.exception.ReadBleException;
  * Created by qindachang on 2017/3/10.
  */
 
-public interface ReadCharacteristicListener {
+public interface ReadCharacteristicListener extends Listener {
     void onReaded(BluetoothGattCharacteristic characteristic);
 
     void error(ReadBleException e);
@@ -0,0 +1,73 @@
+package com.github.qindachang.library.conn;
+
+import java.util.LinkedList;
+
+/**
+ * Shares the Bluetooth stack between the connections of a {@link BluetoothLeConnectionManager}.
+ * At most {@code maxOperations} connections have a GATT request in flight at the same time, the
+ * others wait their turn in round-robin order so one busy device can not starve the rest.
+ */
+
+class RequestScheduler {
+
+    private final int maxOperations;
+    private final LinkedList<Command> mReady = new LinkedList<>();
+    private int mRunning;
+
+    RequestScheduler(int maxOperations) {
+        if (maxOperations < 1) {
+            throw new IllegalArgumentException("maxOperations must be at least 1");
+        }
+        this.maxOperations = maxOperations;
+    }
+
+    /**
+     * A connection has requests waiting, run it now if a slot is free.
+     */
+    void schedule(Command command) {
+        synchronized (this) {
+            if (!mReady.contains(command)) {
+                mReady.add(command);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * A connection finished its request and gives its slot back.
+     *
+     * @param pending whether the connection has more requests, it then goes to the end of the line.
+     */
+    void release(Command command, boolean pending) {
+        synchronized (this) {
+            if (mRunning > 0) {
+                mRunning--;
+            }
+            if (pending && !mReady.contains(command)) {
+                mReady.add(command);
+            }
+        }
+        dispatch();
+    }
+
+    void remove(Command command) {
+        synchronized (this) {
+            mReady.remove(command);
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Command next;
+            synchronized (this) {
+                if (mRunning >= maxOperations || mReady.isEmpty()) {
+                    return;
+                }
+                next = mReady.poll();
+                mRunning++;
+            }
+            // Called without holding the lock, the command may come straight back through release().
+            next.executeNext();
+        }
+    }
+}
@@ -8,7 +8,7 @@ import com.github.qindachang.library.exception.WriteBleException;
  * Created by qindachang on 2017/3/10.
  */
 
-public interface WriteCharacteristicListener {
+public interface WriteCharacteristicListener extends Listener {
     void onWrited(BluetoothGattCharacteristic characteristic);
     void error(WriteBleException e);
 }
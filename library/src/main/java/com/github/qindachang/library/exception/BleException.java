@@ -42,6 +42,12 @@ public class BleException implements Serializable {
     public static final int NOTIFICATION = 5;
     public static final int INDICATION = 6;
 
+    /**
+     * Status of a request or connection that got no answer from the peripheral in time, other
+     * errors of the library are reported with status 233.
+     */
+    public static final int STATUS_TIMEOUT = 234;
+
     private String[] typeArr = {"SCAN", "CONNECT", "WRITE_CHARACTERISTIC", "READ_CHARACTERISTIC",
             "READ_RSSI", "NOTIFICATION", "INDICATION"};
 
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.scanner;
+
+import android.Manifest;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresPermission;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Duty cycles a long running scan and adapts it to what is found, on every scanner implementation.
+ * <p>
+ * The scan runs in windows separated by rests. While new devices keep appearing the scheduler
+ * climbs to a more aggressive scan mode with shorter rests, up to a continuous low latency scan;
+ * after {@link #STABLE_WINDOWS} windows without a new device it steps back down. Every start is
+ * delayed as needed to stay within Android's limit of 5 scan starts per 30 seconds, beyond which
+ * the platform silently stops delivering results.
+ * <p>
+ * The scan mode of the given settings is replaced, all other settings are kept.
+ */
+public class AdaptiveScanScheduler {
+	/** Windows without a new device after which the scheduler steps down one level. */
+	public static final int STABLE_WINDOWS = 3;
+
+	private static final int MAX_STARTS = 5;
+	private static final long STARTS_PERIOD = 30000;
+	private static final int MAX_KNOWN_DEVICES = 4096;
+
+	// Scan mode, scan window and rest of each level, from the most economical to the most aggressive.
+	// Every cycle lasts at least 6 s, so staying on a level never exceeds 5 starts per 30 s.
+	private static final int[] SCAN_MODES = {
+			ScanSettings.SCAN_MODE_LOW_POWER, ScanSettings.SCAN_MODE_BALANCED, ScanSettings.SCAN_MODE_LOW_LATENCY };
+	private static final long[] SCAN_WINDOWS = { 6000, 8000, 10000 };
+	private static final long[] RESTS = { 18000, 6000, 0 };
+
+	private final BluetoothLeScannerCompat mScanner;
+	private final List<ScanFilter> mFilters;
+	private final ScanSettings mSettings;
+	private final ScanCallback mCallback;
+	private final Handler mHandler;
+
+	private final Set<String> mKnownDevices = new HashSet<>();
+	private final long[] mStartTimes = new long[MAX_STARTS];
+	private int mStartIndex;
+
+	private int mLevel = SCAN_MODES.length - 1;
+	private int mStableWindows;
+	private int mNewDevices;
+	private boolean mRunning;
+	private boolean mScanning;
+	private int mScanningLevel = -1;
+
+	private final ScanCallback mCountingCallback = new ScanCallback() {
+		@Override
+		public void onScanResult(final int callbackType, final ScanResult result) {
+			count(result);
+			mCallback.onScanResult(callbackType, result);
+		}
+
+		@Override
+		public void onBatchScanResults(final List<ScanResult> results) {
+			for (int i = 0; i < results.size(); i++)
+				count(results.get(i));
+			mCallback.onBatchScanResults(results);
+		}
+
+		@Override
+		public void onScanFailed(final int errorCode) {
+			mCallback.onScanFailed(errorCode);
+		}
+	};
+
+	private final Runnable mStartTask = new Runnable() {
+		@Override
+		public void run() {
+			startWindow();
+		}
+	};
+
+	private final Runnable mWindowEndTask = new Runnable() {
+		@Override
+		public void run() {
+			endWindow();
+		}
+	};
+
+	/**
+	 * @param handler handler the windows and the callback run on
+	 */
+	public AdaptiveScanScheduler(@NonNull final BluetoothLeScannerCompat scanner, final List<ScanFilter> filters,
+								 @NonNull final ScanSettings settings, @NonNull final ScanCallback callback,
+								 @NonNull final Handler handler) {
+		mScanner = scanner;
+		mFilters = filters;
+		mSettings = settings;
+		mCallback = callback;
+		mHandler = handler;
+	}
+
+	/**
+	 * Starts with the most aggressive level, which is what a fresh scan needs.
+	 */
+	@RequiresPermission(allOf = {Manifest.permission.BLUETOOTH_ADMIN, Manifest.permission.BLUETOOTH})
+	public void start() {
+		if (mRunning)
+			return;
+		mRunning = true;
+		mLevel = SCAN_MODES.length - 1;
+		mStableWindows = 0;
+		startWindow();
+	}
+
+	@RequiresPermission(Manifest.permission.BLUETOOTH_ADMIN)
+	public void stop() {
+		mRunning = false;
+		mHandler.removeCallbacks(mStartTask);
+		mHandler.removeCallbacks(mWindowEndTask);
+		stopScanning();
+		synchronized (mKnownDevices) {
+			mKnownDevices.clear();
+		}
+	}
+
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	/**
+	 * @return the current scan mode, one of the {@code ScanSettings.SCAN_MODE_*} values
+	 */
+	public int getScanMode() {
+		return SCAN_MODES[mLevel];
+	}
+
+	private void count(final ScanResult result) {
+		synchronized (mKnownDevices) {
+			if (mKnownDevices.size() >= MAX_KNOWN_DEVICES)
+				mKnownDevices.clear();
+			if (mKnownDevices.add(result.getDevice().getAddress()))
+				mNewDevices++;
+		}
+	}
+
+	private void startWindow() {
+		if (!mRunning)
+			return;
+		if (!mScanning || mScanningLevel != mLevel) {
+			// Stay within the platform throttling, the oldest of the last 5 starts must be 30 s old
+			final long now = SystemClock.elapsedRealtime();
+			final long oldestStart = mStartTimes[mStartIndex];
+			if (oldestStart != 0 && now - oldestStart < STARTS_PERIOD) {
+				stopScanning();
+				mHandler.postDelayed(mStartTask, STARTS_PERIOD - (now - oldestStart) + 100);
+				return;
+			}
+			stopScanning();
+			final ScanSettings settings = copyWithScanMode(SCAN_MODES[mLevel]);
+			mScanner.startScan(mFilters, settings, mCountingCallback, mHandler);
+			mStartTimes[mStartIndex] = now;
+			mStartIndex = (mStartIndex + 1) % MAX_STARTS;
+			mScanning = true;
+			mScanningLevel = mLevel;
+		}
+		synchronized (mKnownDevices) {
+			mNewDevices = 0;
+		}
+		mHandler.postDelayed(mWindowEndTask, SCAN_WINDOWS[mLevel]);
+	}
+
+	private void endWindow() {
+		if (!mRunning)
+			return;
+		final int newDevices;
+		synchronized (mKnownDevices) {
+			newDevices = mNewDevices;
+		}
+		if (newDevices > 0) {
+			mStableWindows = 0;
+			mLevel = Math.min(mLevel + 1, SCAN_MODES.length - 1);
+		} else if (++mStableWindows >= STABLE_WINDOWS) {
+			mStableWindows = 0;
+			mLevel = Math.max(mLevel - 1, 0);
+		}
+		final long rest = RESTS[mLevel];
+		if (rest > 0) {
+			stopScanning();
+			mHandler.postDelayed(mStartTask, rest);
+		} else {
+			startWindow();
+		}
+	}
+
+	private void stopScanning() {
+		if (mScanning) {
+			mScanner.stopScan(mCountingCallback);
+			mScanning = false;
+		}
+	}
+
+	private ScanSettings copyWithScanMode(final int scanMode) {
+		final ScanSettings.Builder builder = new ScanSettings.Builder()
+				.setScanMode(scanMode)
+				.setCallbackType(mSettings.getCallbackType())
+				.setReportDelay(mSettings.getReportDelayMillis())
+				.setMatchMode(mSettings.getMatchMode())
+				.setNumOfMatches(mSettings.getNumOfMatches())
+				.setUseHardwareFilteringIfSupported(mSettings.getUseHardwareFilteringIfSupported())
+				.setUseHardwareBatchingIfSupported(mSettings.getUseHardwareBatchingIfSupported())
+				.setUseHardwareCallbackTypesIfSupported(mSettings.getUseHardwareCallbackTypesIfSupported())
+				// The settings keep the timeout in nanoseconds, the builder takes milliseconds.
+				.setMatchOptions(mSettings.getMatchLostDeviceTimeout() / 1000000L, mSettings.getMatchLostTaskInterval())
+				.setBatchKeepMode(mSettings.getBatchKeepMode());
+		if (mSettings.hasPowerSaveMode()) {
+			builder.setPowerSave(mSettings.getPowerSaveScan(), mSettings.getPowerSaveRest());
+		}
+		return builder.build();
+	}
+}
@@ -29,9 +29,12 @@ import android.os.Looper;
 import android.os.SystemClock;
 import android.support.annotation.RequiresPermission;
 
+import com.github.qindachang.library.BleMetrics;
+
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -87,7 +90,7 @@ public abstract class BluetoothLeScannerCompat {
 		if (callback == null) {
 			throw new IllegalArgumentException("callback is null");
 		}
-		startScanInternal(null, new ScanSettings.Builder().build(), callback);
+		startScanInternal(null, new ScanSettings.Builder().build(), callback, mHandler);
 	}
 
 	/**
@@ -106,10 +109,44 @@ public abstract class BluetoothLeScannerCompat {
 	 */
 	@RequiresPermission(allOf = {Manifest.permission.BLUETOOTH_ADMIN, Manifest.permission.BLUETOOTH})
 	public void startScan(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback) {
+		startScan(filters, settings, callback, null);
+	}
+
+	/**
+	 * Start Bluetooth LE scan. The scan results will be delivered through {@code callback} on the
+	 * thread of the given {@code handler}. Batching and match lost timers of this scan run on that
+	 * thread as well, which keeps them off the main thread when a background handler is used.
+	 * <p>
+	 * Requires {@link Manifest.permission#BLUETOOTH_ADMIN} permission.
+	 *
+	 * @param filters {@link ScanFilter}s for finding exact BLE devices.
+	 * @param settings Settings for the scan.
+	 * @param callback Callback used to deliver scan results.
+	 * @param handler Handler used to deliver scan results, or null to use the main thread.
+	 * @throws IllegalArgumentException If {@code settings} or {@code callback} is null.
+	 */
+	@RequiresPermission(allOf = {Manifest.permission.BLUETOOTH_ADMIN, Manifest.permission.BLUETOOTH})
+	public void startScan(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback, final Handler handler) {
 		if (settings == null || callback == null) {
 			throw new IllegalArgumentException("settings or callback is null");
 		}
-		startScanInternal(filters, settings, callback);
+		startScanInternal(filters, settings, callback, handler != null ? handler : mHandler);
+	}
+
+	/**
+	 * Makes all scans share a single platform scan. On Android 5.0+ every callback otherwise starts its own scan,
+	 * which multiplies radio work and soon fails with
+	 * {@link ScanCallback#SCAN_FAILED_APPLICATION_REGISTRATION_FAILED}. The shared scan uses the most aggressive
+	 * scan mode and the union of the filters of all callbacks, results are filtered, batched and reported per
+	 * callback in software.
+	 * <p>
+	 * Android 4.3 and 4.4 always share one scan, there this method has no effect.
+	 *
+	 * @param multiplexing true to share one platform scan between all callbacks.
+	 * @throws IllegalStateException If a scan is running.
+	 */
+	public void setMultiplexing(final boolean multiplexing) {
+		// Scans of the JB implementation are always multiplexed
 	}
 
 	/**
@@ -118,9 +155,11 @@ public abstract class BluetoothLeScannerCompat {
 	 * @param filters {@link ScanFilter}s for finding exact BLE devices.
 	 * @param settings Settings for the scan.
 	 * @param callback Callback used to deliver scan results.
+	 * @param handler Handler used to deliver scan results.
 	 */
 	@RequiresPermission(allOf = {Manifest.permission.BLUETOOTH_ADMIN, Manifest.permission.BLUETOOTH})
-	/* package */ abstract void startScanInternal(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback);
+	/* package */ abstract void startScanInternal(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback,
+												  final Handler handler);
 
 	/**
 	 * Stops an ongoing Bluetooth LE scan.
@@ -144,14 +183,24 @@ public abstract class BluetoothLeScannerCompat {
 
 	/* package */ class ScanCallbackWrapper {
 		private final List<ScanFilter> mFilters;
+		private final ScanFilterMatcher mFilterMatcher;
 		private final ScanSettings mScanSettings;
 		private final ScanCallback mScanCallback;
-		private final List<ScanResult> mScanResults;
-		private final List<String> mDevicesInBatch;
+		private final BleMetrics mMetrics = BleMetrics.getDefault();
+		/** Handler the callback and the timers of this scan run on. */
+		private final Handler mHandler;
+		/** Results of the current emulated batch, one per device address. */
+		private final Map<String, ScanResult> mBatch;
+		/** Refilled on every flush, see {@link ScanCallback#onBatchScanResults(List)}. */
+		private final List<ScanResult> mBatchList;
+		private final List<ScanResult> mBatchView;
 
 		/** A task, called periodically, that notifies about match lost. */
 		private MatchLostNotifierTask mMatchLostNotifierTask;
-		/** A collection of scan result of devices in range. */
+		/**
+		 * A collection of scan result of devices in range, ordered from the least to the most recently seen device.
+		 * All devices share the same timeout, so this is also the order in which they will be lost.
+		 */
 		private final Map<String, ScanResult> mDevicesInRange;
 
 		private final Runnable mFlushPendingScanResultsTask = new Runnable() {
@@ -162,35 +211,42 @@ public abstract class BluetoothLeScannerCompat {
 			}
 		};
 
-		/* package */ ScanCallbackWrapper(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback) {
+		/* package */ ScanCallbackWrapper(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback,
+										  final Handler handler) {
 			mFilters = filters;
+			mFilterMatcher = filters != null ? ScanFilterMatcher.compile(filters) : null;
 			mScanSettings = settings;
 			mScanCallback = callback;
+			mHandler = handler;
 
 			// Emulate other callback types
 			if (settings.getCallbackType() != ScanSettings.CALLBACK_TYPE_ALL_MATCHES && !settings.getUseHardwareCallbackTypesIfSupported()) {
-				mDevicesInRange = new HashMap<>();
+				mDevicesInRange = new LinkedHashMap<>(16, 0.75f, true);
 			} else
 				mDevicesInRange = null;
 
 			// Emulate batching
 			final long delay = settings.getReportDelayMillis();
 			if (delay > 0) {
-				mScanResults = new ArrayList<>();
-				mDevicesInBatch = new ArrayList<>();
+				mBatch = new LinkedHashMap<>();
+				mBatchList = new ArrayList<>();
+				mBatchView = Collections.unmodifiableList(mBatchList);
 				mHandler.postDelayed(mFlushPendingScanResultsTask, delay);
 			} else {
-				mScanResults = null;
-				mDevicesInBatch = null;
+				mBatch = null;
+				mBatchList = null;
+				mBatchView = null;
 			}
 		}
 
 		/* package */ void close() {
-			if (mScanResults != null) {
+			if (mBatch != null) {
 				mHandler.removeCallbacks(mFlushPendingScanResultsTask);
 			}
 			if (mDevicesInRange != null) {
-				mDevicesInRange.clear();
+				synchronized (mDevicesInRange) {
+					mDevicesInRange.clear();
+				}
 			}
 			if (mMatchLostNotifierTask != null) {
 				mHandler.removeCallbacks(mMatchLostNotifierTask);
@@ -210,50 +266,96 @@ public abstract class BluetoothLeScannerCompat {
 			return mScanCallback;
 		}
 
+		/* package */ Handler getHandler() {
+			return mHandler;
+		}
+
 		/* package */ void flushPendingScanResults() {
-			if (mScanResults != null) {
-				synchronized (mScanResults) {
-					mScanCallback.onBatchScanResults(mScanResults);
-					mScanResults.clear();
-					mDevicesInBatch.clear();
+			if (mBatch != null) {
+				// Held until the callback returns, a flush requested meanwhile from another thread waits
+				synchronized (mBatchList) {
+					synchronized (mBatch) {
+						mBatchList.clear();
+						mBatchList.addAll(mBatch.values());
+						mBatch.clear();
+					}
+					mScanCallback.onBatchScanResults(mBatchView);
 				}
 			}
 		}
 
-		private class MatchLostNotifierTask implements Runnable {
-			private final List<ScanResult> mMatchLostScanResults = new ArrayList<>();
+		private void addToBatch(final String deviceAddress, final ScanResult scanResult) {
+			switch (mScanSettings.getBatchKeepMode()) {
+				case ScanSettings.BATCH_KEEP_LATEST:
+					// Replacing a value keeps the position of the device in the batch
+					mBatch.put(deviceAddress, scanResult);
+					break;
+				case ScanSettings.BATCH_KEEP_STRONGEST: {
+					final ScanResult previousResult = mBatch.get(deviceAddress);
+					if (previousResult == null || scanResult.getRssi() > previousResult.getRssi())
+						mBatch.put(deviceAddress, scanResult);
+					break;
+				}
+				default:
+					// add only the first record from the device, others will be skipped
+					if (!mBatch.containsKey(deviceAddress))
+						mBatch.put(deviceAddress, scanResult);
+					break;
+			}
+		}
 
+		/**
+		 * Expires devices from the head of {@link #mDevicesInRange} until it reaches one that is still in range, so every
+		 * device costs O(1) however many are tracked. The task runs again when the next device may be lost, but not more
+		 * often than the match lost task interval, which is therefore the precision of the detection.
+		 */
+		private class MatchLostNotifierTask implements Runnable {
 			@Override
 			public void run() {
 				final long now = SystemClock.elapsedRealtimeNanos();
-
-				final Collection<ScanResult> results = mDevicesInRange.values();
-				for (final ScanResult result : results) {
-					if (result.getTimestampNanos() < now - mScanSettings.getMatchLostDeviceTimeout()) {
-						mMatchLostScanResults.add(result);
-					}
-				}
-				if (!mMatchLostScanResults.isEmpty()) {
-					for (final ScanResult result : mMatchLostScanResults) {
-						mDevicesInRange.remove(result.getDevice().getAddress());
-						onFoundOrLost(false, result);
+				final long timeout = mScanSettings.getMatchLostDeviceTimeout();
+				final long precision = mScanSettings.getMatchLostTaskInterval();
+
+				List<ScanResult> lostResults = null;
+				long nextDelay = precision;
+				synchronized (mDevicesInRange) {
+					final Iterator<ScanResult> iterator = mDevicesInRange.values().iterator();
+					while (iterator.hasNext()) {
+						final ScanResult result = iterator.next();
+						if (result.getTimestampNanos() >= now - timeout) {
+							// Not lost, and neither is any device seen after it
+							final long remainingMillis = (result.getTimestampNanos() + timeout - now) / 1000000L + 1;
+							nextDelay = Math.max(precision, remainingMillis);
+							break;
+						}
+						if (lostResults == null)
+							lostResults = new ArrayList<>();
+						lostResults.add(result);
+						iterator.remove();
 					}
-					mMatchLostScanResults.clear();
 				}
-				mHandler.postDelayed(mMatchLostNotifierTask, mScanSettings.getMatchLostTaskInterval());
+				if (lostResults != null)
+					onLost(lostResults);
+				mHandler.postDelayed(mMatchLostNotifierTask, nextDelay);
 			}
 		}
 
 		/* package */ void handleScanResult(final ScanResult scanResult) {
-			if (mFilters != null && !mFilters.isEmpty() && !matches(scanResult))
+			final boolean matched = mFilters == null || mFilters.isEmpty() || matches(scanResult);
+			if (mMetrics.isEnabled())
+				mMetrics.recordScanResults(1, matched ? 1 : 0);
+			if (!matched)
 				return;
 
 			final String deviceAddress = scanResult.getDevice().getAddress();
 
 			// Notify if a new device was found and callback type is FIRST MATCH
 			if (mDevicesInRange != null) { // -> Callback type != ScanSettings.CALLBACK_TYPE_ALL_MATCHES
-				// Save the fist result or update tle old one with new data
-				final ScanResult previousResult = mDevicesInRange.put(deviceAddress, scanResult);
+				// Save the fist result or update tle old one with new data, which also moves the device to the end of the map
+				final ScanResult previousResult;
+				synchronized (mDevicesInRange) {
+					previousResult = mDevicesInRange.put(deviceAddress, scanResult);
+				}
 				if (previousResult == null) {
 					if ((mScanSettings.getCallbackType() & ScanSettings.CALLBACK_TYPE_FIRST_MATCH) > 0)
 						onFoundOrLost(true, scanResult);
@@ -268,11 +370,8 @@ public abstract class BluetoothLeScannerCompat {
 				// A callback type may not contain CALLBACK_TYPE_ALL_MATCHES and any other value. If mDevicesInRange is empty
 				// Report delay > 0 means we are emulating hardware batching. Otherwise handleScanResults(List) is called, not this method.
 				if (mScanSettings.getReportDelayMillis() > 0) {
-					synchronized (mScanResults) {
-						if (!mDevicesInBatch.contains(deviceAddress)) {  // add only the first record from the device, others will be skipped
-							mScanResults.add(scanResult);
-							mDevicesInBatch.add(deviceAddress);
-						}
+					synchronized (mBatch) {
+						addToBatch(deviceAddress, scanResult);
 					}
 					return;
 				}
@@ -289,16 +388,14 @@ public abstract class BluetoothLeScannerCompat {
 					if (matches(result))
 						filteredResults.add(result);
 			}
+			if (mMetrics.isEnabled())
+				mMetrics.recordScanResults(results.size(), filteredResults.size());
 
 			onBatchScanResults(filteredResults);
 		}
 
 		private boolean matches(final ScanResult result) {
-			for (final ScanFilter filter : mFilters) {
-				if (filter.matches(result))
-					return true;
-			}
-			return false;
+			return mFilterMatcher.matches(result);
 		}
 
 		private void onScanResult(final ScanResult scanResult) {
@@ -319,6 +416,16 @@ public abstract class BluetoothLeScannerCompat {
 			});
 		}
 
+		private void onLost(final List<ScanResult> scanResults) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					for (final ScanResult scanResult : scanResults)
+						mScanCallback.onScanResult(ScanSettings.CALLBACK_TYPE_MATCH_LOST, scanResult);
+				}
+			});
+		}
+
 		private void onFoundOrLost(final boolean onFound, final ScanResult scanResult) {
 			mHandler.post(new Runnable() {
 				@Override
@@ -333,12 +440,12 @@ public abstract class BluetoothLeScannerCompat {
 		}
 
 		/* package */ void onScanManagerErrorCallback(final int errorCode) {
-			postCallbackError(mScanCallback, errorCode);
+			postCallbackError(mHandler, mScanCallback, errorCode);
 		}
 	}
 
-	private void postCallbackError(final ScanCallback callback, final int errorCode) {
-		mHandler.post(new Runnable() {
+	private void postCallbackError(final Handler handler, final ScanCallback callback, final int errorCode) {
+		handler.post(new Runnable() {
 			@Override
 			public void run() {
 				callback.onScanFailed(errorCode);
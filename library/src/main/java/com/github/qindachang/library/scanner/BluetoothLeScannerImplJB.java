@@ -78,7 +78,8 @@ import java.util.Map;
 	@Override
 	@RequiresPermission(allOf = {Manifest.permission.BLUETOOTH_ADMIN, Manifest.permission.BLUETOOTH})
 	@SuppressWarnings("deprecation")
-	/* package */ void startScanInternal(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback) {
+	/* package */ void startScanInternal(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback,
+										final Handler handler) {
 		BluetoothLeUtils.checkAdapterStateOn(mBluetoothAdapter);
 
 		if (mWrappers.containsKey(callback)) {
@@ -89,7 +90,7 @@ import java.util.Map;
 		synchronized (mWrappers) {
 			shouldStart = mWrappers.isEmpty();
 
-			final ScanCallbackWrapper wrapper = new ScanCallbackWrapper(filters, settings, callback);
+			final ScanCallbackWrapper wrapper = new ScanCallbackWrapper(filters, settings, callback, handler);
 			mWrappers.put(callback, wrapper);
 		}
 
@@ -27,6 +27,7 @@ import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.os.Build;
+import android.os.Handler;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresPermission;
@@ -44,6 +45,12 @@ import java.util.Map;
 	private final Map<android.bluetooth.le.ScanCallback, ScanCallbackWrapper> mWrappers2; // used to get wrapper in scan result callback
 	private boolean offloadedFilteringSupported;
 
+	// Multiplexing, one platform scan shared by all callbacks
+	private boolean mMultiplexing;
+	private android.bluetooth.le.ScanCallback mMultiplexedCallback;
+	private int mMultiplexedScanMode;
+	private List<ScanFilter> mMultiplexedFilters;
+
 	public BluetoothLeScannerImplLollipop() {
 		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 		mWrappers = new HashMap<>();
@@ -51,9 +58,17 @@ import java.util.Map;
 		mCallbacks = new HashMap<>();
 	}
 
+	@Override
+	public synchronized void setMultiplexing(final boolean multiplexing) {
+		if (!mWrappers.isEmpty())
+			throw new IllegalStateException("multiplexing can not be changed while scanning");
+		mMultiplexing = multiplexing;
+	}
+
 	@Override
 	@RequiresPermission(allOf = {Manifest.permission.BLUETOOTH_ADMIN, Manifest.permission.BLUETOOTH})
-	/* package */ void startScanInternal(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback) {
+	/* package */ void startScanInternal(final List<ScanFilter> filters, final ScanSettings settings, final ScanCallback callback,
+										final Handler handler) {
 		BluetoothLeUtils.checkAdapterStateOn(mBluetoothAdapter);
 		offloadedFilteringSupported = mBluetoothAdapter.isOffloadedFilteringSupported();
 
@@ -65,7 +80,19 @@ import java.util.Map;
 		if (scanner == null)
 			throw new IllegalStateException("BT le scanner not available");
 
-		final ScanCallbackWrapper wrapper = new ScanCallbackWrapper(filters, settings, callback);
+		if (mMultiplexing) {
+			// Callback types are emulated by the wrapper, the shared scan reports all matches of all callbacks
+			final ScanCallbackWrapper wrapper = new ScanCallbackWrapper(filters, settings.withoutHardwareCallbackTypes(),
+					callback, handler);
+			synchronized (this) {
+				mWrappers.put(callback, wrapper);
+				updateMultiplexedScan(scanner);
+			}
+			return;
+		}
+
+		final ScanCallbackWrapper wrapper = new ScanCallbackWrapper(filters, settings, callback, handler);
+
 		final ScanCallbackImpl _callback = new ScanCallbackImpl();
 		final android.bluetooth.le.ScanSettings _settings = toImpl(mBluetoothAdapter, settings);
 		List<android.bluetooth.le.ScanFilter> _filters = null;
@@ -85,6 +112,15 @@ import java.util.Map;
 		if (wrapper == null)
 			return;
 
+		if (mMultiplexing) {
+			wrapper.close();
+			synchronized (this) {
+				mWrappers.remove(callback);
+				updateMultiplexedScan(mBluetoothAdapter.getBluetoothLeScanner());
+			}
+			return;
+		}
+
 		wrapper.close();
 		mWrappers.remove(callback);
 		android.bluetooth.le.ScanCallback _callback = mCallbacks.get(callback);
@@ -112,12 +148,109 @@ import java.util.Map;
 		}
 
 		final ScanSettings settings = wrapper.getScanSettings();
-		if (mBluetoothAdapter.isOffloadedScanBatchingSupported() && settings.getUseHardwareBatchingIfSupported())
+		if (!mMultiplexing && mBluetoothAdapter.isOffloadedScanBatchingSupported() && settings.getUseHardwareBatchingIfSupported())
 			mBluetoothAdapter.getBluetoothLeScanner().flushPendingScanResults(mCallbacks.get(callback));
 		else
 			mWrappers.get(callback).flushPendingScanResults();
 	}
 
+	/**
+	 * Restarts the shared platform scan when the callbacks need different settings or filters. It runs with the
+	 * most aggressive scan mode of all callbacks and with the union of their filters, which are offloaded only if
+	 * every callback has filters and allows it. Each wrapper filters the results again in software.
+	 */
+	@RequiresPermission(allOf = {Manifest.permission.BLUETOOTH_ADMIN, Manifest.permission.BLUETOOTH})
+	private void updateMultiplexedScan(final BluetoothLeScanner scanner) {
+		if (mWrappers.isEmpty()) {
+			if (mMultiplexedCallback != null && scanner != null)
+				scanner.stopScan(mMultiplexedCallback);
+			mMultiplexedCallback = null;
+			mMultiplexedFilters = null;
+			return;
+		}
+
+		int scanMode = ScanSettings.SCAN_MODE_OPPORTUNISTIC;
+		List<ScanFilter> filters = mBluetoothAdapter.isOffloadedFilteringSupported() ? new ArrayList<ScanFilter>() : null;
+		for (final ScanCallbackWrapper wrapper : mWrappers.values()) {
+			final ScanSettings settings = wrapper.getScanSettings();
+			scanMode = Math.max(scanMode, settings.getScanMode());
+
+			final List<ScanFilter> wrapperFilters = wrapper.getScanFilters();
+			if (filters == null)
+				continue;
+			if (wrapperFilters == null || wrapperFilters.isEmpty() || !settings.getUseHardwareFilteringIfSupported()) {
+				filters = null;
+				continue;
+			}
+			for (final ScanFilter filter : wrapperFilters)
+				if (!filters.contains(filter))
+					filters.add(filter);
+		}
+
+		if (mMultiplexedCallback != null && scanMode == mMultiplexedScanMode && Objects.equals(filters, mMultiplexedFilters))
+			return;
+		if (scanner == null)
+			return;
+
+		if (mMultiplexedCallback != null)
+			scanner.stopScan(mMultiplexedCallback);
+
+		final ScanSettings settings = new ScanSettings.Builder()
+				.setScanMode(scanMode)
+				.setUseHardwareBatchingIfSupported(false)
+				.setUseHardwareCallbackTypesIfSupported(false)
+				.build();
+		mMultiplexedCallback = new MultiplexedScanCallback();
+		mMultiplexedScanMode = scanMode;
+		mMultiplexedFilters = filters;
+		scanner.startScan(filters != null ? toImpl(filters) : null, toImpl(mBluetoothAdapter, settings), mMultiplexedCallback);
+	}
+
+	private class MultiplexedScanCallback extends android.bluetooth.le.ScanCallback {
+
+		private List<ScanCallbackWrapper> getWrappers() {
+			synchronized (BluetoothLeScannerImplLollipop.this) {
+				// Results of a scan that was replaced still arrive for a moment, drop them
+				if (mMultiplexedCallback != this)
+					return null;
+				return new ArrayList<>(mWrappers.values());
+			}
+		}
+
+		@Override
+		public void onScanResult(final int callbackType, final android.bluetooth.le.ScanResult _result) {
+			final List<ScanCallbackWrapper> wrappers = getWrappers();
+			if (wrappers == null)
+				return;
+
+			final byte[] data = _result.getScanRecord() != null ? _result.getScanRecord().getBytes() : null;
+			final ScanResult result = new ScanResult(_result.getDevice(), ScanRecord.parseFromBytes(data), _result.getRssi(), _result.getTimestampNanos());
+			for (final ScanCallbackWrapper wrapper : wrappers)
+				wrapper.handleScanResult(result);
+		}
+
+		@Override
+		public void onBatchScanResults(final List<android.bluetooth.le.ScanResult> _results) {
+			// The shared scan never batches, batching is emulated by each wrapper
+			for (final android.bluetooth.le.ScanResult _result : _results)
+				onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, _result);
+		}
+
+		@Override
+		public void onScanFailed(final int errorCode) {
+			final List<ScanCallbackWrapper> wrappers = getWrappers();
+			if (wrappers == null)
+				return;
+
+			synchronized (BluetoothLeScannerImplLollipop.this) {
+				// Let the next start try again
+				mMultiplexedCallback = null;
+			}
+			for (final ScanCallbackWrapper wrapper : wrappers)
+				wrapper.onScanManagerErrorCallback(errorCode);
+		}
+	}
+
 	private class ScanCallbackImpl extends android.bluetooth.le.ScanCallback {
 		private long mLastBatchTimestamp;
 
@@ -173,7 +306,7 @@ import java.util.Map;
 
 				final ScanCallback callback = wrapper.getScanCallback();
 				stopScan(callback);
-				startScanInternal(wrapper.getScanFilters(), settings, callback);
+				startScanInternal(wrapper.getScanFilters(), settings, callback, wrapper.getHandler());
 				return;
 			}
 
@@ -18,8 +18,6 @@ package com.github.qindachang.library.scanner;
 
 import android.os.ParcelUuid;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.UUID;
 
 /**
@@ -37,6 +35,25 @@ import java.util.UUID;
 	/** Length of bytes for 128 bit UUID */
 	static final int UUID_BYTES_128_BIT = 16;
 
+	// Canonical instances of 16 and 32 bit UUIDs, a direct mapped table indexed by the short form
+	private static final int SHORT_CACHE_SIZE = 256;
+	private static final ShortEntry[] SHORT_CACHE = new ShortEntry[SHORT_CACHE_SIZE];
+
+	// Canonical instances of 128 bit UUIDs, least recently used first
+	private static final int LONG_CACHE_SIZE = 32;
+	private static final ParcelUuid[] LONG_CACHE = new ParcelUuid[LONG_CACHE_SIZE];
+	private static int sLongCacheCount;
+
+	private static final class ShortEntry {
+		final long shortUuid;
+		final ParcelUuid uuid;
+
+		ShortEntry(final long shortUuid, final ParcelUuid uuid) {
+			this.shortUuid = shortUuid;
+			this.uuid = uuid;
+		}
+	}
+
 	/**
 	 * Parse UUID from bytes. The {@code uuidBytes} can represent a 16-bit, 32-bit or 128-bit UUID,
 	 * but the returned UUID is always in 128-bit format.
@@ -50,7 +67,20 @@ import java.util.UUID;
 		if (uuidBytes == null) {
 			throw new IllegalArgumentException("uuidBytes cannot be null");
 		}
-		int length = uuidBytes.length;
+		return parseUuidFrom(uuidBytes, 0, uuidBytes.length);
+	}
+
+	/**
+	 * Parse UUID from a part of the given bytes, see {@link #parseUuidFrom(byte[])}. UUIDs that were
+	 * seen before are returned as the same instance, so they can be compared by identity.
+	 *
+	 * @param bytes Bytes containing the uuid.
+	 * @param offset Offset of the uuid.
+	 * @param length Length of the uuid, 2, 4 or 16.
+	 * @return {@link ParcelUuid} parsed from bytes.
+	 * @throws IllegalArgumentException If the {@code length} is invalid.
+	 */
+	static ParcelUuid parseUuidFrom(byte[] bytes, int offset, int length) {
 		if (length != UUID_BYTES_16_BIT && length != UUID_BYTES_32_BIT &&
 				length != UUID_BYTES_128_BIT) {
 			throw new IllegalArgumentException("uuidBytes length invalid - " + length);
@@ -58,26 +88,87 @@ import java.util.UUID;
 
 		// Construct a 128 bit UUID.
 		if (length == UUID_BYTES_128_BIT) {
-			ByteBuffer buf = ByteBuffer.wrap(uuidBytes).order(ByteOrder.LITTLE_ENDIAN);
-			long msb = buf.getLong(8);
-			long lsb = buf.getLong(0);
-			return new ParcelUuid(new UUID(msb, lsb));
+			long msb = getLong(bytes, offset + 8);
+			long lsb = getLong(bytes, offset);
+			return intern(msb, lsb, null);
 		}
 
 		// For 16 bit and 32 bit UUID we need to convert them to 128 bit value.
 		// 128_bit_value = uuid * 2^96 + BASE_UUID
 		long shortUuid;
 		if (length == UUID_BYTES_16_BIT) {
-			shortUuid = uuidBytes[0] & 0xFF;
-			shortUuid += (uuidBytes[1] & 0xFF) << 8;
+			shortUuid = bytes[offset] & 0xFF;
+			shortUuid += (bytes[offset + 1] & 0xFF) << 8;
 		} else {
-			shortUuid = uuidBytes[0] & 0xFF ;
-			shortUuid += (uuidBytes[1] & 0xFF) << 8;
-			shortUuid += (uuidBytes[2] & 0xFF) << 16;
-			shortUuid += (uuidBytes[3] & 0xFF) << 24;
+			shortUuid = bytes[offset] & 0xFF;
+			shortUuid += (bytes[offset + 1] & 0xFF) << 8;
+			shortUuid += (bytes[offset + 2] & 0xFF) << 16;
+			shortUuid += (long) (bytes[offset + 3] & 0xFF) << 24;
+		}
+		return internShort(shortUuid, null);
+	}
+
+	/**
+	 * @return the canonical instance equal to the given UUID, the given one if it is new.
+	 */
+	static ParcelUuid intern(ParcelUuid uuid) {
+		if (uuid == null) {
+			return null;
+		}
+		final long msb = uuid.getUuid().getMostSignificantBits();
+		final long lsb = uuid.getUuid().getLeastSignificantBits();
+		final long baseMsb = BASE_UUID.getUuid().getMostSignificantBits();
+		if (lsb == BASE_UUID.getUuid().getLeastSignificantBits() && (msb & 0xFFFFFFFFL) == baseMsb) {
+			return internShort(msb >>> 32, uuid);
+		}
+		return intern(msb, lsb, uuid);
+	}
+
+	private static ParcelUuid internShort(long shortUuid, ParcelUuid uuid) {
+		// Fold the upper half in so 32 bit UUIDs sharing the lower half spread over the table
+		final int index = (int) ((shortUuid ^ (shortUuid >>> 16)) & (SHORT_CACHE_SIZE - 1));
+		// Entries are immutable, a racing writer at worst replaces one canonical instance with another
+		final ShortEntry entry = SHORT_CACHE[index];
+		if (entry != null && entry.shortUuid == shortUuid) {
+			return entry.uuid;
+		}
+		if (uuid == null) {
+			long msb = BASE_UUID.getUuid().getMostSignificantBits() + (shortUuid << 32);
+			long lsb = BASE_UUID.getUuid().getLeastSignificantBits();
+			uuid = new ParcelUuid(new UUID(msb, lsb));
+		}
+		SHORT_CACHE[index] = new ShortEntry(shortUuid, uuid);
+		return uuid;
+	}
+
+	private static synchronized ParcelUuid intern(long msb, long lsb, ParcelUuid uuid) {
+		// The most recently used UUID is at the end
+		for (int i = sLongCacheCount - 1; i >= 0; i--) {
+			final ParcelUuid cached = LONG_CACHE[i];
+			final UUID value = cached.getUuid();
+			if (value.getLeastSignificantBits() == lsb && value.getMostSignificantBits() == msb) {
+				System.arraycopy(LONG_CACHE, i + 1, LONG_CACHE, i, sLongCacheCount - i - 1);
+				LONG_CACHE[sLongCacheCount - 1] = cached;
+				return cached;
+			}
+		}
+		if (uuid == null) {
+			uuid = new ParcelUuid(new UUID(msb, lsb));
+		}
+		if (sLongCacheCount == LONG_CACHE_SIZE) {
+			System.arraycopy(LONG_CACHE, 1, LONG_CACHE, 0, LONG_CACHE_SIZE - 1);
+			sLongCacheCount--;
+		}
+		LONG_CACHE[sLongCacheCount++] = uuid;
+		return uuid;
+	}
+
+	// Reads a little endian long
+	private static long getLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
 		}
-		long msb = BASE_UUID.getUuid().getMostSignificantBits() + (shortUuid << 32);
-		long lsb = BASE_UUID.getUuid().getLeastSignificantBits();
-		return new ParcelUuid(new UUID(msb, lsb));
+		return value;
 	}
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.scanner;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.LongSparseArray;
+
+import java.util.List;
+
+/**
+ * A {@link ScanCallback} that turns raw advertisements into proximity zones.
+ * <p>
+ * The RSSI of every device is smoothed with a one dimensional Kalman filter, converted to a
+ * distance with the log-distance path loss model, calibrated with the TX power level of the
+ * advertisement when present, and mapped to a zone with some hysteresis. The {@link Listener} is
+ * only called when the zone of a device changes, not for every advertisement.
+ * <p>
+ * Pass the tracker to {@link BluetoothLeScannerCompat#startScan(List, ScanSettings, ScanCallback)}
+ * like any other callback, with {@link ScanSettings#CALLBACK_TYPE_ALL_MATCHES}. A device not seen
+ * for {@link #setLostTimeout(long)} is reported as {@link #ZONE_UNKNOWN} and forgotten. The
+ * tracker must be called from a single thread with a looper, which the scanner does.
+ */
+public class PresenceTracker extends ScanCallback {
+	public static final int ZONE_UNKNOWN = 0;
+	public static final int ZONE_IMMEDIATE = 1;
+	public static final int ZONE_NEAR = 2;
+	public static final int ZONE_FAR = 3;
+
+	/** RSSI at 1 m when the advertisement has no TX power level, typical for phones and tags. */
+	private static final int DEFAULT_MEASURED_POWER = -59;
+	/** Free space loss between 0 m, where the TX power level is given, and 1 m. */
+	private static final int LOSS_AT_ONE_METER = 41;
+
+	public interface Listener {
+		/**
+		 * @param result the advertisement that moved the device to the new zone
+		 * @param zone one of the ZONE_* values
+		 * @param distance estimated distance in meters, -1 for {@link #ZONE_UNKNOWN}
+		 */
+		void onZoneChanged(ScanResult result, int zone, double distance);
+	}
+
+	private final Listener mListener;
+	private final LongSparseArray<Estimate> mDevices = new LongSparseArray<>();
+
+	private double mPathLossExponent = 2.0;
+	private int mMeasuredPower = DEFAULT_MEASURED_POWER;
+	private double mProcessNoise = 0.008;
+	private double mMeasurementNoise = 4.0;
+	private double mImmediateDistance = 0.5;
+	private double mNearDistance = 3.0;
+	private double mHysteresis = 0.1;
+	private long mLostTimeout = ScanSettings.MATCH_LOST_DEVICE_TIMEOUT_DEFAULT;
+
+	private Handler mHandler;
+	private boolean mExpiryScheduled;
+
+	private final Runnable mExpiryTask = new Runnable() {
+		@Override
+		public void run() {
+			mExpiryScheduled = false;
+			final long now = SystemClock.elapsedRealtime();
+			for (int i = mDevices.size() - 1; i >= 0; i--) {
+				final Estimate estimate = mDevices.valueAt(i);
+				if (now - estimate.mLastSeen > mLostTimeout) {
+					mDevices.removeAt(i);
+					if (estimate.mZone != ZONE_UNKNOWN)
+						mListener.onZoneChanged(estimate.mLastResult, ZONE_UNKNOWN, -1);
+				}
+			}
+			scheduleExpiry();
+		}
+	};
+
+	public PresenceTracker(@NonNull final Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * @param exponent path loss exponent, 2 in free space, 2.5 to 4 indoors. Default 2.
+	 */
+	public PresenceTracker setPathLossExponent(final double exponent) {
+		if (exponent <= 0)
+			throw new IllegalArgumentException("exponent must be > 0");
+		mPathLossExponent = exponent;
+		return this;
+	}
+
+	/**
+	 * @param rssi expected RSSI at 1 m of devices that do not advertise their TX power level. Default -59 dBm.
+	 */
+	public PresenceTracker setMeasuredPower(final int rssi) {
+		mMeasuredPower = rssi;
+		return this;
+	}
+
+	/**
+	 * Tunes the Kalman filter. A lower process noise or a higher measurement noise gives a smoother but slower estimate.
+	 */
+	public PresenceTracker setNoise(final double processNoise, final double measurementNoise) {
+		if (processNoise <= 0 || measurementNoise <= 0)
+			throw new IllegalArgumentException("noise must be > 0");
+		mProcessNoise = processNoise;
+		mMeasurementNoise = measurementNoise;
+		return this;
+	}
+
+	/**
+	 * @param immediate upper bound of {@link #ZONE_IMMEDIATE} in meters. Default 0.5.
+	 * @param near upper bound of {@link #ZONE_NEAR} in meters. Default 3.
+	 * @param hysteresis fraction of a bound a device has to cross it by to change zone. Default 0.1.
+	 */
+	public PresenceTracker setZones(final double immediate, final double near, final double hysteresis) {
+		if (immediate <= 0 || near <= immediate || hysteresis < 0 || hysteresis >= 1)
+			throw new IllegalArgumentException("invalid zones");
+		mImmediateDistance = immediate;
+		mNearDistance = near;
+		mHysteresis = hysteresis;
+		return this;
+	}
+
+	/**
+	 * @param millis time after which a device that was not seen is reported as {@link #ZONE_UNKNOWN}. Default 10 s.
+	 */
+	public PresenceTracker setLostTimeout(final long millis) {
+		if (millis <= 0)
+			throw new IllegalArgumentException("timeout must be > 0");
+		mLostTimeout = millis;
+		return this;
+	}
+
+	/**
+	 * @return the estimated distance in meters of the device, -1 if it is not tracked.
+	 */
+	public double getDistance(@NonNull final String address) {
+		final Estimate estimate = mDevices.get(toKey(address));
+		return estimate == null ? -1 : estimate.mDistance;
+	}
+
+	/**
+	 * @return the zone of the device, {@link #ZONE_UNKNOWN} if it is not tracked.
+	 */
+	public int getZone(@NonNull final String address) {
+		final Estimate estimate = mDevices.get(toKey(address));
+		return estimate == null ? ZONE_UNKNOWN : estimate.mZone;
+	}
+
+	public void clear() {
+		mDevices.clear();
+		if (mHandler != null)
+			mHandler.removeCallbacks(mExpiryTask);
+		mExpiryScheduled = false;
+	}
+
+	@Override
+	public void onScanResult(final int callbackType, final ScanResult result) {
+		if (callbackType == ScanSettings.CALLBACK_TYPE_MATCH_LOST) {
+			final long key = toKey(result.getDevice().getAddress());
+			final Estimate estimate = mDevices.get(key);
+			if (estimate != null) {
+				mDevices.remove(key);
+				if (estimate.mZone != ZONE_UNKNOWN)
+					mListener.onZoneChanged(result, ZONE_UNKNOWN, -1);
+			}
+			return;
+		}
+		update(result);
+	}
+
+	@Override
+	public void onBatchScanResults(final List<ScanResult> results) {
+		for (int i = 0; i < results.size(); i++)
+			update(results.get(i));
+	}
+
+	private void update(final ScanResult result) {
+		final long key = toKey(result.getDevice().getAddress());
+		Estimate estimate = mDevices.get(key);
+		if (estimate == null) {
+			estimate = new Estimate();
+			mDevices.put(key, estimate);
+		}
+		estimate.mLastSeen = SystemClock.elapsedRealtime();
+		estimate.mLastResult = result;
+		scheduleExpiry();
+		final double rssi = estimate.filter(result.getRssi(), mProcessNoise, mMeasurementNoise);
+
+		int measuredPower = mMeasuredPower;
+		final ScanRecord record = result.getScanRecord();
+		if (record != null) {
+			final int txPowerLevel = record.getTxPowerLevel();
+			if (txPowerLevel != Integer.MIN_VALUE)
+				measuredPower = txPowerLevel - LOSS_AT_ONE_METER;
+		}
+		estimate.mDistance = Math.pow(10d, (measuredPower - rssi) / (10 * mPathLossExponent));
+
+		final int zone = getZone(estimate.mDistance, estimate.mZone);
+		if (zone != estimate.mZone) {
+			estimate.mZone = zone;
+			mListener.onZoneChanged(result, zone, estimate.mDistance);
+		}
+	}
+
+	private void scheduleExpiry() {
+		if (mExpiryScheduled || mDevices.size() == 0)
+			return;
+		if (mHandler == null) {
+			final Looper looper = Looper.myLooper();
+			mHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+		}
+		mHandler.postDelayed(mExpiryTask, Math.max(100, mLostTimeout / 2));
+		mExpiryScheduled = true;
+	}
+
+	// Bounds are widened around the current zone, so a device has to move clearly into another zone to change.
+	private int getZone(final double distance, final int currentZone) {
+		double immediate = mImmediateDistance;
+		double near = mNearDistance;
+		if (currentZone != ZONE_UNKNOWN) {
+			immediate *= currentZone == ZONE_IMMEDIATE ? 1 + mHysteresis : 1 - mHysteresis;
+			near *= currentZone == ZONE_FAR ? 1 - mHysteresis : 1 + mHysteresis;
+		}
+		if (distance < immediate)
+			return ZONE_IMMEDIATE;
+		if (distance < near)
+			return ZONE_NEAR;
+		return ZONE_FAR;
+	}
+
+	// Packs a MAC address "AA:BB:CC:DD:EE:FF" into a long without allocating.
+	private static long toKey(final String address) {
+		long key = 0;
+		for (int i = 0; i < address.length(); i++) {
+			final int digit = Character.digit(address.charAt(i), 16);
+			if (digit >= 0)
+				key = (key << 4) | digit;
+		}
+		return key;
+	}
+
+	private static final class Estimate {
+		private boolean mInitialized;
+		private double mRssi;
+		private double mVariance;
+		private double mDistance;
+		private int mZone = ZONE_UNKNOWN;
+		private long mLastSeen;
+		private ScanResult mLastResult;
+
+		private double filter(final int rssi, final double processNoise, final double measurementNoise) {
+			if (!mInitialized) {
+				mRssi = rssi;
+				mVariance = measurementNoise;
+				mInitialized = true;
+				return mRssi;
+			}
+			final double variance = mVariance + processNoise;
+			final double gain = variance / (variance + measurementNoise);
+			mRssi += gain * (rssi - mRssi);
+			mVariance = (1 - gain) * variance;
+			return mRssi;
+		}
+	}
+}
@@ -67,6 +67,9 @@ public abstract class ScanCallback {
 
 	/**
 	 * Callback when batch results are delivered.
+	 * <p>
+	 * A batch emulated by the library reuses its list for the next batch, copy it to keep the
+	 * results beyond this call.
 	 *
 	 * @param results List of scan results that are previously scanned.
 	 */
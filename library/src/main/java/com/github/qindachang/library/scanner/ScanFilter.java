@@ -81,10 +81,10 @@ public final class ScanFilter implements Parcelable {
                        @Nullable byte[] serviceData, @Nullable byte[] serviceDataMask,
                        @Nullable int manufacturerId, @Nullable byte[] manufacturerData, @Nullable byte[] manufacturerDataMask) {
         mDeviceName = name;
-        mServiceUuid = uuid;
+        mServiceUuid = BluetoothUuid.intern(uuid);
         mServiceUuidMask = uuidMask;
         mDeviceAddress = deviceAddress;
-        mServiceDataUuid = serviceDataUuid;
+        mServiceDataUuid = BluetoothUuid.intern(serviceDataUuid);
         mServiceData = serviceData;
         mServiceDataMask = serviceDataMask;
         mManufacturerId = manufacturerId;
@@ -345,6 +345,10 @@ public final class ScanFilter implements Parcelable {
 
     // Check if the uuid pattern matches the particular service uuid.
     private boolean matchesServiceUuid(UUID uuid, UUID mask, UUID data) {
+        // Parsed and filter UUIDs are interned, equal ones are usually the same instance
+        if (uuid == data) {
+            return true;
+        }
         if (mask == null) {
             return uuid.equals(data);
         }
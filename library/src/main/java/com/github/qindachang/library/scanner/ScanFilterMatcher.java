@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.scanner;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A list of {@link ScanFilter}s compiled for fast matching. A result matches if any of the filters
+ * matches it, like with the list itself.
+ * <p>
+ * Filters that only set a device address, a device name or an unmasked service UUID, which is what
+ * most apps use, are looked up in hash sets. Filters that combine an address with other fields are
+ * grouped by that address. Only the remaining filters are tried one by one, so the cost of a match
+ * no longer grows with the number of filters.
+ */
+/* package */ final class ScanFilterMatcher {
+	private final boolean mMatchAll;
+	private final Set<String> mAddresses = new HashSet<>();
+	private final Set<String> mNames = new HashSet<>();
+	private final Set<UUID> mServiceUuids = new HashSet<>();
+	private final Map<String, List<ScanFilter>> mFiltersByAddress = new HashMap<>();
+	private final List<ScanFilter> mResidualFilters = new ArrayList<>();
+
+	private ScanFilterMatcher(final List<ScanFilter> filters) {
+		boolean matchAll = false;
+		for (final ScanFilter filter : filters) {
+			final String address = filter.getDeviceAddress();
+			final String name = filter.getDeviceName();
+			final ParcelUuid serviceUuid = filter.getServiceUuid();
+			final boolean hasRecordFields = filter.getServiceDataUuid() != null || filter.getManufacturerId() >= 0;
+
+			if (address == null && name == null && serviceUuid == null && !hasRecordFields) {
+				matchAll = true;
+			} else if (address != null && name == null && serviceUuid == null && !hasRecordFields) {
+				mAddresses.add(address);
+			} else if (address != null) {
+				List<ScanFilter> list = mFiltersByAddress.get(address);
+				if (list == null) {
+					list = new ArrayList<>(1);
+					mFiltersByAddress.put(address, list);
+				}
+				list.add(filter);
+			} else if (name != null && serviceUuid == null && !hasRecordFields) {
+				mNames.add(name);
+			} else if (serviceUuid != null && filter.getServiceUuidMask() == null && name == null && !hasRecordFields) {
+				mServiceUuids.add(serviceUuid.getUuid());
+			} else {
+				mResidualFilters.add(filter);
+			}
+		}
+		mMatchAll = matchAll;
+	}
+
+	/* package */ static ScanFilterMatcher compile(@NonNull final List<ScanFilter> filters) {
+		return new ScanFilterMatcher(filters);
+	}
+
+	/* package */ boolean matches(final ScanResult result) {
+		if (result == null) {
+			return false;
+		}
+		if (mMatchAll) {
+			return true;
+		}
+
+		final BluetoothDevice device = result.getDevice();
+		if (device != null && (!mAddresses.isEmpty() || !mFiltersByAddress.isEmpty())) {
+			final String address = device.getAddress();
+			if (mAddresses.contains(address)) {
+				return true;
+			}
+			final List<ScanFilter> filters = mFiltersByAddress.get(address);
+			if (filters != null && matchesAny(filters, result)) {
+				return true;
+			}
+		}
+
+		final ScanRecord record = result.getScanRecord();
+		if (record != null) {
+			if (!mNames.isEmpty()) {
+				final String name = record.getDeviceName();
+				if (name != null && mNames.contains(name)) {
+					return true;
+				}
+			}
+			if (!mServiceUuids.isEmpty()) {
+				final List<ParcelUuid> uuids = record.getServiceUuids();
+				if (uuids != null) {
+					for (int i = 0; i < uuids.size(); i++) {
+						if (mServiceUuids.contains(uuids.get(i).getUuid())) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+
+		return matchesAny(mResidualFilters, result);
+	}
+
+	private static boolean matchesAny(final List<ScanFilter> filters, final ScanResult result) {
+		for (int i = 0; i < filters.size(); i++) {
+			if (filters.get(i).matches(result)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -52,31 +52,32 @@ public class ScanRecord {
 	private static final int DATA_TYPE_SERVICE_DATA = 0x16;
 	private static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
 
-	// Flags of the advertising data.
-	private final int mAdvertiseFlags;
-
-	@Nullable
-	private final List<ParcelUuid> mServiceUuids;
-
-	private final SparseArray<byte[]> mManufacturerSpecificData;
-
-	private final Map<ParcelUuid, byte[]> mServiceData;
+	// Raw bytes of scan record.
+	private final byte[] mBytes;
 
-	// Transmission power level(in dB).
-	private final int mTxPowerLevel;
+	// Marks a device name that was not decoded yet, compared by identity.
+	private static final String NAME_NOT_DECODED = new String();
+	// The index of a malformed record, compared by identity.
+	private static final int[] MALFORMED = new int[0];
 
-	// Local name of the Bluetooth LE device.
-	private final String mDeviceName;
+	// Offsets of the AD structures in mBytes, built when a field is first asked for. A malformed
+	// record has no structures, like the eager parser that dropped everything on an error.
+	// Records are handed to other threads, so everything decoded lazily is published through
+	// volatile fields holding immutable values. Racing threads decode the same values.
+	private volatile int[] mFieldOffsets;
 
-	// Raw bytes of scan record.
-	private final byte[] mBytes;
+	// Decoded on demand, the raw bytes are all that is kept for records nobody looks at.
+	private volatile Fields mFields;
+	private volatile String mDeviceName = NAME_NOT_DECODED;
 
 	/**
 	 * Returns the advertising flags indicating the discoverable mode and capability of the device.
 	 * Returns -1 if the flag field is not set.
 	 */
 	public int getAdvertiseFlags() {
-		return mAdvertiseFlags;
+		final int[] offsets = index();
+		final int field = findLastField(offsets, DATA_TYPE_FLAGS, DATA_TYPE_FLAGS, 1);
+		return field < 0 ? -1 : mBytes[dataStart(offsets, field)] & 0xFF;
 	}
 
 	/**
@@ -84,7 +85,7 @@ public class ScanRecord {
 	 * bluetooth GATT services.
 	 */
 	public List<ParcelUuid> getServiceUuids() {
-		return mServiceUuids;
+		return decode().serviceUuids;
 	}
 
 	/**
@@ -92,7 +93,7 @@ public class ScanRecord {
 	 * data.
 	 */
 	public SparseArray<byte[]> getManufacturerSpecificData() {
-		return mManufacturerSpecificData;
+		return decode().manufacturerSpecificData;
 	}
 
 	/**
@@ -101,14 +102,31 @@ public class ScanRecord {
 	 */
 	@Nullable
 	public byte[] getManufacturerSpecificData(int manufacturerId) {
-		return mManufacturerSpecificData.get(manufacturerId);
+		final Fields fields = mFields;
+		if (fields != null) {
+			return fields.manufacturerSpecificData == null ? null
+					: fields.manufacturerSpecificData.get(manufacturerId);
+		}
+		// Only copy the data of the asked manufacturer, the last one wins like in the sparse array.
+		// Records decode() would reject have no fields here.
+		final int[] offsets = index();
+		for (int i = offsets.length - 1; i >= 0; i--) {
+			if (fieldType(offsets, i) == DATA_TYPE_MANUFACTURER_SPECIFIC_DATA) {
+				final int start = dataStart(offsets, i);
+				final int id = ((mBytes[start + 1] & 0xFF) << 8) + (mBytes[start] & 0xFF);
+				if (id == manufacturerId) {
+					return extractBytes(mBytes, start + 2, dataLength(offsets, i) - 2);
+				}
+			}
+		}
+		return null;
 	}
 
 	/**
 	 * Returns a map of service UUID and its corresponding service data.
 	 */
 	public Map<ParcelUuid, byte[]> getServiceData() {
-		return mServiceData;
+		return decode().serviceData;
 	}
 
 	/**
@@ -120,7 +138,8 @@ public class ScanRecord {
 		if (serviceDataUuid == null) {
 			return null;
 		}
-		return mServiceData.get(serviceDataUuid);
+		final Map<ParcelUuid, byte[]> serviceData = decode().serviceData;
+		return serviceData == null ? null : serviceData.get(serviceDataUuid);
 	}
 
 	/**
@@ -131,7 +150,9 @@ public class ScanRecord {
 	 * <code>pathloss = txPowerLevel - rssi</code>
 	 */
 	public int getTxPowerLevel() {
-		return mTxPowerLevel;
+		final int[] offsets = index();
+		final int field = findLastField(offsets, DATA_TYPE_TX_POWER_LEVEL, DATA_TYPE_TX_POWER_LEVEL, 1);
+		return field < 0 ? Integer.MIN_VALUE : mBytes[dataStart(offsets, field)];
 	}
 
 	/**
@@ -139,7 +160,14 @@ public class ScanRecord {
 	 */
 	@Nullable
 	public String getDeviceName() {
-		return mDeviceName;
+		String deviceName = mDeviceName;
+		if (deviceName == NAME_NOT_DECODED) {
+			final int[] offsets = index();
+			final int field = findLastField(offsets, DATA_TYPE_LOCAL_NAME_SHORT, DATA_TYPE_LOCAL_NAME_COMPLETE, 0);
+			deviceName = field < 0 ? null : new String(mBytes, dataStart(offsets, field), dataLength(offsets, field));
+			mDeviceName = deviceName;
+		}
+		return deviceName;
 	}
 
 	/**
@@ -149,22 +177,13 @@ public class ScanRecord {
 		return mBytes;
 	}
 
-	private ScanRecord(List<ParcelUuid> serviceUuids,
-					   SparseArray<byte[]> manufacturerData,
-					   Map<ParcelUuid, byte[]> serviceData,
-					   int advertiseFlags, int txPowerLevel,
-					   String localName, byte[] bytes) {
-		mServiceUuids = serviceUuids;
-		mManufacturerSpecificData = manufacturerData;
-		mServiceData = serviceData;
-		mDeviceName = localName;
-		mAdvertiseFlags = advertiseFlags;
-		mTxPowerLevel = txPowerLevel;
+	private ScanRecord(byte[] bytes) {
 		mBytes = bytes;
 	}
 
 	/**
-	 * Parse scan record bytes to {@link ScanRecord}.
+	 * Wrap scan record bytes in a {@link ScanRecord}. Nothing is parsed here, fields are decoded when
+	 * they are asked for.
 	 * <p>
 	 * The format is defined in Bluetooth 4.1 specification, Volume 3, Part C, Section 11 and 18.
 	 * <p>
@@ -177,110 +196,194 @@ public class ScanRecord {
 		if (scanRecord == null) {
 			return null;
 		}
+		return new ScanRecord(scanRecord);
+	}
 
+	// Returns the AD structure offset index, built on first use.
+	private int[] index() {
+		final int[] index = mFieldOffsets;
+		if (index != null) {
+			return index;
+		}
+		final byte[] bytes = mBytes;
+		// Every structure takes at least two bytes.
+		int[] offsets = new int[bytes.length / 2 + 1];
+		int count = 0;
 		int currentPos = 0;
-		int advertiseFlag = -1;
-		List<ParcelUuid> serviceUuids = new ArrayList<>();
-		String localName = null;
-		int txPowerLevel = Integer.MIN_VALUE;
+		while (currentPos < bytes.length) {
+			// length is unsigned int.
+			final int length = bytes[currentPos] & 0xFF;
+			if (length == 0) {
+				break;
+			}
+			// Note the length includes the length of the field type itself.
+			offsets[count] = currentPos;
+			if (currentPos + 1 + length > bytes.length || !isDecodable(offsets, count)) {
+				Log.e(TAG, "unable to parse scan record: " + Arrays.toString(bytes));
+				mFieldOffsets = MALFORMED;
+				return MALFORMED;
+			}
+			count++;
+			currentPos += 1 + length;
+		}
+		offsets = Arrays.copyOf(offsets, count);
+		mFieldOffsets = offsets;
+		return offsets;
+	}
 
-		SparseArray<byte[]> manufacturerData = new SparseArray<>();
-		Map<ParcelUuid, byte[]> serviceData = new HashMap<>();
+	// Returns false for fields decode() would fail on, which make the whole record invalid.
+	private boolean isDecodable(int[] offsets, int field) {
+		final int dataLength = dataLength(offsets, field);
+		final int uuidLength;
+		switch (fieldType(offsets, field)) {
+			case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+			case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+				uuidLength = BluetoothUuid.UUID_BYTES_16_BIT;
+				break;
+			case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+			case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+				uuidLength = BluetoothUuid.UUID_BYTES_32_BIT;
+				break;
+			case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+			case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+				uuidLength = BluetoothUuid.UUID_BYTES_128_BIT;
+				break;
+			case DATA_TYPE_SERVICE_DATA:
+			case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+				// Both start with a 16-bit identifier.
+				return dataLength >= 2;
+			default:
+				return true;
+		}
+		// A partial last UUID is still read whole, it must not run past the record.
+		final int uuidCount = (dataLength + uuidLength - 1) / uuidLength;
+		return uuidCount <= 0 || dataStart(offsets, field) + uuidCount * uuidLength <= mBytes.length;
+	}
 
+	private int fieldType(int[] offsets, int field) {
+		return mBytes[offsets[field] + 1] & 0xFF;
+	}
+
+	private static int dataStart(int[] offsets, int field) {
+		return offsets[field] + 2;
+	}
+
+	private int dataLength(int[] offsets, int field) {
+		return (mBytes[offsets[field]] & 0xFF) - 1;
+	}
+
+	// Returns the last field of one of the two types with at least minLength bytes of data, or -1.
+	private int findLastField(int[] offsets, int type, int otherType, int minLength) {
+		for (int i = offsets.length - 1; i >= 0; i--) {
+			final int fieldType = fieldType(offsets, i);
+			if ((fieldType == type || fieldType == otherType) && dataLength(offsets, i) >= minLength) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Decodes the fields that are returned as collections.
+	private Fields decode() {
+		Fields fields = mFields;
+		if (fields != null) {
+			return fields;
+		}
+		final int[] offsets = index();
+		if (offsets == MALFORMED) {
+			// As the record is invalid, ignore all the parsed results for this packet
+			fields = new Fields(null, null, null);
+			mFields = fields;
+			return fields;
+		}
+		List<ParcelUuid> serviceUuids = new ArrayList<>();
+		final SparseArray<byte[]> manufacturerData = new SparseArray<>();
+		final Map<ParcelUuid, byte[]> serviceData = new HashMap<>();
 		try {
-			while (currentPos < scanRecord.length) {
-				// length is unsigned int.
-				int length = scanRecord[currentPos++] & 0xFF;
-				if (length == 0) {
-					break;
-				}
-				// Note the length includes the length of the field type itself.
-				int dataLength = length - 1;
-				// fieldType is unsigned int.
-				int fieldType = scanRecord[currentPos++] & 0xFF;
-				switch (fieldType) {
-					case DATA_TYPE_FLAGS:
-						advertiseFlag = scanRecord[currentPos] & 0xFF;
-						break;
+			for (int i = 0; i < offsets.length; i++) {
+				final int currentPos = dataStart(offsets, i);
+				final int dataLength = dataLength(offsets, i);
+				switch (fieldType(offsets, i)) {
 					case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
 					case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
-						parseServiceUuid(scanRecord, currentPos,
+						parseServiceUuid(mBytes, currentPos,
 								dataLength, BluetoothUuid.UUID_BYTES_16_BIT, serviceUuids);
 						break;
 					case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
 					case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
-						parseServiceUuid(scanRecord, currentPos, dataLength,
+						parseServiceUuid(mBytes, currentPos, dataLength,
 								BluetoothUuid.UUID_BYTES_32_BIT, serviceUuids);
 						break;
 					case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
 					case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
-						parseServiceUuid(scanRecord, currentPos, dataLength,
+						parseServiceUuid(mBytes, currentPos, dataLength,
 								BluetoothUuid.UUID_BYTES_128_BIT, serviceUuids);
 						break;
-					case DATA_TYPE_LOCAL_NAME_SHORT:
-					case DATA_TYPE_LOCAL_NAME_COMPLETE:
-						localName = new String(
-								extractBytes(scanRecord, currentPos, dataLength));
-						break;
-					case DATA_TYPE_TX_POWER_LEVEL:
-						txPowerLevel = scanRecord[currentPos];
-						break;
 					case DATA_TYPE_SERVICE_DATA:
 						// The first two bytes of the service data are service data UUID in little
 						// endian. The rest bytes are service data.
 						int serviceUuidLength = BluetoothUuid.UUID_BYTES_16_BIT;
-						byte[] serviceDataUuidBytes = extractBytes(scanRecord, currentPos,
-								serviceUuidLength);
-						ParcelUuid serviceDataUuid = BluetoothUuid.parseUuidFrom(
-								serviceDataUuidBytes);
-						byte[] serviceDataArray = extractBytes(scanRecord,
+						ParcelUuid serviceDataUuid = BluetoothUuid.parseUuidFrom(mBytes,
+								currentPos, serviceUuidLength);
+						byte[] serviceDataArray = extractBytes(mBytes,
 								currentPos + serviceUuidLength, dataLength - serviceUuidLength);
 						serviceData.put(serviceDataUuid, serviceDataArray);
 						break;
 					case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
 						// The first two bytes of the manufacturer specific data are
 						// manufacturer ids in little endian.
-						int manufacturerId = ((scanRecord[currentPos + 1] & 0xFF) << 8) +
-								(scanRecord[currentPos] & 0xFF);
-						byte[] manufacturerDataBytes = extractBytes(scanRecord, currentPos + 2,
+						int manufacturerId = ((mBytes[currentPos + 1] & 0xFF) << 8) +
+								(mBytes[currentPos] & 0xFF);
+						byte[] manufacturerDataBytes = extractBytes(mBytes, currentPos + 2,
 								dataLength - 2);
 						manufacturerData.put(manufacturerId, manufacturerDataBytes);
 						break;
 					default:
-						// Just ignore, we don't handle such data type.
+						// Decoded by their own getters or not handled.
 						break;
 				}
-				currentPos += dataLength;
 			}
-
 			if (serviceUuids.isEmpty()) {
 				serviceUuids = null;
 			}
-			return new ScanRecord(serviceUuids, manufacturerData, serviceData,
-					advertiseFlag, txPowerLevel, localName, scanRecord);
+			fields = new Fields(serviceUuids, manufacturerData, serviceData);
 		} catch (Exception e) {
-			Log.e(TAG, "unable to parse scan record: " + Arrays.toString(scanRecord));
+			Log.e(TAG, "unable to parse scan record: " + Arrays.toString(mBytes));
 			// As the record is invalid, ignore all the parsed results for this packet
-			// and return an empty record with raw scanRecord bytes in results
-			return new ScanRecord(null, null, null, -1, Integer.MIN_VALUE, null, scanRecord);
+			fields = new Fields(null, null, null);
 		}
+		mFields = fields;
+		return fields;
 	}
 
 	@Override
 	public String toString() {
-		return "ScanRecord [mAdvertiseFlags=" + mAdvertiseFlags + ", mServiceUuids=" + mServiceUuids
-				+ ", mManufacturerSpecificData=" + BluetoothLeUtils.toString(mManufacturerSpecificData)
-				+ ", mServiceData=" + BluetoothLeUtils.toString(mServiceData)
-				+ ", mTxPowerLevel=" + mTxPowerLevel + ", mDeviceName=" + mDeviceName + "]";
+		return "ScanRecord [mAdvertiseFlags=" + getAdvertiseFlags() + ", mServiceUuids=" + getServiceUuids()
+				+ ", mManufacturerSpecificData=" + BluetoothLeUtils.toString(getManufacturerSpecificData())
+				+ ", mServiceData=" + BluetoothLeUtils.toString(getServiceData())
+				+ ", mTxPowerLevel=" + getTxPowerLevel() + ", mDeviceName=" + getDeviceName() + "]";
+	}
+
+	// The fields returned as collections, decoded together.
+	private static final class Fields {
+		@Nullable
+		final List<ParcelUuid> serviceUuids;
+		final SparseArray<byte[]> manufacturerSpecificData;
+		final Map<ParcelUuid, byte[]> serviceData;
+
+		Fields(List<ParcelUuid> serviceUuids, SparseArray<byte[]> manufacturerSpecificData,
+			   Map<ParcelUuid, byte[]> serviceData) {
+			this.serviceUuids = serviceUuids;
+			this.manufacturerSpecificData = manufacturerSpecificData;
+			this.serviceData = serviceData;
+		}
 	}
 
 	// Parse service UUIDs.
 	private static int parseServiceUuid(byte[] scanRecord, int currentPos, int dataLength,
 										int uuidLength, List<ParcelUuid> serviceUuids) {
 		while (dataLength > 0) {
-			byte[] uuidBytes = extractBytes(scanRecord, currentPos,
-					uuidLength);
-			serviceUuids.add(BluetoothUuid.parseUuidFrom(uuidBytes));
+			serviceUuids.add(BluetoothUuid.parseUuidFrom(scanRecord, currentPos, uuidLength));
 			dataLength -= uuidLength;
 			currentPos += uuidLength;
 		}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.scanner;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Records raw advertisements to an append-only binary file for {@link ScanReplayScanner}.
+ * Start a scan with the recorder as its callback, or call {@link #record(ScanResult)} from your own callback.
+ * <p>
+ * The file starts with the magic {@code "BLER"} and a version byte, followed by one record per advertisement:
+ * 6 bytes of address, 1 byte of RSSI, 8 bytes of timestamp in nanoseconds, 2 bytes of length and the raw
+ * scan record. A length of {@code 0xFFFF} means the result had no scan record. All values are big endian.
+ */
+public class ScanRecorder extends ScanCallback implements Closeable {
+	private static final String TAG = "ScanRecorder";
+
+	/* package */ static final int MAGIC = 0x424C4552; // "BLER"
+	/* package */ static final int VERSION = 1;
+	/* package */ static final int NO_SCAN_RECORD = 0xFFFF;
+
+	private final DataOutputStream mOutput;
+	private final byte[] mAddress = new byte[6];
+	private boolean mClosed;
+
+	/**
+	 * @param file the file to append to, created if needed.
+	 * @throws IOException if the file can not be opened.
+	 */
+	public ScanRecorder(@NonNull final File file) throws IOException {
+		final boolean empty = !file.exists() || file.length() == 0;
+		mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		if (empty) {
+			mOutput.writeInt(MAGIC);
+			mOutput.writeByte(VERSION);
+		}
+	}
+
+	@Override
+	public void onScanResult(final int callbackType, final ScanResult result) {
+		record(result);
+	}
+
+	@Override
+	public void onBatchScanResults(final List<ScanResult> results) {
+		for (int i = 0; i < results.size(); i++)
+			record(results.get(i));
+	}
+
+	/**
+	 * Appends the result. Recording stops on the first write error, which is logged.
+	 */
+	public synchronized void record(@NonNull final ScanResult result) {
+		if (mClosed)
+			return;
+		try {
+			final String address = result.getDevice().getAddress();
+			for (int i = 0; i < mAddress.length; i++)
+				mAddress[i] = (byte) Integer.parseInt(address.substring(i * 3, i * 3 + 2), 16);
+			mOutput.write(mAddress);
+			mOutput.writeByte(result.getRssi());
+			mOutput.writeLong(result.getTimestampNanos());
+
+			final ScanRecord scanRecord = result.getScanRecord();
+			final byte[] bytes = scanRecord != null ? scanRecord.getBytes() : null;
+			if (bytes == null) {
+				mOutput.writeShort(NO_SCAN_RECORD);
+			} else {
+				mOutput.writeShort(bytes.length);
+				mOutput.write(bytes);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "unable to record scan result, recording stopped", e);
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Writes buffered records to the file.
+	 */
+	public synchronized void flush() throws IOException {
+		if (!mClosed)
+			mOutput.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!mClosed) {
+			mClosed = true;
+			mOutput.close();
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			// already reported
+		}
+	}
+}
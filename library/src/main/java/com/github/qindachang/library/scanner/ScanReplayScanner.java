@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.scanner;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays a file written by {@link ScanRecorder} as if it was a live scan. Results go through the same
+ * filtering, batching and callback type emulation as the results of the platform scanners, so their cost can be
+ * measured offline with recorded field conditions.
+ * <p>
+ * Every started scan replays the whole file once on its own thread, at the recorded pace divided by the speed.
+ * Replayed results are timestamped on the replay clock, as if they were received now, so that timeouts such as the
+ * one of {@link ScanSettings#CALLBACK_TYPE_MATCH_LOST} behave as during the recording.
+ */
+public class ScanReplayScanner extends BluetoothLeScannerCompat {
+	private static final String TAG = "ScanReplayScanner";
+
+	private final File mFile;
+	private final float mSpeed;
+	private final Map<ScanCallback, ScanCallbackWrapper> mWrappers = new HashMap<>();
+	private final Map<ScanCallback, Thread> mThreads = new HashMap<>();
+
+	/**
+	 * @param file  a file written by {@link ScanRecorder}.
+	 * @param speed 1 replays at the recorded pace, 10 ten times faster and 0 as fast as possible.
+	 */
+	public ScanReplayScanner(@NonNull final File file, final float speed) {
+		if (speed < 0)
+			throw new IllegalArgumentException("speed must be >= 0");
+		mFile = file;
+		mSpeed = speed;
+	}
+
+	@Override
+	/* package */ synchronized void startScanInternal(final List<ScanFilter> filters, final ScanSettings settings,
+													  final ScanCallback callback, final Handler handler) {
+		if (mWrappers.containsKey(callback)) {
+			throw new IllegalArgumentException("scanner already started with given callback");
+		}
+		// Nothing is offloaded, the wrapper emulates callback types and batching
+		final ScanCallbackWrapper wrapper = new ScanCallbackWrapper(filters, settings.withoutHardwareCallbackTypes(),
+				callback, handler);
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				replay(wrapper);
+			}
+		}, TAG);
+		mWrappers.put(callback, wrapper);
+		mThreads.put(callback, thread);
+		thread.start();
+	}
+
+	@Override
+	public synchronized void stopScan(final ScanCallback callback) {
+		final ScanCallbackWrapper wrapper = mWrappers.remove(callback);
+		if (wrapper == null)
+			return;
+
+		mThreads.remove(callback).interrupt();
+		wrapper.close();
+	}
+
+	@Override
+	public synchronized void flushPendingScanResults(final ScanCallback callback) {
+		if (callback == null) {
+			throw new IllegalArgumentException("callback cannot be null!");
+		}
+
+		final ScanCallbackWrapper wrapper = mWrappers.get(callback);
+		if (wrapper == null) {
+			throw new IllegalArgumentException("callback not registered!");
+		}
+		wrapper.flushPendingScanResults();
+	}
+
+	private void replay(final ScanCallbackWrapper wrapper) {
+		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		final Map<String, BluetoothDevice> devices = new HashMap<>();
+		final byte[] address = new byte[6];
+		final long startNanos = SystemClock.elapsedRealtimeNanos();
+		long firstTimestamp = -1;
+
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			if (input.readInt() != ScanRecorder.MAGIC || input.readUnsignedByte() != ScanRecorder.VERSION)
+				throw new IOException("not a scan recording: " + mFile);
+
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					input.readFully(address);
+				} catch (EOFException e) {
+					break;
+				}
+				final int rssi = input.readByte();
+				final long timestampNanos = input.readLong();
+				final int length = input.readUnsignedShort();
+				byte[] bytes = null;
+				if (length != ScanRecorder.NO_SCAN_RECORD) {
+					bytes = new byte[length];
+					input.readFully(bytes);
+				}
+
+				// Keep the recorded pace, and move the timestamp to the replay clock
+				if (firstTimestamp < 0)
+					firstTimestamp = timestampNanos;
+				final long replayTimestampNanos;
+				if (mSpeed > 0) {
+					replayTimestampNanos = startNanos + (long) ((timestampNanos - firstTimestamp) / mSpeed);
+					final long wait = (replayTimestampNanos - SystemClock.elapsedRealtimeNanos()) / 1000000L;
+					if (wait > 0)
+						Thread.sleep(wait);
+				} else {
+					replayTimestampNanos = SystemClock.elapsedRealtimeNanos();
+				}
+
+				final String deviceAddress = toAddress(address);
+				BluetoothDevice device = devices.get(deviceAddress);
+				if (device == null) {
+					device = adapter.getRemoteDevice(deviceAddress);
+					devices.put(deviceAddress, device);
+				}
+				wrapper.handleScanResult(new ScanResult(device, ScanRecord.parseFromBytes(bytes), rssi, replayTimestampNanos));
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (IOException e) {
+			Log.e(TAG, "unable to replay " + mFile, e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private static String toAddress(final byte[] address) {
+		final StringBuilder builder = new StringBuilder(17);
+		for (int i = 0; i < address.length; i++) {
+			if (i > 0)
+				builder.append(':');
+			builder.append(Character.toUpperCase(Character.forDigit((address[i] >> 4) & 0x0F, 16)));
+			builder.append(Character.toUpperCase(Character.forDigit(address[i] & 0x0F, 16)));
+		}
+		return builder.toString();
+	}
+}
@@ -114,6 +114,22 @@ public class ScanSettings implements Parcelable {
 	 */
 	public static final int MATCH_MODE_STICKY = 2;
 
+	/**
+	 * When batching is emulated, report the first result of every device seen during the report delay.
+	 */
+	public static final int BATCH_KEEP_FIRST = 0;
+
+	/**
+	 * When batching is emulated, report the latest result of every device seen during the report delay.
+	 */
+	public static final int BATCH_KEEP_LATEST = 1;
+
+	/**
+	 * When batching is emulated, report the result with the highest RSSI of every device seen during
+	 * the report delay.
+	 */
+	public static final int BATCH_KEEP_STRONGEST = 2;
+
 	/**
 	 * Pre-Lollipop scanning requires a wakelock and the CPU cannot go to sleep. To conserve power we can optionally
 	 * scan for a certain duration (scan interval) and then rest for a time before starting scanning again
@@ -144,6 +160,8 @@ public class ScanSettings implements Parcelable {
 
 	private long mMatchLostTaskInterval;
 
+	private int mBatchKeepMode;
+
 	public int getScanMode() {
 		return mScanMode;
 	}
@@ -180,6 +198,19 @@ public class ScanSettings implements Parcelable {
 		mUseHardwareCallbackTypesIfSupported = false;
 	}
 
+	/**
+	 * Returns these settings with hardware callback types disabled, for scans emulating every callback type.
+	 * The settings given by the application are copied rather than changed.
+	 */
+	/* package */ ScanSettings withoutHardwareCallbackTypes() {
+		if (!mUseHardwareCallbackTypesIfSupported)
+			return this;
+		return new ScanSettings(mScanMode, mCallbackType, mReportDelayMillis, mMatchMode, mNumOfMatchesPerFilter,
+				mUseHardwareFilteringIfSupported, mUseHardwareBatchingIfSupported, false,
+				mMatchLostDeviceTimeout / 1000000L, mMatchLostTaskInterval,
+				mPowerSaveScanInterval, mPowerSaveRestInterval, mBatchKeepMode);
+	}
+
 	public long getMatchLostDeviceTimeout() {
 		return mMatchLostDeviceTimeout;
 	}
@@ -188,6 +219,13 @@ public class ScanSettings implements Parcelable {
 		return mMatchLostTaskInterval;
 	}
 
+	/**
+	 * Returns which result of a device is kept in an emulated batch.
+	 */
+	public int getBatchKeepMode() {
+		return mBatchKeepMode;
+	}
+
 	/**
 	 * Returns report delay timestamp based on the device clock.
 	 */
@@ -197,7 +235,7 @@ public class ScanSettings implements Parcelable {
 
 	private ScanSettings(int scanMode, int callbackType, long reportDelayMillis, int matchMode, int numOfMatchesPerFilter,
 						 boolean hardwareFiltering, boolean hardwareBatching, boolean hardwareCallbackTypes, long matchTimeout, long taskInterval,
-						 long powerSaveScanInterval, long powerSaveRestInterval) {
+						 long powerSaveScanInterval, long powerSaveRestInterval, int batchKeepMode) {
 		mScanMode = scanMode;
 		mCallbackType = callbackType;
 		mReportDelayMillis = reportDelayMillis;
@@ -210,6 +248,7 @@ public class ScanSettings implements Parcelable {
 		mMatchLostTaskInterval = taskInterval;
 		mPowerSaveScanInterval = powerSaveScanInterval;
 		mPowerSaveRestInterval = powerSaveRestInterval;
+		mBatchKeepMode = batchKeepMode;
 	}
 
 	private ScanSettings(Parcel in) {
@@ -222,6 +261,7 @@ public class ScanSettings implements Parcelable {
 		mUseHardwareBatchingIfSupported = in.readInt() == 1;
 		mPowerSaveScanInterval = in.readLong();
 		mPowerSaveRestInterval = in.readLong();
+		mBatchKeepMode = in.readInt();
 	}
 
 	@Override
@@ -235,6 +275,7 @@ public class ScanSettings implements Parcelable {
 		dest.writeInt(mUseHardwareBatchingIfSupported ? 1 : 0);
 		dest.writeLong(mPowerSaveScanInterval);
 		dest.writeLong(mPowerSaveRestInterval);
+		dest.writeInt(mBatchKeepMode);
 	}
 
 	@Override
@@ -287,6 +328,7 @@ public class ScanSettings implements Parcelable {
 		private long mMatchLostTaskInterval = MATCH_LOST_TASK_INTERVAL_DEFAULT;
 		private long mPowerSaveRestInterval = 0;
 		private long mPowerSaveScanInterval = 0;
+		private int mBatchKeepMode = BATCH_KEEP_FIRST;
 
 		/**
 		 * Set scan mode for Bluetooth LE scan.
@@ -448,6 +490,20 @@ public class ScanSettings implements Parcelable {
 			return this;
 		}
 
+		/**
+		 * Choose which result of a device is reported when batching is emulated by the Scanner Compat, see
+		 * {@link #setUseHardwareBatchingIfSupported(boolean)}. Every device is reported once per batch.
+		 * @param batchKeepMode {@link ScanSettings#BATCH_KEEP_FIRST} (default), {@link ScanSettings#BATCH_KEEP_LATEST}
+		 *                      or {@link ScanSettings#BATCH_KEEP_STRONGEST}
+		 */
+		public Builder setBatchKeepMode(final int batchKeepMode) {
+			if (batchKeepMode < BATCH_KEEP_FIRST || batchKeepMode > BATCH_KEEP_STRONGEST) {
+				throw new IllegalArgumentException("invalid batch keep mode " + batchKeepMode);
+			}
+			mBatchKeepMode = batchKeepMode;
+			return this;
+		}
+
 		/**
 		 * Build {@link ScanSettings}.
 		 */
@@ -455,7 +511,8 @@ public class ScanSettings implements Parcelable {
 			return new ScanSettings(mScanMode, mCallbackType, mReportDelayMillis,
 					mMatchMode, mNumOfMatchesPerFilter, mUseHardwareFilteringIfSupported,
 					mUseHardwareBatchingIfSupported, mUseHardwareCallbackTypesIfSupported,
-					mMatchLostDeviceTimeout, mMatchLostTaskInterval, mPowerSaveScanInterval, mPowerSaveRestInterval);
+					mMatchLostDeviceTimeout, mMatchLostTaskInterval, mPowerSaveScanInterval, mPowerSaveRestInterval,
+					mBatchKeepMode);
 		}
 	}
 }
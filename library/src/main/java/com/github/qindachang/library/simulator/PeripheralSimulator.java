@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.simulator;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import com.github.qindachang.library.GattTransport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Serves {@link SimulatedPeripheral}s to the library instead of the Bluetooth stack, pass it to
+ * {@code BluetoothConfig.Builder.setGattTransportFactory(..)}. Every connection result, timing and
+ * injected error is drawn from one seeded random generator on the simulator thread, so a run with
+ * the same seed and the same calls behaves the same.
+ * <p>
+ * Connecting to an address without a peripheral fails with {@link SimulatedPeripheral#GATT_ERROR}
+ * after {@link #NO_DEVICE_TIMEOUT} ms, like connecting to a device out of range.
+ * <p>
+ * The simulator uses the Android Bluetooth and Handler classes, so JVM unit tests run it under
+ * Robolectric, see {@code BleManagerSimulatorTest}.
+ */
+public class PeripheralSimulator implements GattTransport.Factory {
+
+    public static final int NO_DEVICE_TIMEOUT = 30000;
+
+    private final Map<String, SimulatedPeripheral> mPeripherals = new HashMap<>();
+    private final Random mRandom;
+    private final Handler mHandler;
+
+    /**
+     * Runs the simulation on its own thread.
+     */
+    public PeripheralSimulator(long seed) {
+        this(seed, newSimulatorHandler());
+    }
+
+    /**
+     * @param handler handler the simulation and the GATT callbacks run on, a handler of a paused
+     *                test looper makes the time fully controlled by the test.
+     */
+    public PeripheralSimulator(long seed, Handler handler) {
+        mRandom = new Random(seed);
+        mHandler = handler;
+    }
+
+    private static Handler newSimulatorHandler() {
+        final HandlerThread thread = new HandlerThread("BleSimulator");
+        thread.start();
+        return new Handler(thread.getLooper());
+    }
+
+    public synchronized void addPeripheral(SimulatedPeripheral peripheral) {
+        mPeripherals.put(peripheral.getAddress(), peripheral);
+    }
+
+    /**
+     * Removes the peripheral, its connections are lost with {@link SimulatedPeripheral#GATT_CONN_TIMEOUT}.
+     */
+    public void removePeripheral(String address) {
+        final SimulatedPeripheral peripheral;
+        synchronized (this) {
+            peripheral = mPeripherals.remove(address.toUpperCase());
+        }
+        if (peripheral != null) {
+            peripheral.disconnectAll(SimulatedPeripheral.GATT_CONN_TIMEOUT);
+        }
+    }
+
+    public synchronized SimulatedPeripheral getPeripheral(String address) {
+        return mPeripherals.get(address.toUpperCase());
+    }
+
+    @Override
+    public GattTransport connect(Context context, BluetoothDevice device, boolean autoConnect, int transport,
+                                 GattTransport.Callback callback) {
+        final SimulatedGattTransport connection = new SimulatedGattTransport(this, device, callback);
+        connection.connect(getPeripheral(device.getAddress()));
+        return connection;
+    }
+
+    /**
+     * Runs the task on the simulator thread after the delay, and cancels it with the token.
+     */
+    void post(Object token, long delay, Runnable task) {
+        mHandler.postAtTime(task, token, SystemClock.uptimeMillis() + delay);
+    }
+
+    void cancel(Object token) {
+        mHandler.removeCallbacksAndMessages(token);
+    }
+
+    boolean chance(float probability) {
+        return probability > 0 && mRandom.nextFloat() < probability;
+    }
+
+    double nextGaussian() {
+        return mRandom.nextGaussian();
+    }
+}
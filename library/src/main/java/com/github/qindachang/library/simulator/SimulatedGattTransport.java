@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.simulator;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import com.github.qindachang.library.GattTransport;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A client connection to a {@link SimulatedPeripheral}. Like the platform stack it runs one
+ * operation at a time, every packet waits for the next connection event and a lost packet is
+ * retransmitted one connection interval later.
+ */
+class SimulatedGattTransport implements GattTransport {
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final int DEFAULT_MTU = 23;
+    private static final int MAX_MTU = 517;
+
+    private final PeripheralSimulator mSimulator;
+    private final BluetoothDevice mDevice;
+    private final Callback mCallback;
+
+    private SimulatedPeripheral mPeripheral;
+    private boolean mConnected;
+    private boolean mClosed;
+    private boolean mBusy;
+    private int mMtu = DEFAULT_MTU;
+    private List<BluetoothGattService> mServices = Collections.emptyList();
+    private final Map<BluetoothGattCharacteristic, Integer> mSubscriptions = new HashMap<>();
+    private final Set<BluetoothGattCharacteristic> mNotificationsEnabled = new HashSet<>();
+
+    SimulatedGattTransport(PeripheralSimulator simulator, BluetoothDevice device, Callback callback) {
+        mSimulator = simulator;
+        mDevice = device;
+        mCallback = callback;
+    }
+
+    void connect(final SimulatedPeripheral peripheral) {
+        if (peripheral == null) {
+            mSimulator.post(this, PeripheralSimulator.NO_DEVICE_TIMEOUT, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onConnectionStateChange(SimulatedGattTransport.this, SimulatedPeripheral.GATT_ERROR,
+                            BluetoothProfile.STATE_DISCONNECTED);
+                }
+            });
+            return;
+        }
+        mPeripheral = peripheral;
+        mSimulator.post(this, peripheral.getLatency() + exchange(2), new Runnable() {
+            @Override
+            public void run() {
+                if (mSimulator.chance(peripheral.getConnectErrorRate())) {
+                    mCallback.onConnectionStateChange(SimulatedGattTransport.this, SimulatedPeripheral.GATT_ERROR,
+                            BluetoothProfile.STATE_DISCONNECTED);
+                    return;
+                }
+                synchronized (SimulatedGattTransport.this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    mConnected = true;
+                    mMtu = DEFAULT_MTU;
+                }
+                peripheral.onConnected(SimulatedGattTransport.this);
+                mCallback.onConnectionStateChange(SimulatedGattTransport.this, BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_CONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public BluetoothGatt getBluetoothGatt() {
+        return null;
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mConnected = false;
+            mBusy = false;
+        }
+        if (mPeripheral != null) {
+            mPeripheral.onDisconnected(this);
+        }
+        // Also cancels a connection attempt and operations in flight
+        mSimulator.cancel(this);
+        mSimulator.post(this, mPeripheral != null ? mPeripheral.getConnectionInterval() : 0, new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onConnectionStateChange(SimulatedGattTransport.this, BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            mConnected = false;
+        }
+        if (mPeripheral != null) {
+            mPeripheral.onDisconnected(this);
+        }
+        mSimulator.cancel(this);
+    }
+
+    void linkLost(final int status) {
+        synchronized (this) {
+            if (!mConnected) {
+                return;
+            }
+            mConnected = false;
+            mBusy = false;
+        }
+        mPeripheral.onDisconnected(this);
+        mSimulator.cancel(this);
+        mSimulator.post(this, mPeripheral.getLatency(), new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onConnectionStateChange(SimulatedGattTransport.this, status, BluetoothProfile.STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!startOperation()) {
+            return false;
+        }
+        complete(mPeripheral.getLatency() + exchange(2 * (mPeripheral.getServiceCount() + 1)), new Operation() {
+            @Override
+            void run(int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    final List<BluetoothGattService> services = mPeripheral.copyServices();
+                    synchronized (SimulatedGattTransport.this) {
+                        mServices = services;
+                        mSubscriptions.clear();
+                        mNotificationsEnabled.clear();
+                    }
+                }
+                mCallback.onServicesDiscovered(SimulatedGattTransport.this, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    @Override
+    public synchronized BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (!startOperation()) {
+            return false;
+        }
+        final UUID serviceUUID = characteristic.getService().getUuid();
+        final byte[] value = mPeripheral.getValue(serviceUUID, characteristic.getUuid());
+        // Long values take several read blob requests
+        final int requests = value == null ? 1 : Math.max(1, (value.length + mMtu - 2) / (mMtu - 1));
+        complete(mPeripheral.getLatency() + exchange(2 * requests), new Operation() {
+            @Override
+            void run(int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    characteristic.setValue(mPeripheral.getValue(serviceUUID, characteristic.getUuid()));
+                }
+                mCallback.onCharacteristicRead(SimulatedGattTransport.this, characteristic, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (!startOperation()) {
+            return false;
+        }
+        final byte[] value = characteristic.getValue();
+        final boolean withResponse = characteristic.getWriteType() != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        complete(mPeripheral.getLatency() + exchange(withResponse ? 2 : 1), new Operation() {
+            @Override
+            void run(int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mPeripheral.setValue(characteristic.getService().getUuid(), characteristic.getUuid(), value);
+                }
+                mCallback.onCharacteristicWrite(SimulatedGattTransport.this, characteristic, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean readDescriptor(final BluetoothGattDescriptor descriptor) {
+        if (!startOperation()) {
+            return false;
+        }
+        complete(mPeripheral.getLatency() + exchange(2), new Operation() {
+            @Override
+            void run(int status) {
+                mCallback.onDescriptorRead(SimulatedGattTransport.this, descriptor, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+        if (!startOperation()) {
+            return false;
+        }
+        final byte[] value = descriptor.getValue();
+        complete(mPeripheral.getLatency() + exchange(2), new Operation() {
+            @Override
+            void run(int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS
+                        && CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID.equals(descriptor.getUuid())) {
+                    final int flags = value != null && value.length > 0 ? value[0] & 0x03 : 0;
+                    synchronized (SimulatedGattTransport.this) {
+                        mSubscriptions.put(descriptor.getCharacteristic(), flags);
+                    }
+                }
+                mCallback.onDescriptorWrite(SimulatedGattTransport.this, descriptor, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        if (!mConnected) {
+            return false;
+        }
+        if (enable) {
+            mNotificationsEnabled.add(characteristic);
+        } else {
+            mNotificationsEnabled.remove(characteristic);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        if (!startOperation()) {
+            return false;
+        }
+        complete(mPeripheral.getLatency() + exchange(1), new Operation() {
+            @Override
+            void run(int status) {
+                final int rssi = mPeripheral.getRssi() + (int) Math.round(mSimulator.nextGaussian() * 2);
+                mCallback.onReadRemoteRssi(SimulatedGattTransport.this, rssi, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        if (!startOperation()) {
+            return false;
+        }
+        complete(mPeripheral.getLatency() + exchange(2), new Operation() {
+            @Override
+            void run(int status) {
+                final int negotiated;
+                synchronized (SimulatedGattTransport.this) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        mMtu = Math.max(DEFAULT_MTU, Math.min(Math.min(mtu, MAX_MTU), mPeripheral.getMaxMtu()));
+                    }
+                    negotiated = mMtu;
+                }
+                mCallback.onMtuChanged(SimulatedGattTransport.this, negotiated, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean refresh() {
+        return true;
+    }
+
+    void deliverNotification(UUID serviceUUID, UUID characteristicUUID, final byte[] value) {
+        final BluetoothGattCharacteristic characteristic;
+        final int flags;
+        synchronized (this) {
+            final BluetoothGattService service = getService(serviceUUID);
+            characteristic = service != null ? service.getCharacteristic(characteristicUUID) : null;
+            if (characteristic == null || !mConnected || !mNotificationsEnabled.contains(characteristic)) {
+                return;
+            }
+            final Integer subscription = mSubscriptions.get(characteristic);
+            flags = subscription != null ? subscription : 0;
+        }
+        if (flags == 0) {
+            return;
+        }
+        // An indication waits for its confirmation before the next one
+        final boolean indication = (flags & 0x02) != 0;
+        mSimulator.post(this, mPeripheral.getLatency() + exchange(indication ? 2 : 1), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattTransport.this) {
+                    if (!mConnected) {
+                        return;
+                    }
+                }
+                characteristic.setValue(value);
+                mCallback.onCharacteristicChanged(SimulatedGattTransport.this, characteristic);
+            }
+        });
+    }
+
+    private synchronized boolean startOperation() {
+        if (!mConnected || mBusy || mSimulator.chance(mPeripheral.getBusyRate())) {
+            return false;
+        }
+        mBusy = true;
+        return true;
+    }
+
+    private void complete(long delay, final Operation operation) {
+        final int callbackDelay = mPeripheral.getCallbackDelay();
+        mSimulator.post(this, delay + mPeripheral.getResponseDelay(), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattTransport.this) {
+                    if (!mConnected) {
+                        return;
+                    }
+                    mBusy = false;
+                }
+                final int status = mSimulator.chance(mPeripheral.getGattErrorRate())
+                        ? SimulatedPeripheral.GATT_ERROR : BluetoothGatt.GATT_SUCCESS;
+                if (callbackDelay == 0) {
+                    operation.run(status);
+                    return;
+                }
+                mSimulator.post(SimulatedGattTransport.this, callbackDelay, new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (SimulatedGattTransport.this) {
+                            if (!mConnected) {
+                                return;
+                            }
+                        }
+                        operation.run(status);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return time the given number of packets take, one connection event each plus retransmissions.
+     */
+    private long exchange(int packets) {
+        final int interval = mPeripheral.getConnectionInterval();
+        long time = 0;
+        for (int i = 0; i < packets; i++) {
+            time += interval;
+            while (mSimulator.chance(mPeripheral.getPacketLoss())) {
+                time += interval;
+            }
+        }
+        return time;
+    }
+
+    private abstract static class Operation {
+        abstract void run(int status);
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.simulator;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A virtual BLE peripheral served by a {@link PeripheralSimulator}. It has its own GATT table,
+ * link timing and failure rates, and keeps the values written to its characteristics.
+ */
+public class SimulatedPeripheral {
+
+    /** Status of the infamous Android GATT_ERROR. */
+    public static final int GATT_ERROR = 133;
+    /** Status of a link lost because the peripheral went out of range. */
+    public static final int GATT_CONN_TIMEOUT = 8;
+
+    private final String address;
+    private final List<BluetoothGattService> services;
+    private final int connectionInterval;
+    private final int latency;
+    private final int maxMtu;
+    private final int rssi;
+    private final float packetLoss;
+    private final float connectErrorRate;
+    private final float gattErrorRate;
+    private final float busyRate;
+
+    private final List<SimulatedGattTransport> mConnections = new CopyOnWriteArrayList<>();
+    private volatile int mResponseDelay;
+    private volatile int mCallbackDelay;
+
+    private SimulatedPeripheral(Builder builder) {
+        address = builder.address;
+        services = builder.services;
+        connectionInterval = builder.connectionInterval;
+        latency = builder.latency;
+        maxMtu = builder.maxMtu;
+        rssi = builder.rssi;
+        packetLoss = builder.packetLoss;
+        connectErrorRate = builder.connectErrorRate;
+        gattErrorRate = builder.gattErrorRate;
+        busyRate = builder.busyRate;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Sets the value a characteristic is read with.
+     */
+    public void setValue(UUID serviceUUID, UUID characteristicUUID, byte[] value) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUUID, characteristicUUID);
+        if (characteristic == null) {
+            throw new IllegalArgumentException("no characteristic " + characteristicUUID + " in service " + serviceUUID);
+        }
+        synchronized (this) {
+            characteristic.setValue(value);
+        }
+    }
+
+    /**
+     * @return the value last written to or set on the characteristic.
+     */
+    public synchronized byte[] getValue(UUID serviceUUID, UUID characteristicUUID) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUUID, characteristicUUID);
+        return characteristic == null ? null : characteristic.getValue();
+    }
+
+    /**
+     * Sends a notification or indication, depending on what each connected client subscribed to.
+     */
+    public void notify(UUID serviceUUID, UUID characteristicUUID, byte[] value) {
+        setValue(serviceUUID, characteristicUUID, value);
+        for (SimulatedGattTransport connection : mConnections) {
+            connection.deliverNotification(serviceUUID, characteristicUUID, value);
+        }
+    }
+
+    /**
+     * Drops every connection, as if the peripheral went out of range.
+     *
+     * @param status disconnection status reported to the clients, for example {@link #GATT_CONN_TIMEOUT}.
+     */
+    public void disconnectAll(int status) {
+        for (SimulatedGattTransport connection : mConnections) {
+            connection.linkLost(status);
+        }
+    }
+
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * Holds back the responses of the operations started from now on, like a stack or peripheral
+     * that stopped answering. Used to run into request timeouts and to deliver callbacks late.
+     *
+     * @param millisecond time added to every response, 0 answers normally again.
+     */
+    public void setResponseDelay(int millisecond) {
+        mResponseDelay = Math.max(0, millisecond);
+    }
+
+    int getResponseDelay() {
+        return mResponseDelay;
+    }
+
+    /**
+     * Delivers the callbacks of the operations started from now on late, after the stack is free
+     * for the next operation again. Used to hand a callback to a client that already gave up on
+     * its request.
+     *
+     * @param millisecond time the callbacks are held back, 0 delivers them normally again.
+     */
+    public void setCallbackDelay(int millisecond) {
+        mCallbackDelay = Math.max(0, millisecond);
+    }
+
+    int getCallbackDelay() {
+        return mCallbackDelay;
+    }
+
+    /**
+     * @return a copy of the GATT table for a client, characteristics start without a value.
+     */
+    List<BluetoothGattService> copyServices() {
+        final List<BluetoothGattService> copies = new ArrayList<>(services.size());
+        for (BluetoothGattService service : services) {
+            final BluetoothGattService copy = new BluetoothGattService(service.getUuid(), service.getType());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                final BluetoothGattCharacteristic characteristicCopy = new BluetoothGattCharacteristic(
+                        characteristic.getUuid(), characteristic.getProperties(), characteristic.getPermissions());
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    characteristicCopy.addDescriptor(new BluetoothGattDescriptor(descriptor.getUuid(), descriptor.getPermissions()));
+                }
+                copy.addCharacteristic(characteristicCopy);
+            }
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    BluetoothGattCharacteristic getCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+        for (BluetoothGattService service : services) {
+            if (service.getUuid().equals(serviceUUID)) {
+                return service.getCharacteristic(characteristicUUID);
+            }
+        }
+        return null;
+    }
+
+    int getServiceCount() {
+        return services.size();
+    }
+
+    void onConnected(SimulatedGattTransport connection) {
+        mConnections.add(connection);
+    }
+
+    void onDisconnected(SimulatedGattTransport connection) {
+        mConnections.remove(connection);
+    }
+
+    int getConnectionInterval() {
+        return connectionInterval;
+    }
+
+    int getLatency() {
+        return latency;
+    }
+
+    int getMaxMtu() {
+        return maxMtu;
+    }
+
+    int getRssi() {
+        return rssi;
+    }
+
+    float getPacketLoss() {
+        return packetLoss;
+    }
+
+    float getConnectErrorRate() {
+        return connectErrorRate;
+    }
+
+    float getGattErrorRate() {
+        return gattErrorRate;
+    }
+
+    float getBusyRate() {
+        return busyRate;
+    }
+
+    public static class Builder {
+        private final String address;
+        private final List<BluetoothGattService> services = new ArrayList<>();
+        private int connectionInterval = 30;
+        private int latency;
+        private int maxMtu = 247;
+        private int rssi = -60;
+        private float packetLoss;
+        private float connectErrorRate;
+        private float gattErrorRate;
+        private float busyRate;
+
+        /**
+         * @param address MAC address the peripheral is connected with, for example "00:11:22:33:44:55".
+         */
+        public Builder(String address) {
+            this.address = address.toUpperCase();
+        }
+
+        /**
+         * Adds a service to the GATT table. Initial characteristic values are the ones set on it.
+         */
+        public Builder addService(BluetoothGattService service) {
+            this.services.add(service);
+            return this;
+        }
+
+        /**
+         * @param millisecond time between connection events, every packet waits for the next one. Default 30 ms.
+         */
+        public Builder setConnectionInterval(int millisecond) {
+            this.connectionInterval = Math.max(1, millisecond);
+            return this;
+        }
+
+        /**
+         * @param millisecond processing time added to every operation, by the stack and the peripheral. Default 0.
+         */
+        public Builder setLatency(int millisecond) {
+            this.latency = millisecond;
+            return this;
+        }
+
+        /**
+         * @param mtu largest ATT MTU the peripheral accepts. Default 247.
+         */
+        public Builder setMtu(int mtu) {
+            this.maxMtu = mtu;
+            return this;
+        }
+
+        public Builder setRssi(int rssi) {
+            this.rssi = rssi;
+            return this;
+        }
+
+        /**
+         * @param probability chance that a packet is lost and retransmitted in the next connection event,
+         *                    below 1.
+         */
+        public Builder setPacketLoss(float probability) {
+            this.packetLoss = Math.min(probability, 0.99f);
+            return this;
+        }
+
+        /**
+         * @param probability chance that a connection attempt fails with {@link #GATT_ERROR}.
+         */
+        public Builder setConnectErrorRate(float probability) {
+            this.connectErrorRate = probability;
+            return this;
+        }
+
+        /**
+         * @param probability chance that a read, write or discovery completes with {@link #GATT_ERROR}.
+         */
+        public Builder setGattErrorRate(float probability) {
+            this.gattErrorRate = probability;
+            return this;
+        }
+
+        /**
+         * @param probability chance that the stack reports busy and an operation can not be started, on
+         *                    top of the busy state while another operation is running.
+         */
+        public Builder setBusyRate(float probability) {
+            this.busyRate = probability;
+            return this;
+        }
+
+        public SimulatedPeripheral build() {
+            return new SimulatedPeripheral(this);
+        }
+    }
+}
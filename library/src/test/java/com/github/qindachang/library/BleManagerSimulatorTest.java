@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.qindachang.library;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.github.qindachang.library.exception.BleException;
+import com.github.qindachang.library.exception.ConnBleException;
+import com.github.qindachang.library.exception.ReadBleException;
+import com.github.qindachang.library.simulator.PeripheralSimulator;
+import com.github.qindachang.library.simulator.SimulatedPeripheral;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a {@link BleManager} against a {@link PeripheralSimulator} on the main looper, so the test
+ * controls the time of the whole connection.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class BleManagerSimulatorTest {
+
+    public static final String ADDRESS = "00:11:22:33:44:55";
+    public static final UUID SERVICE_UUID = UUID.fromString("0000FFF0-0000-1000-8000-00805f9b34fb");
+    public static final UUID FIRST_UUID = UUID.fromString("0000FFF1-0000-1000-8000-00805f9b34fb");
+    public static final UUID SECOND_UUID = UUID.fromString("0000FFF2-0000-1000-8000-00805f9b34fb");
+
+    private static final int REQUEST_TIMEOUT = 1000;
+
+    private SimulatedPeripheral mPeripheral;
+    private PeripheralSimulator mSimulator;
+    private BleManager mBleManager;
+    private final ConnectCounter mConnectCounter = new ConnectCounter();
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        resetSingletons();
+        mPeripheral = new SimulatedPeripheral.Builder(ADDRESS)
+                .addService(newService())
+                .setConnectionInterval(15)
+                .build();
+        mPeripheral.setValue(SERVICE_UUID, FIRST_UUID, new byte[]{1});
+        mPeripheral.setValue(SERVICE_UUID, SECOND_UUID, new byte[]{2});
+        mSimulator = new PeripheralSimulator(42, new Handler(Looper.getMainLooper()));
+        mSimulator.addPeripheral(mPeripheral);
+    }
+
+    @After
+    public void tearDown() {
+        resetSingletons();
+    }
+
+    // The shared schedulers keep loopers Robolectric quits after every test.
+    public static void resetSingletons() {
+        ReflectionHelpers.setStaticField(RequestWatchdog.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(ConnectScheduler.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(RssiScheduler.class, "sInstance", null);
+    }
+
+    public static BluetoothGattService newService() {
+        final BluetoothGattService service = new BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (UUID uuid : new UUID[]{FIRST_UUID, SECOND_UUID}) {
+            service.addCharacteristic(new BluetoothGattCharacteristic(uuid,
+                    BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                    BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE));
+        }
+        return service;
+    }
+
+    private BleManager connect(int requestTimeoutsBeforeReconnect) {
+        final BleManager bleManager = new BleManager();
+        bleManager.setConfig(new BluetoothConfig.Builder()
+                .setGattTransportFactory(mSimulator)
+                .setRequestTimeout(REQUEST_TIMEOUT)
+                .setRequestTimeoutsBeforeReconnect(requestTimeoutsBeforeReconnect)
+                .build());
+        bleManager.setRetryConnectEnable(true);
+        bleManager.setRetryConnectCount(3);
+        bleManager.addLeListenerList(mConnectCounter);
+        assertTrue(bleManager.connect(false, TestDevices.create(ADDRESS)));
+        advance(2000);
+        assertTrue(bleManager.getServicesDiscovered());
+        return bleManager;
+    }
+
+    /**
+     * Moves the clock in small steps, running the main looper and the request watchdog in between.
+     */
+    public static void advance(long millis) {
+        for (long step = 0; step < millis; step += 5) {
+            ShadowLooper.idleMainLooper(5);
+            final RequestWatchdog watchdog = ReflectionHelpers.getStaticField(RequestWatchdog.class, "sInstance");
+            final HandlerThread thread = watchdog == null ? null
+                    : (HandlerThread) ReflectionHelpers.getField(watchdog, "mHandlerThread");
+            if (thread != null) {
+                Shadows.shadowOf(thread.getLooper()).getScheduler().advanceTo(SystemClock.uptimeMillis());
+            }
+        }
+    }
+
+    @Test
+    public void requestsRunOneAtATimeInOrder() {
+        mBleManager = connect(3);
+        final Results results = new Results();
+        mBleManager.read(SERVICE_UUID, FIRST_UUID).addCallback(results.callback("read 1"));
+        mBleManager.write(new byte[]{3}, SERVICE_UUID, FIRST_UUID).addCallback(results.callback("write"));
+        mBleManager.read(SERVICE_UUID, FIRST_UUID).addCallback(results.callback("read 3"));
+        mBleManager.read(SERVICE_UUID, SECOND_UUID).addCallback(results.callback("read 2"));
+        advance(1000);
+
+        // A request started while the simulator is busy would fail, so all succeeding shows the
+        // queue never ran two operations at once.
+        assertEquals(Arrays.asList("read 1 [1]", "write null", "read 3 [3]", "read 2 [2]"), results.values);
+        assertArrayEquals(new byte[]{3}, mPeripheral.getValue(SERVICE_UUID, FIRST_UUID));
+    }
+
+    @Test
+    public void timedOutRequestFailsAndQueueMovesOn() {
+        mBleManager = connect(3);
+        final Results results = new Results();
+        mPeripheral.setResponseDelay(REQUEST_TIMEOUT * 2);
+        mBleManager.read(SERVICE_UUID, FIRST_UUID).addCallback(results.callback("stalled"));
+        advance(REQUEST_TIMEOUT + 100);
+        assertEquals(1, results.values.size());
+        assertTrue(results.values.get(0), results.values.get(0).startsWith("stalled failed"));
+
+        mPeripheral.setResponseDelay(0);
+        // The stalled operation still occupies the stack until its response arrives.
+        advance(REQUEST_TIMEOUT);
+        mBleManager.read(SERVICE_UUID, SECOND_UUID).addCallback(results.callback("next"));
+        advance(500);
+        assertEquals("next [2]", results.values.get(1));
+        assertTrue(mBleManager.getConnected());
+    }
+
+    @Test
+    public void lateCallbackDoesNotCompleteNextRequest() {
+        mBleManager = connect(3);
+        final Results results = new Results();
+        final List<UUID> listenerReads = new ArrayList<>();
+        mBleManager.addLeListenerList(new OnLeReadCharacteristicListener() {
+            @Override
+            public void onSuccess(BluetoothGattCharacteristic characteristic) {
+                listenerReads.add(characteristic.getUuid());
+            }
+
+            @Override
+            public void onFailure(ReadBleException e) {
+            }
+        });
+        // The stack is free again at once, the callback comes after the request timed out and
+        // while the next request waits for its own response.
+        mPeripheral.setCallbackDelay(REQUEST_TIMEOUT + 300);
+        mBleManager.read(SERVICE_UUID, FIRST_UUID).addCallback(results.callback("stalled"));
+        mPeripheral.setCallbackDelay(0);
+        mPeripheral.setResponseDelay(800);
+        mBleManager.read(SERVICE_UUID, SECOND_UUID).addCallback(results.callback("next"));
+        advance(REQUEST_TIMEOUT + 100);
+        assertEquals(Arrays.asList("stalled failed " + BleException.STATUS_TIMEOUT + " request timeout."), results.values);
+
+        advance(1000);
+        assertEquals(Arrays.asList("stalled failed " + BleException.STATUS_TIMEOUT + " request timeout.", "next [2]"),
+                results.values);
+        assertTrue(listenerReads.isEmpty());
+        assertTrue(mBleManager.getConnected());
+    }
+
+    @Test
+    public void requestWaitsForRssiRead() {
+        mBleManager = connect(0);
+        mPeripheral.setResponseDelay(REQUEST_TIMEOUT - 200);
+        final RssiScheduler.RssiReader reader = ReflectionHelpers.getField(mBleManager, "mRssiReader");
+        assertTrue(reader.readRssi());
+        final Results results = new Results();
+        mBleManager.read(SERVICE_UUID, FIRST_UUID).addCallback(results.callback("after rssi"));
+        advance(REQUEST_TIMEOUT);
+        assertTrue(results.values.isEmpty());
+
+        advance(REQUEST_TIMEOUT);
+        assertEquals(Collections.singletonList("after rssi [1]"), results.values);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void callbackThreadCannotChangeWhileConnected() {
+        mBleManager = connect(3);
+        mBleManager.setConfig(new BluetoothConfig.Builder()
+                .setGattTransportFactory(mSimulator)
+                .setCallbackOnBackgroundThread(true)
+                .build());
+    }
+
+    @Test
+    public void connectTimeoutOfTheManagerIsUsed() {
+        final BleManager bleManager = new BleManager();
+        bleManager.setConfig(new BluetoothConfig.Builder().setGattTransportFactory(mSimulator).build());
+        bleManager.setConnectTimeoutMillis(15000);
+        bleManager.addLeListenerList(mConnectCounter);
+        // No peripheral answers at this address.
+        assertTrue(bleManager.connect(false, TestDevices.create("00:11:22:33:44:66")));
+        advance(12000);
+        assertTrue(mConnectCounter.failures.isEmpty());
+
+        advance(4000);
+        assertEquals(Arrays.asList(BleException.STATUS_TIMEOUT), mConnectCounter.failures);
+    }
+
+    @Test
+    public void heldBackRequestFailsWhenDiscoveryNeverReports() throws IOException {
+        mBleManager = new BleManager();
+        mBleManager.setConfig(new BluetoothConfig.Builder()
+                .setGattTransportFactory(mSimulator)
+                .setRequestTimeout(REQUEST_TIMEOUT)
+                .setServiceCacheDirectory(mFolder.newFolder())
+                .build());
+        mBleManager.setRetryConnectEnable(true);
+        mBleManager.addLeListenerList(mConnectCounter);
+        assertTrue(mBleManager.connect(false, TestDevices.create(ADDRESS)));
+        advance(2000);
+        assertTrue(mBleManager.getServicesDiscovered());
+
+        // The reconnect finds the services in the cache, but discovery gets no answer.
+        mPeripheral.setResponseDelay(60000);
+        mPeripheral.disconnectAll(SimulatedPeripheral.GATT_CONN_TIMEOUT);
+        advance(1000);
+        assertEquals(2, mConnectCounter.connected);
+        final Results results = new Results();
+        mBleManager.read(SERVICE_UUID, FIRST_UUID).addCallback(results.callback("held back"));
+        advance(100);
+        assertTrue(results.values.isEmpty());
+
+        advance(REQUEST_TIMEOUT);
+        assertEquals(1, results.values.size());
+        assertTrue(results.values.get(0), results.values.get(0).startsWith("held back failed"));
+    }
+
+    @Test
+    public void lostLinkIsReconnected() {
+        mBleManager = connect(3);
+        mPeripheral.disconnectAll(SimulatedPeripheral.GATT_CONN_TIMEOUT);
+        advance(3000);
+
+        assertEquals(1, mConnectCounter.disconnected);
+        assertEquals(2, mConnectCounter.connected);
+        assertEquals(2, mConnectCounter.discovered);
+        assertTrue(mBleManager.getServicesDiscovered());
+        final ReconnectEngine engine = mBleManager.getReconnectEngine();
+        assertEquals(1, engine.getFailureCount(SimulatedPeripheral.GATT_CONN_TIMEOUT));
+        assertEquals(1, engine.getReconnectCount());
+    }
+
+    @Test
+    public void requestTimeoutsCloseAndReconnect() {
+        mBleManager = connect(1);
+        final Results results = new Results();
+        mPeripheral.setResponseDelay(REQUEST_TIMEOUT * 2);
+        mBleManager.read(SERVICE_UUID, FIRST_UUID).addCallback(results.callback("stalled"));
+        mBleManager.read(SERVICE_UUID, SECOND_UUID).addCallback(results.callback("queued"));
+        advance(REQUEST_TIMEOUT + 100);
+
+        assertEquals(2, results.values.size());
+        assertEquals(1, mConnectCounter.disconnected);
+        assertEquals(1, mBleManager.getReconnectEngine().getFailureCount(ReconnectEngine.STATUS_REQUEST_TIMEOUT));
+
+        mPeripheral.setResponseDelay(0);
+        advance(5000);
+        assertEquals(2, mConnectCounter.connected);
+        assertTrue(mBleManager.getServicesDiscovered());
+        mBleManager.read(SERVICE_UUID, SECOND_UUID).addCallback(results.callback("after reconnect"));
+        advance(500);
+        assertEquals("after reconnect [2]", results.values.get(2));
+    }
+
+    static class Results {
+        final List<String> values = new ArrayList<>();
+
+        <T> BleFuture.Callback<T> callback(final String name) {
+            return new BleFuture.Callback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    values.add(name + " " + (value instanceof byte[] ? Arrays.toString((byte[]) value) : value));
+                }
+
+                @Override
+                public void onFailure(BleException e) {
+                    values.add(name + " failed " + e.getStatus() + " " + e.getDetailMessage());
+                }
+            };
+        }
+    }
+
+    static class ConnectCounter extends OnLeConnectListener {
+        int connected;
+        int disconnected;
+        int discovered;
+        final List<Integer> failures = new ArrayList<>();
+
+        @Override
+        public void onDeviceConnecting() {
+        }
+
+        @Override
+        public void onDeviceConnected() {
+            connected++;
+        }
+
+        @Override
+        public void onDeviceDisconnected() {
+            disconnected++;
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt) {
+            discovered++;
+        }
+
+        @Override
+        public void onDeviceConnectFail(ConnBleException e) {
+            failures.add(e.getStatus());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.qindachang.library;
+
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class QueuePacerTest {
+
+    private final QueuePacer mPacer = new QueuePacer(2);
+
+    @Test
+    public void successStartsNextRequestAtOnce() {
+        mPacer.onStart();
+        SystemClock.sleep(40);
+        assertEquals(0, mPacer.onComplete(0, true));
+        assertEquals(40, mPacer.getAverageLatency(0));
+        assertEquals(0, mPacer.getAverageLatency(1));
+    }
+
+    @Test
+    public void averagesLatencyPerType() {
+        mPacer.onStart();
+        SystemClock.sleep(40);
+        mPacer.onComplete(0, true);
+        mPacer.onStart();
+        SystemClock.sleep(120);
+        mPacer.onComplete(0, true);
+        assertEquals(50, mPacer.getAverageLatency(0));
+    }
+
+    @Test
+    public void backoffGrowsWithConsecutiveErrors() {
+        assertEquals(10, mPacer.onComplete(1, false));
+        assertEquals(20, mPacer.onComplete(1, false));
+        assertEquals(40, mPacer.onBusy(1));
+        assertEquals(3, mPacer.getErrorCount());
+
+        assertEquals(0, mPacer.onComplete(1, true));
+        assertEquals(0, mPacer.getErrorCount());
+        assertEquals(10, mPacer.onComplete(1, false));
+    }
+
+    @Test
+    public void backoffStartsAtConnectionIntervalOrLatency() {
+        mPacer.setConnectionInterval(7.5);
+        assertEquals(10, mPacer.onBusy(0));
+
+        mPacer.onComplete(0, true);
+        mPacer.setConnectionInterval(29.5);
+        assertEquals(30, mPacer.onBusy(0));
+
+        mPacer.onComplete(0, true);
+        mPacer.onStart();
+        SystemClock.sleep(100);
+        assertEquals(100, mPacer.onComplete(0, false));
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        long delay = 0;
+        for (int i = 0; i < 20; i++) {
+            delay = mPacer.onComplete(0, false);
+        }
+        assertEquals(2000, delay);
+    }
+
+    @Test
+    public void busyRequestDoesNotCountAsLatency() {
+        mPacer.onStart();
+        SystemClock.sleep(500);
+        mPacer.onBusy(0);
+        mPacer.onComplete(0, true);
+        assertEquals(0, mPacer.getAverageLatency(0));
+    }
+}
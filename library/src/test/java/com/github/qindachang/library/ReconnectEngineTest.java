@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.qindachang.library;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ReconnectEngineTest {
+
+    private final ReconnectEngine mEngine = new ReconnectEngine();
+
+    @Before
+    public void setUp() {
+        mEngine.setMaxAttempts(5);
+        mEngine.reset();
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+
+    @Test
+    public void supervisionTimeoutIsRetriedAtOnce() {
+        assertEquals(0, mEngine.onFailure(ReconnectEngine.GATT_CONN_TIMEOUT));
+        // Then 250 ms doubled for the second attempt, with equal jitter.
+        assertBetween(250, 500, mEngine.onFailure(ReconnectEngine.GATT_CONN_TIMEOUT));
+        assertBetween(500, 1000, mEngine.onFailure(ReconnectEngine.GATT_CONN_TIMEOUT));
+    }
+
+    @Test
+    public void delayDependsOnStatus() {
+        assertBetween(250, 500, mEngine.onFailure(ReconnectEngine.GATT_ERROR));
+        mEngine.reset();
+        assertBetween(1000, 2000, mEngine.onFailure(ReconnectEngine.GATT_CONN_TERMINATE_PEER_USER));
+        mEngine.reset();
+        assertBetween(500, 1000, mEngine.onFailure(1));
+    }
+
+    @Test
+    public void delayIsCapped() {
+        mEngine.setMaxAttempts(30);
+        for (int i = 0; i < 29; i++) {
+            mEngine.onFailure(ReconnectEngine.GATT_ERROR);
+        }
+        assertBetween(15000, 30000, mEngine.onFailure(ReconnectEngine.GATT_ERROR));
+    }
+
+    @Test
+    public void localDisconnectIsNotRetried() {
+        assertEquals(ReconnectEngine.NO_RECONNECT, mEngine.onFailure(ReconnectEngine.GATT_CONN_TERMINATE_LOCAL_HOST));
+        assertEquals(0, mEngine.getAttemptCount());
+    }
+
+    @Test
+    public void stopSuppressesRetriesUntilReset() {
+        mEngine.stop();
+        assertEquals(ReconnectEngine.NO_RECONNECT, mEngine.onFailure(ReconnectEngine.GATT_ERROR));
+        mEngine.reset();
+        assertNotEquals(ReconnectEngine.NO_RECONNECT, mEngine.onFailure(ReconnectEngine.GATT_ERROR));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        mEngine.setMaxAttempts(2);
+        assertNotEquals(ReconnectEngine.NO_RECONNECT, mEngine.onFailure(ReconnectEngine.GATT_ERROR));
+        assertNotEquals(ReconnectEngine.NO_RECONNECT, mEngine.onFailure(ReconnectEngine.GATT_ERROR));
+        assertEquals(ReconnectEngine.NO_RECONNECT, mEngine.onFailure(ReconnectEngine.GATT_ERROR));
+        assertEquals(ReconnectEngine.NO_RECONNECT, mEngine.onFailure(ReconnectEngine.GATT_ERROR));
+
+        assertEquals(2, mEngine.getAttemptCount());
+        assertEquals(1, mEngine.getGiveUpCount());
+        assertEquals(4, mEngine.getFailureCount(ReconnectEngine.GATT_ERROR));
+    }
+
+    @Test
+    public void successEndsTheLossAndResetsTheBackoff() {
+        mEngine.onFailure(ReconnectEngine.STATUS_SERVICE_TIMEOUT);
+        SystemClock.sleep(300);
+        mEngine.onFailure(ReconnectEngine.STATUS_SERVICE_TIMEOUT);
+        SystemClock.sleep(700);
+        mEngine.onSuccess();
+
+        assertEquals(1, mEngine.getReconnectCount());
+        assertEquals(1000, mEngine.getLastReconnectDuration());
+        assertEquals(2, mEngine.getFailureCount(ReconnectEngine.STATUS_SERVICE_TIMEOUT));
+        assertEquals(0, mEngine.getFailureCount(ReconnectEngine.STATUS_REQUEST_TIMEOUT));
+        assertBetween(250, 500, mEngine.onFailure(ReconnectEngine.STATUS_REQUEST_TIMEOUT));
+    }
+
+    @Test
+    public void successWithoutLossIsNoReconnect() {
+        mEngine.onSuccess();
+        assertEquals(0, mEngine.getReconnectCount());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.qindachang.library;
+
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class RequestWatchdogTest {
+
+    private RequestWatchdog mWatchdog;
+    private final List<String> mExpired = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        // The shared instance keeps a looper Robolectric quits after every test.
+        ReflectionHelpers.setStaticField(RequestWatchdog.class, "sInstance", null);
+        mWatchdog = RequestWatchdog.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionHelpers.setStaticField(RequestWatchdog.class, "sInstance", null);
+    }
+
+    private Runnable expire(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mExpired.add(name);
+            }
+        };
+    }
+
+    // Moves the clock and runs what the watchdog thread would have run by then.
+    private void advance(long millis) {
+        SystemClock.sleep(millis);
+        final HandlerThread thread = ReflectionHelpers.getField(mWatchdog, "mHandlerThread");
+        Shadows.shadowOf(thread.getLooper()).getScheduler().advanceTo(SystemClock.uptimeMillis());
+    }
+
+    @Test
+    public void deadlinesExpireInOrder() {
+        final RequestWatchdog.Deadline late = mWatchdog.schedule(300, expire("late"));
+        final RequestWatchdog.Deadline early = mWatchdog.schedule(100, expire("early"));
+        mWatchdog.schedule(100, expire("early2"));
+        assertEquals(3, mWatchdog.getPendingCount());
+
+        advance(99);
+        assertTrue(mExpired.isEmpty());
+        advance(1);
+        assertEquals(2, mExpired.size());
+        assertEquals("early", mExpired.get(0));
+        assertEquals("early2", mExpired.get(1));
+        assertTrue(early.isExpired());
+        assertFalse(late.isExpired());
+
+        advance(200);
+        assertEquals("late", mExpired.get(2));
+        assertEquals(0, mWatchdog.getPendingCount());
+    }
+
+    @Test
+    public void cancelledDeadlineDoesNotExpire() {
+        final RequestWatchdog.Deadline deadline = mWatchdog.schedule(100, expire("cancelled"));
+        mWatchdog.schedule(200, expire("kept"));
+        deadline.cancel();
+        assertEquals(1, mWatchdog.getPendingCount());
+
+        advance(300);
+        assertEquals(1, mExpired.size());
+        assertEquals("kept", mExpired.get(0));
+        assertFalse(deadline.isExpired());
+    }
+
+    @Test
+    public void cancelAfterExpiryIsIgnored() {
+        final RequestWatchdog.Deadline deadline = mWatchdog.schedule(100, expire("expired"));
+        advance(100);
+        deadline.cancel();
+        assertTrue(deadline.isExpired());
+        assertEquals(0, mWatchdog.getPendingCount());
+    }
+
+    @Test
+    public void manyCancelledDeadlinesArePurged() {
+        final RequestWatchdog.Deadline kept = mWatchdog.schedule(10000, expire("kept"));
+        for (int i = 0; i < 1000; i++) {
+            mWatchdog.schedule(5000, expire("cancelled")).cancel();
+        }
+        assertEquals(1, mWatchdog.getPendingCount());
+
+        advance(10000);
+        assertEquals(1, mExpired.size());
+        assertTrue(kept.isExpired());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void timeoutMustBePositive() {
+        mWatchdog.schedule(0, expire("never"));
+    }
+}
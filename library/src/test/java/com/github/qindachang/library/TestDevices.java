@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.qindachang.library;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.robolectric.util.ReflectionHelpers;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Creates {@link BluetoothDevice}s in Robolectric tests.
+ * <p>
+ * The platform constructor binds to the Bluetooth service, which does not exist on the JVM. A stub
+ * service that answers every call with a default value is installed instead, so a device only
+ * knows its address and reports {@link BluetoothDevice#BOND_NONE}.
+ */
+public final class TestDevices {
+
+    private TestDevices() {
+    }
+
+    public static BluetoothDevice create(String address) {
+        try {
+            final Class<?> service = Class.forName("android.bluetooth.IBluetooth", false,
+                    BluetoothDevice.class.getClassLoader());
+            final Object stub = Proxy.newProxyInstance(service.getClassLoader(), new Class<?>[]{service},
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            final Class<?> type = method.getReturnType();
+                            if (type == int.class) {
+                                return BluetoothDevice.BOND_NONE;
+                            }
+                            if (type == boolean.class) {
+                                return false;
+                            }
+                            return null;
+                        }
+                    });
+            ReflectionHelpers.setStaticField(BluetoothDevice.class, "sService", stub);
+        } catch (ClassNotFoundException e) {
+            throw new AssertionError(e);
+        }
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+}
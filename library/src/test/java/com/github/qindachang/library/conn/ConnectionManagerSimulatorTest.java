@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2016, Qin Dachang
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.qindachang.library.conn;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.github.qindachang.library.BluetoothConfig;
+import com.github.qindachang.library.RssiScheduler;
+import com.github.qindachang.library.TestDevices;
+import com.github.qindachang.library.exception.BleException;
+import com.github.qindachang.library.exception.ConnBleException;
+import com.github.qindachang.library.exception.ReadBleException;
+import com.github.qindachang.library.simulator.PeripheralSimulator;
+import com.github.qindachang.library.simulator.SimulatedPeripheral;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.github.qindachang.library.BleManagerSimulatorTest.ADDRESS;
+import static com.github.qindachang.library.BleManagerSimulatorTest.FIRST_UUID;
+import static com.github.qindachang.library.BleManagerSimulatorTest.SECOND_UUID;
+import static com.github.qindachang.library.BleManagerSimulatorTest.SERVICE_UUID;
+import static com.github.qindachang.library.BleManagerSimulatorTest.advance;
+import static com.github.qindachang.library.BleManagerSimulatorTest.newService;
+import static com.github.qindachang.library.BleManagerSimulatorTest.resetSingletons;
+import static org.junit.Assert.*;
+
+/**
+ * Drives a connector of a {@link BluetoothLeConnectionManager} against a {@link PeripheralSimulator}
+ * on the main looper.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ConnectionManagerSimulatorTest {
+
+    private static final int REQUEST_TIMEOUT = 1000;
+
+    private SimulatedPeripheral.Builder mPeripheralBuilder;
+    private SimulatedPeripheral mPeripheral;
+    private final Reads mReads = new Reads();
+
+    @Before
+    public void setUp() {
+        resetSingletons();
+        mPeripheralBuilder = new SimulatedPeripheral.Builder(ADDRESS)
+                .addService(newService())
+                .setConnectionInterval(15);
+    }
+
+    @After
+    public void tearDown() {
+        resetSingletons();
+    }
+
+    private BluetoothLeConnector connect() {
+        mPeripheral = mPeripheralBuilder.build();
+        mPeripheral.setValue(SERVICE_UUID, FIRST_UUID, new byte[]{1});
+        mPeripheral.setValue(SERVICE_UUID, SECOND_UUID, new byte[]{2});
+        final PeripheralSimulator simulator = new PeripheralSimulator(42, new Handler(Looper.getMainLooper()));
+        simulator.addPeripheral(mPeripheral);
+
+        final BluetoothLeConnectionManager manager = new BluetoothLeConnectionManager();
+        manager.setConfig(new BluetoothConfig.Builder()
+                .setGattTransportFactory(simulator)
+                .setRequestTimeout(REQUEST_TIMEOUT)
+                .build());
+        final ConnectCounter connectCounter = new ConnectCounter();
+        final BluetoothLeConnector connector = manager.getConnector(TestDevices.create(ADDRESS));
+        connector.addConnectListener(connectCounter);
+        connector.addReadCharacteristicListener(mReads);
+        assertTrue(manager.connect(false, TestDevices.create(ADDRESS)));
+        advance(2000);
+        assertEquals(1, connectCounter.discovered);
+        return connector;
+    }
+
+    @Test
+    public void busyStackIsRetried() {
+        mPeripheralBuilder.setBusyRate(0.5f);
+        final BluetoothLeConnector connector = connect();
+        for (int i = 0; i < 4; i++) {
+            connector.readCharacteristic(SERVICE_UUID, i % 2 == 0 ? FIRST_UUID : SECOND_UUID);
+        }
+        advance(3000);
+
+        assertEquals(Arrays.asList("[1]", "[2]", "[1]", "[2]"), mReads.values);
+    }
+
+    @Test
+    public void lateCallbackDoesNotCompleteNextRequest() {
+        final BluetoothLeConnector connector = connect();
+        mPeripheral.setCallbackDelay(REQUEST_TIMEOUT + 200);
+        connector.readCharacteristic(SERVICE_UUID, FIRST_UUID);
+        advance(100);
+        mPeripheral.setCallbackDelay(500);
+        connector.readCharacteristic(SERVICE_UUID, SECOND_UUID);
+        advance(REQUEST_TIMEOUT);
+        assertEquals(1, mReads.values.size());
+        assertTrue(mReads.values.get(0), mReads.values.get(0).startsWith("failed " + BleException.STATUS_TIMEOUT));
+
+        // The late callback of the first read arrives while the second one waits for its own.
+        advance(300);
+        assertEquals(1, mReads.values.size());
+        advance(500);
+        assertEquals("[2]", mReads.values.get(1));
+        advance(1000);
+        assertEquals(2, mReads.values.size());
+    }
+
+    @Test
+    public void requestWaitsForRssiRead() {
+        final BluetoothLeConnector connector = connect();
+        mPeripheral.setResponseDelay(REQUEST_TIMEOUT - 200);
+        final Command command = ReflectionHelpers.getField(connector, "mCommand");
+        final RssiScheduler.RssiReader reader = ReflectionHelpers.getField(command, "mRssiReader");
+        assertTrue(reader.readRssi());
+        connector.readCharacteristic(SERVICE_UUID, FIRST_UUID);
+        advance(REQUEST_TIMEOUT);
+        assertTrue(mReads.values.isEmpty());
+
+        advance(REQUEST_TIMEOUT);
+        assertEquals(Collections.singletonList("[1]"), mReads.values);
+    }
+
+    static class Reads implements ReadCharacteristicListener {
+        final List<String> values = new ArrayList<>();
+
+        @Override
+        public void onReaded(BluetoothGattCharacteristic characteristic) {
+            values.add(Arrays.toString(characteristic.getValue()));
+        }
+
+        @Override
+        public void error(ReadBleException e) {
+            values.add("failed " + e.getStatus() + " " + e.getDetailMessage());
+        }
+    }
+
+    static class ConnectCounter implements ConnectListener {
+        int discovered;
+
+        @Override
+        public void connecting() {
+        }
+
+        @Override
+        public void connected() {
+        }
+
+        @Override
+        public void disconnected() {
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                discovered++;
+            }
+        }
+
+        @Override
+        public void error(ConnBleException e) {
+        }
+    }
+}
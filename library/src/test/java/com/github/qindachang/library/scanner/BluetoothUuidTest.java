@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.scanner;
+
+import android.os.ParcelUuid;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class BluetoothUuidTest {
+
+	@Test
+	public void expandsShortUuids() {
+		assertEquals(ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB"),
+				BluetoothUuid.parseUuidFrom(new byte[]{0x0D, 0x18}));
+		assertEquals(ParcelUuid.fromString("1234180D-0000-1000-8000-00805F9B34FB"),
+				BluetoothUuid.parseUuidFrom(new byte[]{0x0D, 0x18, 0x34, 0x12}));
+	}
+
+	@Test
+	public void parsesLongUuidsLittleEndian() {
+		final byte[] bytes = new byte[16];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		assertEquals(ParcelUuid.fromString("0F0E0D0C-0B0A-0908-0706-050403020100"),
+				BluetoothUuid.parseUuidFrom(bytes));
+	}
+
+	@Test
+	public void internsParsedUuids() {
+		final byte[] bytes = {0x00, 0x01, 0x0F, 0x18, 0x0D, 0x18};
+		assertSame(BluetoothUuid.parseUuidFrom(bytes, 2, 2), BluetoothUuid.parseUuidFrom(new byte[]{0x0F, 0x18}));
+		assertSame(BluetoothUuid.parseUuidFrom(bytes, 4, 2), BluetoothUuid.parseUuidFrom(new byte[]{0x0D, 0x18}));
+
+		final byte[] longBytes = new byte[16];
+		longBytes[0] = 0x42;
+		assertSame(BluetoothUuid.parseUuidFrom(longBytes), BluetoothUuid.parseUuidFrom(longBytes.clone()));
+	}
+
+	@Test
+	public void internReturnsParsedInstance() {
+		final ParcelUuid parsed = BluetoothUuid.parseUuidFrom(new byte[]{0x0A, 0x18});
+		assertSame(parsed, BluetoothUuid.intern(ParcelUuid.fromString("0000180A-0000-1000-8000-00805F9B34FB")));
+
+		final ParcelUuid custom = new ParcelUuid(UUID.randomUUID());
+		assertSame(custom, BluetoothUuid.intern(custom));
+		assertSame(custom, BluetoothUuid.intern(new ParcelUuid(custom.getUuid())));
+		assertNull(BluetoothUuid.intern(null));
+	}
+
+	@Test
+	public void evictedUuidsAreStillEqual() {
+		final ParcelUuid first = BluetoothUuid.intern(new ParcelUuid(UUID.randomUUID()));
+		for (int i = 0; i < 64; i++) {
+			BluetoothUuid.intern(new ParcelUuid(UUID.randomUUID()));
+		}
+		final ParcelUuid again = BluetoothUuid.intern(new ParcelUuid(first.getUuid()));
+		assertEquals(first, again);
+		assertNotSame(first, again);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidLength() {
+		BluetoothUuid.parseUuidFrom(new byte[3]);
+	}
+}
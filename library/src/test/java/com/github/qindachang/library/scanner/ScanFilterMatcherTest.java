@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.scanner;
+
+import android.os.ParcelUuid;
+
+import com.github.qindachang.library.TestDevices;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ScanFilterMatcherTest {
+
+	private static final String ADDRESS_A = "AA:BB:CC:DD:EE:01";
+	private static final String ADDRESS_B = "AA:BB:CC:DD:EE:02";
+	private static final ParcelUuid HEART_RATE = ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+	private static final ParcelUuid BATTERY = ParcelUuid.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+
+	private List<ScanFilter> mFilters;
+	private List<ScanResult> mResults;
+
+	@Before
+	public void setUp() {
+		mFilters = Arrays.asList(
+				new ScanFilter.Builder().setDeviceAddress(ADDRESS_A).build(),
+				new ScanFilter.Builder().setDeviceAddress(ADDRESS_B).setDeviceName("nRF").build(),
+				new ScanFilter.Builder().setDeviceName("Polar").build(),
+				new ScanFilter.Builder().setServiceUuid(HEART_RATE).build(),
+				new ScanFilter.Builder().setServiceUuid(BATTERY,
+						ParcelUuid.fromString("0000FF00-0000-0000-0000-000000000000")).build(),
+				new ScanFilter.Builder().setDeviceName("Polar").setServiceUuid(BATTERY).build(),
+				new ScanFilter.Builder().setManufacturerData(0x0059, new byte[]{0x01}).build(),
+				new ScanFilter.Builder().setServiceData(BATTERY, new byte[]{0x64}, new byte[]{(byte) 0xF0}).build());
+
+		mResults = new ArrayList<>();
+		for (String address : new String[]{ADDRESS_A, ADDRESS_B, "AA:BB:CC:DD:EE:03"}) {
+			mResults.add(result(address, null));
+			mResults.add(result(address, new int[]{0x09, 'n', 'R', 'F'}));
+			mResults.add(result(address, new int[]{0x09, 'P', 'o', 'l', 'a', 'r'}, new int[]{0x03, 0x0F, 0x18}));
+			mResults.add(result(address, new int[]{0x03, 0x0D, 0x18}));
+			mResults.add(result(address, new int[]{0x03, 0x0F, 0x19}));
+			mResults.add(result(address, new int[]{0xFF, 0x59, 0x00, 0x01, 0x02}));
+			mResults.add(result(address, new int[]{0xFF, 0x59, 0x00, 0x02}));
+			mResults.add(result(address, new int[]{0x16, 0x0F, 0x18, 0x6F}));
+		}
+	}
+
+	private static ScanResult result(String address, int[]... fields) {
+		final ScanRecord record = fields == null ? null : ScanRecord.parseFromBytes(ScanRecordTest.record(fields));
+		return new ScanResult(TestDevices.create(address), record, -50, 0);
+	}
+
+	private void assertMatchesLikeFilters(List<ScanFilter> filters) {
+		final ScanFilterMatcher matcher = ScanFilterMatcher.compile(filters);
+		for (ScanResult result : mResults) {
+			boolean expected = false;
+			for (ScanFilter filter : filters) {
+				expected |= filter.matches(result);
+			}
+			assertEquals(filters + " / " + result, expected, matcher.matches(result));
+		}
+	}
+
+	@Test
+	public void everySingleFilter() {
+		for (ScanFilter filter : mFilters) {
+			assertMatchesLikeFilters(Collections.singletonList(filter));
+		}
+	}
+
+	@Test
+	public void everyPairOfFilters() {
+		for (ScanFilter first : mFilters) {
+			for (ScanFilter second : mFilters) {
+				assertMatchesLikeFilters(Arrays.asList(first, second));
+			}
+		}
+	}
+
+	@Test
+	public void allFilters() {
+		assertMatchesLikeFilters(mFilters);
+	}
+
+	@Test
+	public void emptyFilterMatchesEverything() {
+		final ScanFilterMatcher matcher = ScanFilterMatcher.compile(
+				Arrays.asList(mFilters.get(2), new ScanFilter.Builder().build()));
+		for (ScanResult result : mResults) {
+			assertTrue(matcher.matches(result));
+		}
+		assertFalse(matcher.matches(null));
+	}
+
+	@Test
+	public void noFiltersMatchNothing() {
+		final ScanFilterMatcher matcher = ScanFilterMatcher.compile(Collections.<ScanFilter>emptyList());
+		for (ScanResult result : mResults) {
+			assertFalse(matcher.matches(result));
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.qindachang.library.scanner;
+
+import android.os.ParcelUuid;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ScanRecordTest {
+
+	private static final ParcelUuid HEART_RATE = ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+	private static final ParcelUuid BATTERY = ParcelUuid.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+
+	// Builds a record from AD structures given as type followed by data.
+	static byte[] record(int[]... fields) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int[] field : fields) {
+			out.write(field.length);
+			for (int b : field) {
+				out.write(b);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void decodesFieldsOnDemand() {
+		final ScanRecord record = ScanRecord.parseFromBytes(record(
+				new int[]{0x01, 0x06},
+				new int[]{0x03, 0x0D, 0x18, 0x0F, 0x18},
+				new int[]{0x0A, 0xF4},
+				new int[]{0x16, 0x0F, 0x18, 0x64},
+				new int[]{0xFF, 0x59, 0x00, 0x01, 0x02},
+				new int[]{0x09, 'n', 'R', 'F'}));
+
+		assertEquals(0x06, record.getAdvertiseFlags());
+		assertEquals(-12, record.getTxPowerLevel());
+		assertEquals("nRF", record.getDeviceName());
+		assertArrayEquals(new byte[]{0x01, 0x02}, record.getManufacturerSpecificData(0x0059));
+		assertEquals(Arrays.asList(HEART_RATE, BATTERY), record.getServiceUuids());
+		assertArrayEquals(new byte[]{0x64}, record.getServiceData(BATTERY));
+		assertArrayEquals(new byte[]{0x01, 0x02}, record.getManufacturerSpecificData().get(0x0059));
+		assertArrayEquals(new byte[]{0x01, 0x02}, record.getManufacturerSpecificData(0x0059));
+	}
+
+	@Test
+	public void missingFieldsHaveDefaults() {
+		final ScanRecord record = ScanRecord.parseFromBytes(record(new int[]{0x01, 0x06}));
+
+		assertEquals(Integer.MIN_VALUE, record.getTxPowerLevel());
+		assertNull(record.getDeviceName());
+		assertNull(record.getServiceUuids());
+		assertNull(record.getManufacturerSpecificData(0x0059));
+		assertEquals(0, record.getManufacturerSpecificData().size());
+		assertTrue(record.getServiceData().isEmpty());
+	}
+
+	@Test
+	public void lastManufacturerDataWins() {
+		final byte[] bytes = record(
+				new int[]{0xFF, 0x59, 0x00, 0x01},
+				new int[]{0xFF, 0x59, 0x00, 0x02});
+
+		assertArrayEquals(new byte[]{0x02}, ScanRecord.parseFromBytes(bytes).getManufacturerSpecificData(0x0059));
+		assertArrayEquals(new byte[]{0x02}, ScanRecord.parseFromBytes(bytes).getManufacturerSpecificData().get(0x0059));
+	}
+
+	@Test
+	public void truncatedRecordHasNoFields() {
+		final byte[] bytes = record(new int[]{0x09, 'n', 'R', 'F'}, new int[]{0xFF, 0x59, 0x00, 0x01});
+		final ScanRecord record = ScanRecord.parseFromBytes(Arrays.copyOf(bytes, bytes.length - 1));
+
+		assertNull(record.getDeviceName());
+		assertNull(record.getManufacturerSpecificData(0x0059));
+		assertNull(record.getManufacturerSpecificData());
+	}
+
+	@Test
+	public void undecodableFieldDropsWholeRecord() {
+		// Manufacturer data too short for its identifier, the eager parser dropped such records.
+		final byte[] bytes = record(new int[]{0xFF, 0x59, 0x00, 0x01}, new int[]{0xFF, 0x4C});
+
+		final ScanRecord lazy = ScanRecord.parseFromBytes(bytes);
+		assertNull(lazy.getManufacturerSpecificData(0x0059));
+		assertNull(lazy.getManufacturerSpecificData());
+
+		final ScanRecord decoded = ScanRecord.parseFromBytes(bytes);
+		assertNull(decoded.getManufacturerSpecificData());
+		assertNull(decoded.getManufacturerSpecificData(0x0059));
+	}
+
+	@Test
+	public void serviceUuidsMustFitTheRecord() {
+		final ScanRecord record = ScanRecord.parseFromBytes(record(
+				new int[]{0x09, 'n', 'R', 'F'},
+				new int[]{0x03, 0x0D, 0x18, 0x0F}));
+
+		assertNull(record.getServiceUuids());
+		assertNull(record.getDeviceName());
+	}
+}